@@ -0,0 +1,213 @@
+package org.litesoft.aws.s3.bench;
+
+import java.lang.management.*;
+import java.util.*;
+
+/**
+ * A (single threaded) benchmark run by a Benchmark.Runner: "prepare" (untimed) then "run" (timed) per invocation.
+ */
+public abstract class Benchmark {
+    private final String mName;
+
+    protected Benchmark( String pName ) {
+        mName = pName;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * Called once, before any invocation (untimed).
+     */
+    public void setUp()
+            throws Exception {
+    }
+
+    /**
+     * Called before each invocation (untimed), e.g. to create what the invocation deletes.
+     */
+    public void prepare( int pInvocation )
+            throws Exception {
+    }
+
+    /**
+     * @return the number of operations performed (normally 1)
+     */
+    public abstract int run( int pInvocation )
+            throws Exception;
+
+    /**
+     * Called once, after the last invocation (untimed).
+     */
+    public void tearDown()
+            throws Exception {
+    }
+
+    /**
+     * Warmup and then measure a Benchmark: throughput (ops/s, mean and stddev of the measurement iterations), the
+     * allocation (bytes) per op on the benchmark thread, and the S3 (emulator) requests (by kind) and list bytes per op.
+     */
+    public static class Runner {
+        private final S3Emulator mEmulator;
+        private final int mWarmupIterations, mMeasurementIterations;
+        private final long mIterationMillis;
+
+        public Runner( S3Emulator pEmulator, int pWarmupIterations, int pMeasurementIterations, long pIterationMillis ) {
+            mEmulator = pEmulator;
+            mWarmupIterations = Math.max( 0, pWarmupIterations );
+            mMeasurementIterations = Math.max( 1, pMeasurementIterations );
+            mIterationMillis = Math.max( 1, pIterationMillis );
+        }
+
+        public Result run( Benchmark pBenchmark )
+                throws Exception {
+            pBenchmark.setUp();
+            try {
+                int zInvocation = 0;
+                for ( int i = 0; i < mWarmupIterations; i++ ) {
+                    zInvocation = iteration( pBenchmark, zInvocation, null );
+                }
+                Result zResult = new Result( pBenchmark.getName() );
+                for ( int i = 0; i < mMeasurementIterations; i++ ) {
+                    zInvocation = iteration( pBenchmark, zInvocation, zResult );
+                }
+                return zResult;
+            }
+            finally {
+                pBenchmark.tearDown();
+            }
+        }
+
+        private int iteration( Benchmark pBenchmark, int pInvocation, Result pResult )
+                throws Exception {
+            long zOps = 0, zNanos = 0, zAllocated = 0;
+            Map<String, Long> zRequests = new TreeMap<String, Long>(), zResponseBytes = new TreeMap<String, Long>();
+            long zEnd = System.currentTimeMillis() + mIterationMillis;
+            do {
+                pBenchmark.prepare( pInvocation );
+                Map<String, Long> zRequestsBefore = mEmulator.getRequestCounts();
+                Map<String, Long> zResponseBytesBefore = mEmulator.getResponseBytes();
+                long zAllocatedBefore = allocatedBytes();
+                long zStarted = System.nanoTime();
+                zOps += pBenchmark.run( pInvocation++ );
+                zNanos += System.nanoTime() - zStarted;
+                zAllocated += allocatedBytes() - zAllocatedBefore;
+                addDifferences( zRequests, zRequestsBefore, mEmulator.getRequestCounts() );
+                addDifferences( zResponseBytes, zResponseBytesBefore, mEmulator.getResponseBytes() );
+            } while ( System.currentTimeMillis() < zEnd );
+            if ( pResult != null ) {
+                pResult.add( zOps, zNanos, zAllocated, zRequests, zResponseBytes );
+            }
+            return pInvocation;
+        }
+    }
+
+    private static void addDifferences( Map<String, Long> pTotals, Map<String, Long> pBefore, Map<String, Long> pAfter ) {
+        for ( Map.Entry<String, Long> zEntry : pAfter.entrySet() ) {
+            Long zBefore = pBefore.get( zEntry.getKey() );
+            long zDifference = zEntry.getValue() - ((zBefore == null) ? 0 : zBefore);
+            if ( zDifference != 0 ) {
+                Long zTotal = pTotals.get( zEntry.getKey() );
+                pTotals.put( zEntry.getKey(), ((zTotal == null) ? 0 : zTotal) + zDifference );
+            }
+        }
+    }
+
+    /**
+     * Per op: the S3 requests are also broken down by (emulator request) kind, and the bytes of the List Objects
+     * ("GET Bucket") response pages are reported.
+     */
+    public static class Result {
+        public static final String LIST_KIND = "GET Bucket";
+
+        private final String mName;
+        private final List<Double> mOpsPerSecond = new ArrayList<Double>();
+        private final Map<String, Long> mRequests = new TreeMap<String, Long>(), mResponseBytes = new TreeMap<String, Long>();
+        private long mOps, mAllocated;
+
+        private Result( String pName ) {
+            mName = pName;
+        }
+
+        private void add( long pOps, long pNanos, long pAllocated, Map<String, Long> pRequests, Map<String, Long> pResponseBytes ) {
+            mOpsPerSecond.add( pOps * 1e9 / Math.max( 1, pNanos ) );
+            mOps += pOps;
+            mAllocated += pAllocated;
+            addDifferences( mRequests, Collections.<String, Long>emptyMap(), pRequests );
+            addDifferences( mResponseBytes, Collections.<String, Long>emptyMap(), pResponseBytes );
+        }
+
+        public String getName() {
+            return mName;
+        }
+
+        public double getOpsPerSecond() {
+            double zTotal = 0;
+            for ( Double zOpsPerSecond : mOpsPerSecond ) {
+                zTotal += zOpsPerSecond;
+            }
+            return zTotal / mOpsPerSecond.size();
+        }
+
+        public double getOpsPerSecondStdDev() {
+            double zMean = getOpsPerSecond(), zSquares = 0;
+            for ( Double zOpsPerSecond : mOpsPerSecond ) {
+                zSquares += (zOpsPerSecond - zMean) * (zOpsPerSecond - zMean);
+            }
+            return Math.sqrt( zSquares / mOpsPerSecond.size() );
+        }
+
+        /**
+         * @return -1 if the JVM does not support (benchmark) thread allocation measurement.
+         */
+        public double getAllocatedBytesPerOp() {
+            return (ALLOCATION_BEAN == null) ? -1 : (double) mAllocated / Math.max( 1, mOps );
+        }
+
+        public double getRequestsPerOp() {
+            long zRequests = 0;
+            for ( Long zCount : mRequests.values() ) {
+                zRequests += zCount;
+            }
+            return (double) zRequests / Math.max( 1, mOps );
+        }
+
+        /**
+         * @param pKind as in S3Emulator.getRequestCounts (e.g. "GET Bucket")
+         */
+        public double getRequestsPerOp( String pKind ) {
+            Long zRequests = mRequests.get( pKind );
+            return (zRequests == null) ? 0 : (double) zRequests / Math.max( 1, mOps );
+        }
+
+        public double getListBytesPerOp() {
+            Long zBytes = mResponseBytes.get( LIST_KIND );
+            return (zBytes == null) ? 0 : (double) zBytes / Math.max( 1, mOps );
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder( String.format( "%-36s %12.1f ops/s (+- %8.1f) %14.0f B/op %8.2f req/op %12.0f list B/op", //
+                                                                 mName, getOpsPerSecond(), getOpsPerSecondStdDev(), getAllocatedBytesPerOp(),
+                                                                 getRequestsPerOp(), getListBytesPerOp() ) );
+            String zSeparator = " [";
+            for ( String zKind : mRequests.keySet() ) {
+                sb.append( zSeparator ).append( zKind ).append( String.format( "=%.2f", getRequestsPerOp( zKind ) ) );
+                zSeparator = ", ";
+            }
+            return mRequests.isEmpty() ? sb.toString() : sb.append( ']' ).toString();
+        }
+    }
+
+    private static final com.sun.management.ThreadMXBean ALLOCATION_BEAN = allocationBean();
+
+    private static com.sun.management.ThreadMXBean allocationBean() {
+        ThreadMXBean zBean = ManagementFactory.getThreadMXBean();
+        return (zBean instanceof com.sun.management.ThreadMXBean) ? (com.sun.management.ThreadMXBean) zBean : null; // HotSpot
+    }
+
+    private static long allocatedBytes() {
+        return (ALLOCATION_BEAN == null) ? 0 : ALLOCATION_BEAN.getThreadAllocatedBytes( Thread.currentThread().getId() );
+    }
+}
@@ -0,0 +1,131 @@
+package org.litesoft.aws.s3.bench;
+
+import org.litesoft.aws.clients.*;
+import org.litesoft.aws.s3.*;
+
+import com.amazonaws.auth.*;
+import com.amazonaws.services.s3.*;
+
+import java.util.*;
+
+/**
+ * Checks the ClientFactory registry (thru AmazonS3Factory, w/ a settable clock): leases w/ the same Credentials,
+ * Endpoint, and Settings share a Client (and different ones don't), and a Client is evicted (shutdown) only once it has
+ * been w/o leases for the IdleEvictionMillis.
+ * <p/>
+ * Usage: ClientFactoryRegistryTest (exits w/ 1 on a failure)
+ */
+public class ClientFactoryRegistryTest extends SelfCheckingTest {
+    public static final long IDLE_EVICTION_MILLIS = 60 * 1000;
+    public static final String ENDPOINT_1 = "http://127.0.0.1:1", ENDPOINT_2 = "http://127.0.0.1:2";
+
+    private final List<AmazonS3> mShutdown = new ArrayList<AmazonS3>();
+    private long mNow = 1000000;
+    private final AmazonS3Factory mFactory = new AmazonS3Factory() {
+        @Override
+        protected long currentTimeMillis() {
+            return mNow;
+        }
+
+        @Override
+        protected void shutdown( AmazonS3 pClient ) {
+            mShutdown.add( pClient );
+            super.shutdown( pClient );
+        }
+    };
+
+    public ClientFactoryRegistryTest() {
+        mFactory.setIdleEvictionMillis( IDLE_EVICTION_MILLIS );
+    }
+
+    @Override
+    protected void checks() {
+        reuse();
+        providers();
+        idleEviction();
+        releaseIsIdempotent();
+    }
+
+    private void reuse() {
+        ClientSettings zSettings = ClientSettings.DEFAULT.withMaxConnections( 10 );
+        ClientFactory.Lease<AmazonS3> zLease1 = mFactory.lease( new BasicAWSCredentials( "x", "y" ), ENDPOINT_1, zSettings );
+        ClientFactory.Lease<AmazonS3> zLease2 = mFactory.lease( new BasicAWSCredentials( "x", "y" ), ENDPOINT_1, //
+                                                                ClientSettings.DEFAULT.withMaxConnections( 10 ) );
+        check( zLease1.get() == zLease2.get(), "equal Credentials, Endpoint, & Settings should share a Client" );
+        check( zLease1.get() != mFactory.lease( new BasicAWSCredentials( "x", "z" ), ENDPOINT_1, zSettings ).get(), //
+               "different Credentials should not share a Client" );
+        check( zLease1.get() != mFactory.lease( new BasicAWSCredentials( "x", "y" ), ENDPOINT_2, zSettings ).get(), //
+               "different Endpoints should not share a Client" );
+        check( zLease1.get() != mFactory.lease( new BasicAWSCredentials( "x", "y" ), ENDPOINT_1, zSettings.withSocketTimeoutMillis( 1 ) ).get(),
+               "different Settings should not share a Client" );
+        check( mFactory.lease( new BasicAWSCredentials( "x", "y" ), ENDPOINT_1, null ).get() == //
+               mFactory.lease( new BasicAWSCredentials( "x", "y" ), ENDPOINT_1, ClientSettings.DEFAULT ).get(), //
+               "null Settings should be the DEFAULT" );
+        check( mFactory.getRegisteredClients() == 5, "registered " + mFactory.getRegisteredClients() + " != 5" );
+    }
+
+    private void providers() {
+        AWSCredentialsProvider zProvider = new FixedProvider();
+        check( mFactory.lease( zProvider, ENDPOINT_1, null ).get() == mFactory.lease( zProvider, ENDPOINT_1, null ).get(), //
+               "the same Provider should share a Client" );
+        check( mFactory.lease( zProvider, ENDPOINT_1, null ).get() != //
+               mFactory.lease( new FixedProvider(), ENDPOINT_1, null ).get(), //
+               "Providers are compared by identity, so different ones should not share a Client" );
+    }
+
+    private void idleEviction() {
+        ClientFactory.Lease<AmazonS3> zLease1 = mFactory.lease( new BasicAWSCredentials( "idle", "y" ), ENDPOINT_1, null );
+        ClientFactory.Lease<AmazonS3> zLease2 = mFactory.lease( new BasicAWSCredentials( "idle", "y" ), ENDPOINT_1, null );
+        AmazonS3 zClient = zLease1.get();
+        zLease1.release();
+        mNow += 2 * IDLE_EVICTION_MILLIS;
+        mFactory.evictIdle();
+        check( !mShutdown.contains( zClient ), "a Client w/ a lease should never be evicted" );
+
+        zLease2.release(); // Now idle
+        mNow += IDLE_EVICTION_MILLIS - 1;
+        mFactory.evictIdle();
+        check( !mShutdown.contains( zClient ), "a Client idle for less than the IdleEvictionMillis should not be evicted" );
+        check( zClient == mFactory.lease( new BasicAWSCredentials( "idle", "y" ), ENDPOINT_1, null ).get(), //
+               "an idle Client should be reused until evicted" );
+        // That lease is never released, so lease another to evict
+        ClientFactory.Lease<AmazonS3> zLease3 = mFactory.lease( new BasicAWSCredentials( "evict", "y" ), ENDPOINT_1, null );
+        AmazonS3 zEvictable = zLease3.get();
+        zLease3.release();
+        int zRegistered = mFactory.getRegisteredClients();
+        mNow += IDLE_EVICTION_MILLIS;
+        int zEvicted = mFactory.evictIdle();
+        check( mShutdown.contains( zEvictable ), "a Client idle for the IdleEvictionMillis should be evicted (shutdown)" );
+        check( !mShutdown.contains( zClient ), "a (re)leased Client should not be evicted" );
+        check( mFactory.getRegisteredClients() == (zRegistered - zEvicted), "evicted Clients should leave the registry" );
+        check( zEvictable != mFactory.lease( new BasicAWSCredentials( "evict", "y" ), ENDPOINT_1, null ).get(), //
+               "a lease after eviction should get a new Client" );
+    }
+
+    private void releaseIsIdempotent() {
+        ClientFactory.Lease<AmazonS3> zLease1 = mFactory.lease( new BasicAWSCredentials( "twice", "y" ), ENDPOINT_1, null );
+        ClientFactory.Lease<AmazonS3> zLease2 = mFactory.lease( new BasicAWSCredentials( "twice", "y" ), ENDPOINT_1, null );
+        zLease1.release();
+        zLease1.release();
+        mNow += IDLE_EVICTION_MILLIS;
+        mFactory.evictIdle();
+        check( !mShutdown.contains( zLease2.get() ), "releasing a lease twice should not release another's" );
+        zLease2.release();
+    }
+
+    private static class FixedProvider implements AWSCredentialsProvider {
+        @Override
+        public AWSCredentials getCredentials() {
+            return new BasicAWSCredentials( "x", "y" );
+        }
+
+        @Override
+        public void refresh() {
+        }
+    }
+
+    public static void main( String[] args )
+            throws Exception {
+        exit( new ClientFactoryRegistryTest().run() );
+    }
+}
@@ -0,0 +1,749 @@
+package org.litesoft.aws.s3.bench;
+
+import java.io.*;
+import java.net.*;
+import java.security.*;
+import java.text.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.regex.*;
+
+/**
+ * In-process stand-in for the subset of the S3 REST API that S3Persister uses: PUT (w/ If-Match, and If-None-Match: *),
+ * PUT Copy (w/ the COPY or REPLACE metadata directive), GET (w/ Range, If-Match, and If-None-Match), HEAD, DELETE, List
+ * Objects (v1), Multi Object Delete, and Multipart Uploads (Initiate, Upload Part, Complete, and Abort).  Objects (w/
+ * their Content-Type, Content-Encoding, and user metadata) are held in memory; authentication is ignored.
+ * <p/>
+ * Requests of a kind can be made to fail (w/ a 500), e.g. to interrupt a transfer (see setFailing), and keys can be made
+ * to fail in Multi Object Deletes (w/ a per key error code, see setDeleteError).
+ * <p/>
+ * Every request is delayed by the injected latency (to approximate a round trip to S3) and counted by kind, as are the
+ * response body bytes (e.g. of the List Objects pages).
+ * <p/>
+ * A minimal (keep-alive, Content-Length only) HTTP/1.1 server is used, rather than the JDK's HttpServer, as the SDK
+ * needs the response header names in S3's exact case (e.g. "ETag").  The endpoint is an IP address, so the SDK uses
+ * path style (/bucket/key) requests.
+ * <p/>
+ * An edge emulator (see the origin constructor) serves its origin's objects at its own endpoint & latency, as a stand-in
+ * for a CloudFront distribution (w/ a CloudFront URL of: edge endpoint + "/" + bucket).
+ */
+public class S3Emulator {
+    private static final String XML_HEADER = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n";
+    private static final String S3_NAMESPACE = "http://s3.amazonaws.com/doc/2006-03-01/";
+    private static final String USER_METADATA_PREFIX = "x-amz-meta-";
+    private static final Pattern RANGE = Pattern.compile( "bytes=(\\d+)-(\\d*)" );
+    private static final Pattern COMPLETE_PART = Pattern.compile( "<PartNumber>(\\d+)</PartNumber>\\s*<ETag>(.*?)</ETag>", Pattern.DOTALL );
+    private static final Pattern DELETE_KEY = Pattern.compile( "<Key>(.*?)</Key>", Pattern.DOTALL );
+    private static final byte[] NO_BYTES = new byte[0];
+
+    private final ServerSocket mServerSocket;
+    private final ExecutorService mExecutor;
+    private final ConcurrentSkipListMap<String, StoredObject> mObjects;
+    private final ConcurrentMap<String, AtomicLong> mRequests = new ConcurrentHashMap<String, AtomicLong>();
+    private final ConcurrentMap<String, AtomicLong> mResponseBytes = new ConcurrentHashMap<String, AtomicLong>();
+    private final ConcurrentMap<String, Upload> mUploads = new ConcurrentHashMap<String, Upload>();
+    private final AtomicLong mNextUploadId = new AtomicLong();
+    private final Set<String> mFailing = new CopyOnWriteArraySet<String>();
+    private final ConcurrentMap<String, DeleteError> mDeleteErrors = new ConcurrentHashMap<String, DeleteError>();
+    private volatile long mLatencyMillis;
+
+    public S3Emulator( long pLatencyMillis )
+            throws IOException {
+        this( pLatencyMillis, null );
+    }
+
+    /**
+     * @param pOrigin null for a stand alone emulator, otherwise the emulator whose objects this (edge) one serves
+     */
+    public S3Emulator( long pLatencyMillis, S3Emulator pOrigin )
+            throws IOException {
+        mObjects = (pOrigin != null) ? pOrigin.mObjects : new ConcurrentSkipListMap<String, StoredObject>();
+        mLatencyMillis = Math.max( 0, pLatencyMillis );
+        mServerSocket = new ServerSocket( 0, 256, InetAddress.getByName( "127.0.0.1" ) );
+        mExecutor = Executors.newCachedThreadPool( new ThreadFactory() {
+            @Override
+            public Thread newThread( Runnable pRunnable ) {
+                Thread zThread = new Thread( pRunnable, "S3Emulator" );
+                zThread.setDaemon( true );
+                return zThread;
+            }
+        } );
+        mExecutor.execute( new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        } );
+    }
+
+    public String getEndpoint() {
+        return "http://127.0.0.1:" + mServerSocket.getLocalPort();
+    }
+
+    public String getCloudFrontURL( String pBucket ) {
+        return getEndpoint() + "/" + pBucket;
+    }
+
+    public long getLatencyMillis() {
+        return mLatencyMillis;
+    }
+
+    public void setLatencyMillis( long pLatencyMillis ) {
+        mLatencyMillis = Math.max( 0, pLatencyMillis );
+    }
+
+    public long getRequestCount() {
+        long zTotal = 0;
+        for ( AtomicLong zCount : mRequests.values() ) {
+            zTotal += zCount.get();
+        }
+        return zTotal;
+    }
+
+    /**
+     * @return a snapshot of the request counts by kind (e.g. "GET Object", "GET Bucket").
+     */
+    public Map<String, Long> getRequestCounts() {
+        return snapshot( mRequests );
+    }
+
+    /**
+     * @return a snapshot of the response body bytes by (request) kind (e.g. "GET Bucket" for the List Objects pages).
+     */
+    public Map<String, Long> getResponseBytes() {
+        return snapshot( mResponseBytes );
+    }
+
+    /**
+     * @param pKind as in getRequestCounts (e.g. "PUT Object (Part)")
+     */
+    public void setFailing( String pKind, boolean pFailing ) {
+        if ( pFailing ) {
+            mFailing.add( pKind );
+        } else {
+            mFailing.remove( pKind );
+        }
+    }
+
+    /**
+     * Make the next pTimes Multi Object Deletes of pKey (in any bucket) report it w/ the pCode error (and leave it).
+     */
+    public void setDeleteError( String pKey, String pCode, int pTimes ) {
+        mDeleteErrors.put( pKey, new DeleteError( pCode, pTimes ) );
+    }
+
+    /**
+     * @return the number of Multipart Uploads initiated, but neither completed nor aborted.
+     */
+    public int getUploadCount() {
+        return mUploads.size();
+    }
+
+    public int getObjectCount() {
+        return mObjects.size();
+    }
+
+    /**
+     * @return the bytes held by the stored objects, and the parts of the Multipart Uploads in progress.
+     */
+    public long getStoredBytes() {
+        long zBytes = 0;
+        for ( StoredObject zObject : mObjects.values() ) {
+            zBytes += zObject.mBytes.length;
+        }
+        for ( Upload zUpload : mUploads.values() ) {
+            for ( StoredObject zPart : zUpload.mParts.values() ) {
+                zBytes += zPart.mBytes.length;
+            }
+        }
+        return zBytes;
+    }
+
+    /**
+     * Store an object directly (w/o a request), e.g. to create many objects quickly for a benchmark.
+     */
+    public void putObject( String pBucket, String pKey, byte[] pBytes ) {
+        mObjects.put( pBucket + "/" + pKey, new StoredObject( pBytes, null, null, null ) );
+    }
+
+    public void clear() {
+        mObjects.clear();
+    }
+
+    public void stop() {
+        try {
+            mServerSocket.close();
+        }
+        catch ( IOException e ) {
+            // Ignore - stopping
+        }
+        mExecutor.shutdownNow();
+    }
+
+    private void accept() {
+        while ( !mServerSocket.isClosed() ) {
+            try {
+                final Socket zSocket = mServerSocket.accept();
+                mExecutor.execute( new Runnable() {
+                    @Override
+                    public void run() {
+                        serve( zSocket );
+                    }
+                } );
+            }
+            catch ( IOException e ) {
+                if ( !mServerSocket.isClosed() ) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    private void serve( Socket pSocket ) {
+        try {
+            pSocket.setTcpNoDelay( true );
+            InputStream zIn = new BufferedInputStream( pSocket.getInputStream(), 64 * 1024 );
+            OutputStream zOut = new BufferedOutputStream( pSocket.getOutputStream(), 64 * 1024 );
+            for ( Request zRequest; null != (zRequest = Request.read( zIn, zOut )); ) {
+                String zKind = kind( zRequest );
+                Response zResponse;
+                try {
+                    zResponse = handle( zRequest, zKind );
+                }
+                catch ( RuntimeException e ) {
+                    e.printStackTrace();
+                    zResponse = error( 500, "InternalError", String.valueOf( e ) );
+                }
+                boolean zHead = "HEAD".equals( zRequest.mMethod );
+                zResponse.write( zOut, zHead );
+                add( mResponseBytes, zKind, zHead ? 0 : zResponse.mLength );
+                if ( "close".equalsIgnoreCase( zRequest.header( "Connection" ) ) ) {
+                    break;
+                }
+            }
+        }
+        catch ( IOException e ) {
+            // Client went away
+        }
+        finally {
+            try {
+                pSocket.close();
+            }
+            catch ( IOException e ) {
+                // Ignore - done
+            }
+        }
+    }
+
+    /**
+     * @return the kind of pRequest, as counted (e.g. "GET Bucket", "PUT Object (Part)").
+     */
+    private static String kind( Request pRequest ) {
+        int zSlash = pRequest.mPath.indexOf( '/', 1 );
+        boolean zBucketRequest = (zSlash == -1) || (zSlash == pRequest.mPath.length() - 1); // No key
+        Map<String, String> zQuery = pRequest.mQuery;
+        return pRequest.mMethod + (zBucketRequest ? " Bucket" : " Object") + (zQuery.containsKey( "delete" ) ? " (Multi Delete)" : "") + //
+               (zQuery.containsKey( "uploads" ) ? " (Initiate Multipart)" : "") + //
+               (zQuery.containsKey( "partNumber" ) ? " (Part)" : zQuery.containsKey( "uploadId" ) ? " (Multipart)" : "");
+    }
+
+    private Response handle( Request pRequest, String pKind )
+            throws IOException {
+        String zMethod = pRequest.mMethod;
+        String zPath = pRequest.mPath; // decoded: /bucket[/key]
+        int zSlash = zPath.indexOf( '/', 1 );
+        String zBucket = (zSlash == -1) ? zPath.substring( 1 ) : zPath.substring( 1, zSlash );
+        String zKey = (zSlash == -1) ? "" : zPath.substring( zSlash + 1 );
+        boolean zBucketRequest = (zKey.length() == 0);
+        Map<String, String> zQuery = pRequest.mQuery;
+        add( mRequests, pKind, 1 );
+        injectLatency();
+        if ( mFailing.contains( pKind ) ) {
+            return error( 500, "InternalError", "Failing: " + pKind );
+        }
+        if ( zBucketRequest ) {
+            if ( "GET".equals( zMethod ) ) {
+                return listObjects( zBucket, zQuery );
+            }
+            if ( "POST".equals( zMethod ) && zQuery.containsKey( "delete" ) ) {
+                return deleteObjects( zBucket, new String( pRequest.mBody, "UTF-8" ) );
+            }
+            return error( 501, "NotImplemented", zMethod + " on a Bucket" );
+        }
+        if ( zQuery.containsKey( "acl" ) ) {
+            return error( 501, "NotImplemented", "ACLs" );
+        }
+        String zStorageKey = zBucket + "/" + zKey;
+        if ( zQuery.containsKey( "uploads" ) || zQuery.containsKey( "uploadId" ) ) {
+            return multipart( pRequest, zBucket, zKey, zStorageKey );
+        }
+        if ( "PUT".equals( zMethod ) ) {
+            String zCopySource = pRequest.header( "x-amz-copy-source" );
+            if ( zCopySource != null ) {
+                return copyObject( pRequest, URLDecoder.decode( zCopySource, "UTF-8" ), zStorageKey );
+            }
+            StoredObject zObject = new StoredObject( pRequest.mBody, pRequest.header( "Content-Type" ), pRequest.header( "Content-Encoding" ), //
+                                                     pRequest.userMetadata() );
+            if ( !putObject( pRequest, zStorageKey, zObject ) ) {
+                return error( 412, "PreconditionFailed", "At least one of the preconditions you specified did not hold." );
+            }
+            return new Response( 200 ).header( "ETag", quote( zObject.mETag ) );
+        }
+        if ( "GET".equals( zMethod ) || "HEAD".equals( zMethod ) ) {
+            return getObject( pRequest, zStorageKey );
+        }
+        if ( "DELETE".equals( zMethod ) ) {
+            mObjects.remove( zStorageKey );
+            return new Response( 204 );
+        }
+        return error( 501, "NotImplemented", zMethod + " on an Object" );
+    }
+
+    private Response multipart( Request pRequest, String pBucket, String pKey, String pStorageKey )
+            throws IOException {
+        String zMethod = pRequest.mMethod;
+        if ( "POST".equals( zMethod ) && pRequest.mQuery.containsKey( "uploads" ) ) {
+            String zUploadId = "upload-" + mNextUploadId.incrementAndGet();
+            mUploads.put( zUploadId, new Upload( pStorageKey, pRequest.header( "Content-Type" ), pRequest.header( "Content-Encoding" ), //
+                                                 pRequest.userMetadata() ) );
+            return xml( 200, "<InitiateMultipartUploadResult xmlns=\"" + S3_NAMESPACE + "\"><Bucket>" + escape( pBucket ) + "</Bucket><Key>" + //
+                             escape( pKey ) + "</Key><UploadId>" + zUploadId + "</UploadId></InitiateMultipartUploadResult>" );
+        }
+        String zUploadId = pRequest.mQuery.get( "uploadId" );
+        Upload zUpload = mUploads.get( zUploadId );
+        if ( (zUpload == null) || !zUpload.mStorageKey.equals( pStorageKey ) ) {
+            return error( 404, "NoSuchUpload", "The specified upload does not exist." );
+        }
+        if ( "PUT".equals( zMethod ) && pRequest.mQuery.containsKey( "partNumber" ) ) {
+            StoredObject zPart = new StoredObject( pRequest.mBody, null, null, null );
+            zUpload.mParts.put( Integer.parseInt( pRequest.mQuery.get( "partNumber" ) ), zPart );
+            return new Response( 200 ).header( "ETag", quote( zPart.mETag ) );
+        }
+        if ( "DELETE".equals( zMethod ) ) {
+            mUploads.remove( zUploadId );
+            return new Response( 204 );
+        }
+        if ( !"POST".equals( zMethod ) ) {
+            return error( 501, "NotImplemented", zMethod + " on a Multipart Upload" );
+        }
+        ByteArrayOutputStream zBytes = new ByteArrayOutputStream();
+        for ( Matcher zMatcher = COMPLETE_PART.matcher( new String( pRequest.mBody, "UTF-8" ) ); zMatcher.find(); ) {
+            StoredObject zPart = zUpload.mParts.get( Integer.parseInt( zMatcher.group( 1 ) ) );
+            if ( (zPart == null) || !unescape( zMatcher.group( 2 ) ).replace( "\"", "" ).equals( zPart.mETag ) ) {
+                return error( 400, "InvalidPart", "One or more of the specified parts could not be found." );
+            }
+            zBytes.write( zPart.mBytes );
+        }
+        mUploads.remove( zUploadId );
+        StoredObject zObject = new StoredObject( zBytes.toByteArray(), zUpload.mContentType, zUpload.mContentEncoding, zUpload.mUserMetadata );
+        mObjects.put( pStorageKey, zObject );
+        return xml( 200, "<CompleteMultipartUploadResult xmlns=\"" + S3_NAMESPACE + "\"><Location>/" + escape( pStorageKey ) + "</Location><Bucket>" + //
+                         escape( pBucket ) + "</Bucket><Key>" + escape( pKey ) + "</Key><ETag>" + escape( quote( zObject.mETag ) ) + //
+                         "</ETag></CompleteMultipartUploadResult>" );
+    }
+
+    private Response copyObject( Request pRequest, String pCopySource, String pStorageKey )
+            throws IOException {
+        StoredObject zSource = mObjects.get( pCopySource.startsWith( "/" ) ? pCopySource.substring( 1 ) : pCopySource );
+        if ( zSource == null ) {
+            return error( 404, "NoSuchKey", pCopySource );
+        }
+        StoredObject zObject = "REPLACE".equalsIgnoreCase( pRequest.header( "x-amz-metadata-directive" ) ) ? //
+                               new StoredObject( zSource.mBytes, pRequest.header( "Content-Type" ), pRequest.header( "Content-Encoding" ), //
+                                                 pRequest.userMetadata() ) : //
+                               new StoredObject( zSource.mBytes, zSource.mContentType, zSource.mContentEncoding, zSource.mUserMetadata );
+        mObjects.put( pStorageKey, zObject );
+        return xml( 200, "<CopyObjectResult xmlns=\"" + S3_NAMESPACE + "\"><LastModified>" + iso8601( zObject.mLastModified ) + //
+                         "</LastModified><ETag>" + escape( quote( zObject.mETag ) ) + "</ETag></CopyObjectResult>" );
+    }
+
+    /**
+     * @return false if the (conditional) PUT's precondition did not hold.
+     */
+    private boolean putObject( Request pRequest, String pStorageKey, StoredObject pObject ) {
+        String zIfMatch = pRequest.header( "If-Match" );
+        if ( zIfMatch != null ) {
+            StoredObject zCurrent = mObjects.get( pStorageKey );
+            return (zCurrent != null) && zIfMatch.replace( "\"", "" ).equals( zCurrent.mETag ) && //
+                   mObjects.replace( pStorageKey, zCurrent, pObject ); // Atomic: so only one of concurrent writers wins
+        }
+        if ( "*".equals( pRequest.header( "If-None-Match" ) ) ) {
+            return (mObjects.putIfAbsent( pStorageKey, pObject ) == null);
+        }
+        mObjects.put( pStorageKey, pObject );
+        return true;
+    }
+
+    private Response getObject( Request pRequest, String pStorageKey )
+            throws IOException {
+        StoredObject zObject = mObjects.get( pStorageKey );
+        if ( zObject == null ) {
+            return error( 404, "NoSuchKey", "The specified key does not exist." );
+        }
+        String zIfMatch = pRequest.header( "If-Match" );
+        if ( (zIfMatch != null) && !zIfMatch.replace( "\"", "" ).equals( zObject.mETag ) ) {
+            return error( 412, "PreconditionFailed", "At least one of the preconditions you specified did not hold." );
+        }
+        String zIfNoneMatch = pRequest.header( "If-None-Match" );
+        if ( (zIfNoneMatch != null) && zIfNoneMatch.replace( "\"", "" ).equals( zObject.mETag ) ) {
+            return new Response( 304 ).header( "ETag", quote( zObject.mETag ) );
+        }
+        int zStart = 0, zEnd = zObject.mBytes.length; // exclusive
+        Response zResponse = new Response( 200 );
+        String zRange = pRequest.header( "Range" );
+        Matcher zMatcher = (zRange == null) ? null : RANGE.matcher( zRange );
+        if ( (zMatcher != null) && zMatcher.matches() ) {
+            zStart = (int) Math.min( zEnd, Long.parseLong( zMatcher.group( 1 ) ) );
+            if ( zMatcher.group( 2 ).length() != 0 ) {
+                zEnd = (int) Math.min( zEnd, Long.parseLong( zMatcher.group( 2 ) ) + 1 );
+            }
+            zResponse = new Response( 206 ).header( "Content-Range", "bytes " + zStart + "-" + (zEnd - 1) + "/" + zObject.mBytes.length );
+        }
+        for ( Map.Entry<String, String> zEntry : zObject.mUserMetadata.entrySet() ) {
+            zResponse.header( USER_METADATA_PREFIX + zEntry.getKey(), zEntry.getValue() );
+        }
+        return zResponse.header( "ETag", quote( zObject.mETag ) ).header( "Last-Modified", rfc822( zObject.mLastModified ) ) //
+                .header( "Content-Type", zObject.mContentType ).header( "Content-Encoding", zObject.mContentEncoding ) //
+                .header( "Accept-Ranges", "bytes" ) //
+                .body( zObject.mBytes, zStart, zEnd - zStart );
+    }
+
+    private Response listObjects( String pBucket, Map<String, String> pQuery )
+            throws IOException {
+        String zPrefix = nullToEmpty( pQuery.get( "prefix" ) );
+        String zMarker = nullToEmpty( pQuery.get( "marker" ) );
+        String zDelimiter = pQuery.get( "delimiter" );
+        boolean zUrlEncode = "url".equals( pQuery.get( "encoding-type" ) );
+        int zMaxKeys = pQuery.containsKey( "max-keys" ) ? Math.min( 1000, Integer.parseInt( pQuery.get( "max-keys" ) ) ) : 1000;
+        String zBucketPrefix = pBucket + "/";
+        String zFrom = zBucketPrefix + ((zMarker.compareTo( zPrefix ) > 0) ? zMarker : zPrefix);
+        StringBuilder zContents = new StringBuilder();
+        Set<String> zCommonPrefixes = new LinkedHashSet<String>();
+        int zCount = 0;
+        String zLast = null;
+        boolean zTruncated = false;
+        for ( Map.Entry<String, StoredObject> zEntry : mObjects.tailMap( zFrom, true ).entrySet() ) {
+            String zKey = zEntry.getKey();
+            if ( !zKey.startsWith( zBucketPrefix + zPrefix ) ) {
+                break;
+            }
+            zKey = zKey.substring( zBucketPrefix.length() );
+            if ( zKey.compareTo( zMarker ) <= 0 ) {
+                continue;
+            }
+            String zCommonPrefix = null;
+            if ( (zDelimiter != null) && (zDelimiter.length() != 0) ) {
+                int zAt = zKey.indexOf( zDelimiter, zPrefix.length() );
+                if ( zAt != -1 ) {
+                    zCommonPrefix = zKey.substring( 0, zAt + zDelimiter.length() );
+                    if ( zCommonPrefixes.contains( zCommonPrefix ) || zMarker.startsWith( zCommonPrefix ) ) {
+                        continue;
+                    }
+                }
+            }
+            if ( zCount == zMaxKeys ) {
+                zTruncated = true;
+                break;
+            }
+            zCount++;
+            if ( zCommonPrefix != null ) {
+                zCommonPrefixes.add( zLast = zCommonPrefix );
+                continue;
+            }
+            StoredObject zObject = zEntry.getValue();
+            zContents.append( "<Contents><Key>" ).append( encode( zKey, zUrlEncode ) ).append( "</Key><LastModified>" ) //
+                    .append( iso8601( zObject.mLastModified ) ).append( "</LastModified><ETag>" ).append( escape( quote( zObject.mETag ) ) ) //
+                    .append( "</ETag><Size>" ).append( zObject.mBytes.length ).append( "</Size><StorageClass>STANDARD</StorageClass></Contents>" );
+            zLast = zKey;
+        }
+        StringBuilder sb = new StringBuilder( "<ListBucketResult xmlns=\"" + S3_NAMESPACE + "\">" );
+        sb.append( "<Name>" ).append( escape( pBucket ) ).append( "</Name><Prefix>" ).append( encode( zPrefix, zUrlEncode ) ) //
+                .append( "</Prefix><Marker>" ).append( encode( zMarker, zUrlEncode ) ).append( "</Marker>" );
+        if ( zTruncated && (zDelimiter != null) ) {
+            sb.append( "<NextMarker>" ).append( encode( zLast, zUrlEncode ) ).append( "</NextMarker>" );
+        }
+        sb.append( "<MaxKeys>" ).append( zMaxKeys ).append( "</MaxKeys>" );
+        if ( zDelimiter != null ) {
+            sb.append( "<Delimiter>" ).append( encode( zDelimiter, zUrlEncode ) ).append( "</Delimiter>" );
+        }
+        if ( zUrlEncode ) {
+            sb.append( "<EncodingType>url</EncodingType>" );
+        }
+        sb.append( "<IsTruncated>" ).append( zTruncated ).append( "</IsTruncated>" ).append( zContents );
+        for ( String zCommonPrefix : zCommonPrefixes ) {
+            sb.append( "<CommonPrefixes><Prefix>" ).append( encode( zCommonPrefix, zUrlEncode ) ).append( "</Prefix></CommonPrefixes>" );
+        }
+        return xml( 200, sb.append( "</ListBucketResult>" ).toString() );
+    }
+
+    private Response deleteObjects( String pBucket, String pRequest )
+            throws IOException {
+        boolean zQuiet = pRequest.contains( "<Quiet>true</Quiet>" );
+        StringBuilder sb = new StringBuilder( "<DeleteResult xmlns=\"" + S3_NAMESPACE + "\">" );
+        for ( Matcher zMatcher = DELETE_KEY.matcher( pRequest ); zMatcher.find(); ) {
+            String zKey = unescape( zMatcher.group( 1 ) );
+            DeleteError zError = mDeleteErrors.get( zKey );
+            if ( (zError != null) && (zError.mRemaining.getAndDecrement() > 0) ) {
+                sb.append( "<Error><Key>" ).append( escape( zKey ) ).append( "</Key><Code>" ).append( zError.mCode ) //
+                        .append( "</Code><Message>" ).append( zError.mCode ).append( "</Message></Error>" );
+                continue;
+            }
+            mObjects.remove( pBucket + "/" + zKey );
+            if ( !zQuiet ) {
+                sb.append( "<Deleted><Key>" ).append( escape( zKey ) ).append( "</Key></Deleted>" );
+            }
+        }
+        return xml( 200, sb.append( "</DeleteResult>" ).toString() );
+    }
+
+    private static void add( ConcurrentMap<String, AtomicLong> pCounts, String pKind, long pDelta ) {
+        AtomicLong zCount = pCounts.get( pKind );
+        if ( zCount == null ) {
+            AtomicLong zExisting = pCounts.putIfAbsent( pKind, zCount = new AtomicLong() );
+            if ( zExisting != null ) {
+                zCount = zExisting;
+            }
+        }
+        zCount.addAndGet( pDelta );
+    }
+
+    private static Map<String, Long> snapshot( ConcurrentMap<String, AtomicLong> pCounts ) {
+        Map<String, Long> zCounts = new TreeMap<String, Long>();
+        for ( Map.Entry<String, AtomicLong> zEntry : pCounts.entrySet() ) {
+            zCounts.put( zEntry.getKey(), zEntry.getValue().get() );
+        }
+        return zCounts;
+    }
+
+    private void injectLatency() {
+        long zLatencyMillis = mLatencyMillis;
+        if ( zLatencyMillis > 0 ) {
+            try {
+                Thread.sleep( zLatencyMillis );
+            }
+            catch ( InterruptedException e ) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static Response xml( int pStatus, String pXml )
+            throws IOException {
+        byte[] zBytes = (XML_HEADER + pXml).getBytes( "UTF-8" );
+        return new Response( pStatus ).header( "Content-Type", "application/xml" ).body( zBytes, 0, zBytes.length );
+    }
+
+    private static Response error( int pStatus, String pCode, String pMessage )
+            throws IOException {
+        return xml( pStatus, "<Error><Code>" + pCode + "</Code><Message>" + escape( pMessage ) + //
+                             "</Message><RequestId>S3Emulator</RequestId><HostId>S3Emulator</HostId></Error>" );
+    }
+
+    private static String nullToEmpty( String pValue ) {
+        return (pValue == null) ? "" : pValue;
+    }
+
+    private static String encode( String pText, boolean pUrlEncode )
+            throws UnsupportedEncodingException {
+        return pUrlEncode ? URLEncoder.encode( pText, "UTF-8" ).replace( "+", "%20" ) : escape( pText );
+    }
+
+    private static String quote( String pETag ) {
+        return "\"" + pETag + "\"";
+    }
+
+    private static String escape( String pText ) {
+        return pText.replace( "&", "&amp;" ).replace( "<", "&lt;" ).replace( ">", "&gt;" ).replace( "\"", "&quot;" );
+    }
+
+    private static String unescape( String pText ) {
+        return pText.replace( "&quot;", "\"" ).replace( "&gt;", ">" ).replace( "&lt;", "<" ).replace( "&amp;", "&" );
+    }
+
+    private static String iso8601( long pMillis ) {
+        SimpleDateFormat zFormat = new SimpleDateFormat( "yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.US );
+        zFormat.setTimeZone( TimeZone.getTimeZone( "GMT" ) );
+        return zFormat.format( new Date( pMillis ) );
+    }
+
+    private static String rfc822( long pMillis ) {
+        SimpleDateFormat zFormat = new SimpleDateFormat( "EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US );
+        zFormat.setTimeZone( TimeZone.getTimeZone( "GMT" ) );
+        return zFormat.format( new Date( pMillis ) );
+    }
+
+    private static class Request {
+        private final String mMethod, mPath;
+        private final Map<String, String> mQuery = new HashMap<String, String>();
+        private final Map<String, String> mHeaders = new TreeMap<String, String>( String.CASE_INSENSITIVE_ORDER );
+        private byte[] mBody = NO_BYTES;
+
+        private Request( String pMethod, String pTarget )
+                throws UnsupportedEncodingException {
+            mMethod = pMethod;
+            int zAt = pTarget.indexOf( '?' );
+            mPath = URLDecoder.decode( ((zAt == -1) ? pTarget : pTarget.substring( 0, zAt )).replace( "+", "%2B" ), "UTF-8" );
+            if ( zAt != -1 ) {
+                for ( String zParameter : pTarget.substring( zAt + 1 ).split( "&" ) ) {
+                    if ( zParameter.length() != 0 ) {
+                        int zEquals = zParameter.indexOf( '=' );
+                        mQuery.put( URLDecoder.decode( (zEquals == -1) ? zParameter : zParameter.substring( 0, zEquals ), "UTF-8" ), //
+                                    (zEquals == -1) ? "" : URLDecoder.decode( zParameter.substring( zEquals + 1 ), "UTF-8" ) );
+                    }
+                }
+            }
+        }
+
+        String header( String pName ) {
+            return mHeaders.get( pName );
+        }
+
+        /**
+         * @return the x-amz-meta- headers (w/o that prefix).
+         */
+        Map<String, String> userMetadata() {
+            Map<String, String> zUserMetadata = new TreeMap<String, String>();
+            for ( Map.Entry<String, String> zEntry : mHeaders.entrySet() ) {
+                if ( zEntry.getKey().toLowerCase().startsWith( USER_METADATA_PREFIX ) ) {
+                    zUserMetadata.put( zEntry.getKey().substring( USER_METADATA_PREFIX.length() ).toLowerCase(), zEntry.getValue() );
+                }
+            }
+            return zUserMetadata;
+        }
+
+        /**
+         * @return null at the end of the connection.
+         */
+        static Request read( InputStream pIn, OutputStream pOut )
+                throws IOException {
+            String zRequestLine = readLine( pIn );
+            if ( (zRequestLine == null) || (zRequestLine.length() == 0) ) {
+                return null;
+            }
+            String[] zParts = zRequestLine.split( " " );
+            if ( zParts.length < 2 ) {
+                return null; // Not a request line (e.g. the rest of a body the client gave up sending) - drop the connection
+            }
+            Request zRequest = new Request( zParts[0], zParts[1] );
+            for ( String zLine; (null != (zLine = readLine( pIn ))) && (zLine.length() != 0); ) {
+                int zColon = zLine.indexOf( ':' );
+                zRequest.mHeaders.put( zLine.substring( 0, zColon ).trim(), zLine.substring( zColon + 1 ).trim() );
+            }
+            String zContentLength = zRequest.header( "Content-Length" );
+            if ( (zContentLength != null) && (Integer.parseInt( zContentLength ) != 0) ) {
+                if ( "100-continue".equalsIgnoreCase( zRequest.header( "Expect" ) ) ) {
+                    pOut.write( "HTTP/1.1 100 Continue\r\n\r\n".getBytes( "ISO-8859-1" ) );
+                    pOut.flush();
+                }
+                zRequest.mBody = new byte[Integer.parseInt( zContentLength )];
+                new DataInputStream( pIn ).readFully( zRequest.mBody );
+            }
+            return zRequest;
+        }
+
+        private static String readLine( InputStream pIn )
+                throws IOException {
+            StringBuilder sb = new StringBuilder();
+            for ( int zByte; -1 != (zByte = pIn.read()); ) {
+                if ( zByte == '\n' ) {
+                    int zLength = sb.length();
+                    return ((zLength != 0) && (sb.charAt( zLength - 1 ) == '\r')) ? sb.substring( 0, zLength - 1 ) : sb.toString();
+                }
+                sb.append( (char) zByte );
+            }
+            return (sb.length() == 0) ? null : sb.toString();
+        }
+    }
+
+    private static class Response {
+        private final int mStatus;
+        private final Map<String, String> mHeaders = new LinkedHashMap<String, String>(); // Exact case (e.g. "ETag")
+        private byte[] mBody = NO_BYTES;
+        private int mOffset, mLength;
+
+        private Response( int pStatus ) {
+            mStatus = pStatus;
+        }
+
+        Response header( String pName, String pValue ) {
+            if ( pValue != null ) {
+                mHeaders.put( pName, pValue );
+            }
+            return this;
+        }
+
+        Response body( byte[] pBody, int pOffset, int pLength ) {
+            mBody = pBody;
+            mOffset = pOffset;
+            mLength = pLength;
+            return this;
+        }
+
+        void write( OutputStream pOut, boolean pHead )
+                throws IOException {
+            StringBuilder sb = new StringBuilder( "HTTP/1.1 " ).append( mStatus ).append( (mStatus < 300) ? " OK" : " Error" ).append( "\r\n" );
+            for ( Map.Entry<String, String> zEntry : mHeaders.entrySet() ) {
+                sb.append( zEntry.getKey() ).append( ": " ).append( zEntry.getValue() ).append( "\r\n" );
+            }
+            if ( mStatus != 204 ) {
+                sb.append( "Content-Length: " ).append( mLength ).append( "\r\n" );
+            }
+            sb.append( "Date: " ).append( rfc822( System.currentTimeMillis() ) ).append( "\r\n" );
+            sb.append( "x-amz-request-id: S3Emulator\r\n\r\n" );
+            pOut.write( sb.toString().getBytes( "ISO-8859-1" ) );
+            if ( !pHead ) {
+                pOut.write( mBody, mOffset, mLength );
+            }
+            pOut.flush();
+        }
+    }
+
+    private static class Upload {
+        private final String mStorageKey, mContentType, mContentEncoding;
+        private final Map<String, String> mUserMetadata;
+        private final ConcurrentMap<Integer, StoredObject> mParts = new ConcurrentHashMap<Integer, StoredObject>();
+
+        private Upload( String pStorageKey, String pContentType, String pContentEncoding, Map<String, String> pUserMetadata ) {
+            mStorageKey = pStorageKey;
+            mContentType = pContentType;
+            mContentEncoding = pContentEncoding;
+            mUserMetadata = pUserMetadata;
+        }
+    }
+
+    private static class DeleteError {
+        private final String mCode;
+        private final AtomicInteger mRemaining;
+
+        private DeleteError( String pCode, int pTimes ) {
+            mCode = pCode;
+            mRemaining = new AtomicInteger( pTimes );
+        }
+    }
+
+    private static class StoredObject {
+        private final byte[] mBytes;
+        private final String mContentType, mContentEncoding; // Content-Encoding may be null
+        private final Map<String, String> mUserMetadata; // w/o the USER_METADATA_PREFIX
+        private final String mETag;
+        private final long mLastModified = System.currentTimeMillis();
+
+        private StoredObject( byte[] pBytes, String pContentType, String pContentEncoding, Map<String, String> pUserMetadata ) {
+            mBytes = pBytes;
+            mContentType = (pContentType != null) ? pContentType : "binary/octet-stream";
+            mContentEncoding = pContentEncoding;
+            mUserMetadata = (pUserMetadata != null) ? pUserMetadata : Collections.<String, String>emptyMap();
+            try {
+                StringBuilder sb = new StringBuilder();
+                for ( byte zByte : MessageDigest.getInstance( "MD5" ).digest( pBytes ) ) {
+                    sb.append( Character.forDigit( (zByte >> 4) & 0xF, 16 ) ).append( Character.forDigit( zByte & 0xF, 16 ) );
+                }
+                mETag = sb.toString();
+            }
+            catch ( NoSuchAlgorithmException e ) {
+                throw new IllegalStateException( e );
+            }
+        }
+    }
+}
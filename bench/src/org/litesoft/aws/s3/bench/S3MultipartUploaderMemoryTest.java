@@ -0,0 +1,165 @@
+package org.litesoft.aws.s3.bench;
+
+import org.litesoft.aws.credentials.*;
+import org.litesoft.aws.s3.*;
+
+import java.io.*;
+import java.lang.management.*;
+import java.security.*;
+import java.util.*;
+
+/**
+ * Checks, against an in-process S3Emulator, that a S3MultipartUploader's memory stays at about (PartsInFlight *
+ * PartSize) whatever the object size: the contents are never read more than PartsInFlight parts ahead of the parts S3
+ * has received, and the retained heap (less what the emulator stores, and its in flight request bodies) does not grow
+ * w/ the object.  The uploaded object is then read back and compared (MD5).
+ * <p/>
+ * Usage: S3MultipartUploaderMemoryTest [parts [latencyMillis]] (exits w/ 1 on a failure)
+ */
+public class S3MultipartUploaderMemoryTest extends SelfCheckingTest {
+    public static final int PART_SIZE = S3MultipartUploader.MIN_PART_SIZE;
+    public static final int PARTS_IN_FLIGHT = 2;
+    public static final int DEFAULT_PARTS = 24;
+    public static final long DEFAULT_LATENCY_MILLIS = 20;
+
+    private final S3Emulator mEmulator;
+    private final S3Persister mPersister;
+    private final int mParts;
+    private long mReadAheadBytes, mRetainedBytes;
+
+    public S3MultipartUploaderMemoryTest( S3Emulator pEmulator, CachedAWSCredentials pCredentials, int pParts )
+            throws IOException {
+        mEmulator = pEmulator;
+        mPersister = new S3Persister( pCredentials, new Bucket( pEmulator.getEndpoint(), S3PersisterBenchmarks.BUCKET ) ) //
+                .with( new S3MultipartUploader( PART_SIZE, PARTS_IN_FLIGHT ) ); // Its part buffers are in the baseline
+        mParts = pParts;
+    }
+
+    @Override
+    protected void checks()
+            throws Exception {
+        long zBaseline = retainedHeap();
+        Contents zContents = new Contents( (long) mParts * PART_SIZE, zBaseline );
+        mPersister.putFile( "multipart/object", zContents );
+
+        long zMaxReadAhead = (long) PARTS_IN_FLIGHT * PART_SIZE;
+        check( mReadAheadBytes <= zMaxReadAhead, "read ahead " + mReadAheadBytes + "b > " + zMaxReadAhead + "b" );
+        // The emulator's request bodies (one per part in flight) are on this heap too, plus a part of slack
+        long zMaxRetained = (2L * PARTS_IN_FLIGHT + 1) * PART_SIZE;
+        check( mRetainedBytes <= zMaxRetained, "retained " + mRetainedBytes + "b > " + zMaxRetained + "b" );
+        check( mEmulator.getUploadCount() == 0, "uploads left open: " + mEmulator.getUploadCount() );
+        Long zParts = mEmulator.getRequestCounts().get( "PUT Object (Part)" );
+        check( (zParts != null) && (zParts == mParts), "parts sent " + zParts + " != " + mParts );
+        check( zContents.getMD5().equals( md5( mPersister.getFile( "multipart/object" ) ) ), "read back content differs" );
+    }
+
+    @Override
+    public String toString() {
+        return "S3MultipartUploader (" + PARTS_IN_FLIGHT + " x " + (PART_SIZE / (1024 * 1024)) + "MB parts) of " + mParts + " parts: max read ahead=" +
+               (mReadAheadBytes / 1024) + "KB, max retained=" + (mRetainedBytes / 1024) + "KB";
+    }
+
+    private long partsReceived() {
+        Long zParts = mEmulator.getRequestCounts().get( "PUT Object (Part)" );
+        return (zParts == null) ? 0 : zParts;
+    }
+
+    private static long retainedHeap() {
+        MemoryMXBean zMemory = ManagementFactory.getMemoryMXBean();
+        System.gc();
+        System.gc();
+        return zMemory.getHeapMemoryUsage().getUsed();
+    }
+
+    private static String md5( InputStream pIn )
+            throws IOException, NoSuchAlgorithmException {
+        MessageDigest zDigest = MessageDigest.getInstance( "MD5" );
+        byte[] zBuffer = new byte[64 * 1024];
+        try {
+            for ( int zRead; -1 != (zRead = pIn.read( zBuffer )); ) {
+                zDigest.update( zBuffer, 0, zRead );
+            }
+        }
+        finally {
+            pIn.close();
+        }
+        return hex( zDigest.digest() );
+    }
+
+    private static String hex( byte[] pBytes ) {
+        StringBuilder sb = new StringBuilder();
+        for ( byte zByte : pBytes ) {
+            sb.append( Character.forDigit( (zByte >> 4) & 0xF, 16 ) ).append( Character.forDigit( zByte & 0xF, 16 ) );
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Generated (pseudo random) contents, which at each part boundary record how far the reads are ahead of the parts
+     * received, and the retained heap.
+     */
+    private class Contents extends InputStream {
+        private final Random mRandom = new Random( 1 );
+        private final MessageDigest mDigest;
+        private final long mBaseline;
+        private long mRemaining, mRead;
+
+        private Contents( long pLength, long pBaseline )
+                throws NoSuchAlgorithmException {
+            mRemaining = pLength;
+            mBaseline = pBaseline;
+            mDigest = MessageDigest.getInstance( "MD5" );
+        }
+
+        @Override
+        public int read() {
+            byte[] zByte = new byte[1];
+            return (read( zByte, 0, 1 ) == -1) ? -1 : (zByte[0] & 0xFF);
+        }
+
+        @Override
+        public int read( byte[] pBuffer, int pOffset, int pLength ) {
+            if ( mRemaining == 0 ) {
+                return -1;
+            }
+            if ( (mRead % PART_SIZE) == 0 ) {
+                measure();
+            }
+            int zRead = (int) Math.min( mRemaining, Math.min( pLength, PART_SIZE - (mRead % PART_SIZE) ) );
+            byte[] zBytes = new byte[zRead];
+            mRandom.nextBytes( zBytes );
+            System.arraycopy( zBytes, 0, pBuffer, pOffset, zRead );
+            mDigest.update( zBytes );
+            mRemaining -= zRead;
+            mRead += zRead;
+            mReadAheadBytes = Math.max( mReadAheadBytes, mRead - (partsReceived() * PART_SIZE) );
+            return zRead;
+        }
+
+        private void measure() {
+            long zRetained = retainedHeap() - mBaseline - mEmulator.getStoredBytes();
+            mRetainedBytes = Math.max( mRetainedBytes, zRetained );
+        }
+
+        private String getMD5() {
+            return hex( mDigest.digest() );
+        }
+    }
+
+    public static void main( String[] args )
+            throws Exception {
+        int zParts = (args.length > 0) ? Integer.parseInt( args[0] ) : DEFAULT_PARTS;
+        long zLatencyMillis = (args.length > 1) ? Long.parseLong( args[1] ) : DEFAULT_LATENCY_MILLIS;
+        S3Emulator zEmulator = new S3Emulator( zLatencyMillis );
+        List<String> zFailures;
+        try {
+            S3MultipartUploaderMemoryTest zTest = new S3MultipartUploaderMemoryTest( zEmulator, S3PersisterBenchmarks.createCredentials(), zParts );
+            zFailures = zTest.run();
+            System.out.println( zTest );
+        }
+        finally {
+            zEmulator.stop();
+        }
+        exit( zFailures );
+    }
+}
@@ -0,0 +1,536 @@
+package org.litesoft.aws.s3.bench;
+
+import org.litesoft.aws.credentials.*;
+import org.litesoft.aws.s3.*;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Regression baselines for S3Persister against an in-process S3Emulator (w/ an injected per request latency).
+ * <p/>
+ * Usage: S3PersisterBenchmarks [latencyMillis [iterationMillis [benchmarkNameSubstring]]]
+ * <p/>
+ * The CloudFront benchmarks read thru an edge S3Emulator w/ 1/EDGE_LATENCY_DIVISOR of the latency (whose requests are
+ * not included in the requests/op).
+ * <p/>
+ * The deleteDirectory benchmark deletes DELETE_DIRECTORY_FILES (10k) objects per op, so its requests/op (by kind) are
+ * the list and Multi Object Delete requests per 10k objects.
+ * <p/>
+ * The listing benchmarks (getDirectories, getFiles, and getAllFilesUnder) use their own buckets: a wide one (many files
+ * and a few directories at the root), and a deep one (a tree of directories from the root).
+ * <p/>
+ * Reports throughput (ops/s), allocation (bytes/op on the calling thread), S3 requests/op (also by kind), and the List
+ * Objects response bytes/op per benchmark, followed by the emulator's request counts and the persister's S3Metrics.
+ */
+public class S3PersisterBenchmarks {
+    public static final String BUCKET = "bench-bucket";
+    public static final int SMALL_SIZE = 1024;
+    public static final int LARGE_SIZE = 8 * 1024 * 1024;
+    public static final int TEXT_LINES = 1000;
+    public static final int WIDE_FILES = 2500, WIDE_DIRECTORIES = 10;
+    public static final int DEEP_LEVELS = 4, DEEP_FAN_OUT = 5, DEEP_FILES_PER_DIRECTORY = 4;
+    public static final int DELETE_DIRECTORY_FILES = 10000;
+    public static final int EDGE_LATENCY_DIVISOR = 5;
+    public static final int WRITE_BEHIND_FILES = 100;
+    public static final int CONTENTION_THREADS = 8, CONTENTION_CHECKS_PER_THREAD = 10000;
+
+    private final S3Emulator mEmulator;
+    private final S3Persister mPersister, mCachingPersister, mCompressingPersister, mCloudFrontPersister, mIndexedPersister;
+    private final S3Persister mWidePersister, mDeepPersister;
+    private boolean mWideCreated, mDeepCreated;
+    private final S3Metrics mMetrics = new S3Metrics();
+    private final CachedAWSCredentials mCredentials;
+
+    public S3PersisterBenchmarks( S3Emulator pEmulator, S3Emulator pEdge )
+            throws IOException {
+        mEmulator = pEmulator;
+        CachedAWSCredentials zCredentials = mCredentials = createCredentials();
+        mPersister = new S3Persister( zCredentials, new Bucket( pEmulator.getEndpoint(), BUCKET ) ).with( mMetrics );
+        mCachingPersister = new S3Persister( zCredentials, new Bucket( pEmulator.getEndpoint(), BUCKET ) ).with( mMetrics ) //
+                .with( new S3ObjectCache( createCacheDirectory(), 4L * LARGE_SIZE, LARGE_SIZE, S3ObjectCache.DEFAULT_FRESH_MILLIS ) );
+        mCompressingPersister = new S3Persister( zCredentials, new Bucket( pEmulator.getEndpoint(), BUCKET ) ).with( mMetrics ) //
+                .with( new S3Compression() );
+        mCloudFrontPersister = new S3Persister( zCredentials, new Bucket( pEmulator.getEndpoint(), BUCKET, pEdge.getCloudFrontURL( BUCKET ) ) ) //
+                .with( mMetrics ).with( new S3CloudFrontReader() );
+        mIndexedPersister = new S3Persister( zCredentials, new Bucket( pEmulator.getEndpoint(), BUCKET ) ).with( mMetrics ) //
+                .with( new S3PrefixIndex( "wide/" ) );
+        mWidePersister = new S3Persister( zCredentials, new Bucket( pEmulator.getEndpoint(), BUCKET + "-wide" ) ).with( mMetrics );
+        mDeepPersister = new S3Persister( zCredentials, new Bucket( pEmulator.getEndpoint(), BUCKET + "-deep" ) ).with( mMetrics );
+    }
+
+    public List<Benchmark> getBenchmarks() {
+        final byte[] zSmall = bytes( SMALL_SIZE );
+        final byte[] zLarge = bytes( LARGE_SIZE );
+        final String[] zLines = lines( TEXT_LINES );
+        List<Benchmark> zBenchmarks = new ArrayList<Benchmark>();
+        zBenchmarks.add( new Benchmark( "putFile small" ) {
+            @Override
+            public int run( int pInvocation ) {
+                mPersister.putFile( "put/small" + (pInvocation % 100), new ByteArrayInputStream( zSmall ), zSmall.length );
+                return 1;
+            }
+        } );
+        zBenchmarks.add( new Benchmark( "putFile large" ) {
+            @Override
+            public int run( int pInvocation ) {
+                mPersister.putFile( "put/large", new ByteArrayInputStream( zLarge ), zLarge.length );
+                return 1;
+            }
+        } );
+        zBenchmarks.add( new Benchmark( "putFile small (S3PrefixIndex)" ) {
+            @Override
+            public void setUp() {
+                for ( int i = 0; i < WIDE_FILES; i++ ) {
+                    mPersister.putFile( "wide/file" + i + ".txt", new ByteArrayInputStream( zSmall, 0, 1 ), 1 );
+                }
+            }
+
+            @Override
+            public int run( int pInvocation ) { // Each put also GETs and (conditionally) PUTs the "wide/" manifest
+                mIndexedPersister.putFile( "wide/put/small" + (pInvocation % 100), new ByteArrayInputStream( zSmall ), zSmall.length );
+                return 1;
+            }
+        } );
+        zBenchmarks.add( new Benchmark( "putFile small (WriteBehind)" ) {
+            private final S3WriteBehindQueue mQueue = new S3WriteBehindQueue( mPersister );
+
+            @Override
+            public int run( int pInvocation ) {
+                for ( int i = 0; i < WRITE_BEHIND_FILES; i++ ) {
+                    mQueue.putFile( "put/small" + i, new ByteArrayInputStream( zSmall ) );
+                }
+                mQueue.flush();
+                return WRITE_BEHIND_FILES;
+            }
+        } );
+        zBenchmarks.add( new Benchmark( "getFile small" ) {
+            @Override
+            public void setUp() {
+                mPersister.putFile( "get/small", new ByteArrayInputStream( zSmall ), zSmall.length );
+            }
+
+            @Override
+            public int run( int pInvocation )
+                    throws IOException {
+                consume( mPersister.getFile( "get/small" ) );
+                return 1;
+            }
+        } );
+        zBenchmarks.add( new Benchmark( "getFile large" ) {
+            @Override
+            public void setUp() {
+                mPersister.putFile( "get/large", new ByteArrayInputStream( zLarge ), zLarge.length );
+            }
+
+            @Override
+            public int run( int pInvocation )
+                    throws IOException {
+                consume( mPersister.getFile( "get/large" ) );
+                return 1;
+            }
+        } );
+        zBenchmarks.add( new Benchmark( "getFile small (S3ObjectCache)" ) {
+            @Override
+            public void setUp() {
+                mCachingPersister.putFile( "get/small", new ByteArrayInputStream( zSmall ), zSmall.length );
+            }
+
+            @Override
+            public int run( int pInvocation )
+                    throws IOException {
+                consume( mCachingPersister.getFile( "get/small" ) );
+                return 1;
+            }
+        } );
+        zBenchmarks.add( new Benchmark( "getFile large (S3ObjectCache)" ) {
+            @Override
+            public void setUp() {
+                mCachingPersister.putFile( "get/large", new ByteArrayInputStream( zLarge ), zLarge.length );
+            }
+
+            @Override
+            public int run( int pInvocation )
+                    throws IOException {
+                consume( mCachingPersister.getFile( "get/large" ) );
+                return 1;
+            }
+        } );
+        zBenchmarks.add( new Benchmark( "getFile small (CloudFront)" ) {
+            @Override
+            public void setUp() {
+                mCloudFrontPersister.putFile( "get/small", new ByteArrayInputStream( zSmall ), zSmall.length );
+            }
+
+            @Override
+            public int run( int pInvocation )
+                    throws IOException {
+                consume( mCloudFrontPersister.getFile( "get/small" ) );
+                return 1;
+            }
+        } );
+        zBenchmarks.add( new Benchmark( "getFile large (CloudFront)" ) {
+            @Override
+            public void setUp() {
+                mCloudFrontPersister.putFile( "get/large", new ByteArrayInputStream( zLarge ), zLarge.length );
+            }
+
+            @Override
+            public int run( int pInvocation )
+                    throws IOException {
+                consume( mCloudFrontPersister.getFile( "get/large" ) );
+                return 1;
+            }
+        } );
+        zBenchmarks.add( new Benchmark( "getTextFile" ) {
+            @Override
+            public void setUp() {
+                mPersister.putTextFile( "text/lines.txt", zLines );
+            }
+
+            @Override
+            public int run( int pInvocation ) {
+                return (mPersister.getTextFile( "text/lines.txt" ) != null) ? 1 : 0;
+            }
+        } );
+        zBenchmarks.add( new Benchmark( "iterateTextFile" ) {
+            @Override
+            public void setUp() {
+                mPersister.putTextFile( "text/lines.txt", zLines );
+            }
+
+            @Override
+            public int run( int pInvocation ) {
+                int zCount = 0;
+                for ( Iterator<String> zIt = mPersister.iterateTextFile( "text/lines.txt" ); zIt.hasNext(); zIt.next() ) {
+                    zCount++;
+                }
+                return (zCount != 0) ? 1 : 0;
+            }
+        } );
+        zBenchmarks.add( new Benchmark( "putTextFile" ) {
+            @Override
+            public int run( int pInvocation ) {
+                mPersister.putTextFile( "text/put.txt", zLines );
+                return 1;
+            }
+        } );
+        zBenchmarks.add( new Benchmark( "putTextFile streaming" ) {
+            @Override
+            public int run( int pInvocation ) {
+                mPersister.putTextFile( "text/put.txt", Arrays.asList( zLines ) );
+                return 1;
+            }
+        } );
+        zBenchmarks.add( new Benchmark( "getTextFile (S3Compression)" ) {
+            @Override
+            public void setUp() {
+                mCompressingPersister.putTextFile( "text/compressed.txt", zLines );
+            }
+
+            @Override
+            public int run( int pInvocation ) {
+                return (mCompressingPersister.getTextFile( "text/compressed.txt" ) != null) ? 1 : 0;
+            }
+        } );
+        zBenchmarks.add( new Benchmark( "putTextFile (S3Compression)" ) {
+            @Override
+            public int run( int pInvocation ) {
+                mCompressingPersister.putTextFile( "text/compressed.txt", Arrays.asList( zLines ) );
+                return 1;
+            }
+        } );
+        zBenchmarks.add( new Benchmark( "fileExists" ) {
+            @Override
+            public void setUp() {
+                mPersister.putFile( "exists/small", new ByteArrayInputStream( zSmall ), zSmall.length );
+            }
+
+            @Override
+            public int run( int pInvocation ) {
+                return mPersister.fileExists( "exists/small" ) ? 1 : 0;
+            }
+        } );
+        zBenchmarks.add( new Benchmark( "getFiles wide (" + WIDE_FILES + ")" ) {
+            @Override
+            public void setUp() {
+                for ( int i = 0; i < WIDE_FILES; i++ ) {
+                    mPersister.putFile( "wide/file" + i + ".txt", new ByteArrayInputStream( zSmall, 0, 1 ), 1 );
+                }
+            }
+
+            @Override
+            public int run( int pInvocation ) {
+                return (mPersister.getFiles( "wide", "file", ".txt" ).length == WIDE_FILES) ? 1 : 0;
+            }
+        } );
+        zBenchmarks.add( new Benchmark( "getFiles wide (S3PrefixIndex)" ) {
+            @Override
+            public void setUp() {
+                for ( int i = 0; i < WIDE_FILES; i++ ) {
+                    mPersister.putFile( "wide/file" + i + ".txt", new ByteArrayInputStream( zSmall, 0, 1 ), 1 );
+                }
+            }
+
+            @Override
+            public int run( int pInvocation ) {
+                return (mIndexedPersister.getFiles( "wide", "file", ".txt" ).length == WIDE_FILES) ? 1 : 0;
+            }
+        } );
+        zBenchmarks.add( new Benchmark( "getFileMetadata wide (" + WIDE_FILES / 2 + ")" ) {
+            private final List<String> mPaths = new ArrayList<String>();
+
+            @Override
+            public void setUp() {
+                for ( int i = 0; i < WIDE_FILES; i++ ) {
+                    mPersister.putFile( "wide/file" + i + ".txt", new ByteArrayInputStream( zSmall, 0, 1 ), 1 );
+                }
+                for ( int i = 0; i < WIDE_FILES; i += 2 ) {
+                    mPaths.add( "wide/file" + i + ".txt" );
+                }
+            }
+
+            @Override
+            public int run( int pInvocation ) {
+                return (mPersister.getFileMetadata( mPaths ).size() == mPaths.size()) ? 1 : 0;
+            }
+        } );
+        zBenchmarks.add( new Benchmark( "getDirectories wide" ) {
+            @Override
+            public void setUp() {
+                createWide();
+            }
+
+            @Override
+            public int run( int pInvocation ) {
+                return (mWidePersister.getDirectories( "" ).length == WIDE_DIRECTORIES) ? 1 : 0;
+            }
+        } );
+        zBenchmarks.add( new Benchmark( "getFiles wide" ) {
+            @Override
+            public void setUp() {
+                createWide();
+            }
+
+            @Override
+            public int run( int pInvocation ) {
+                return (mWidePersister.getFiles( "", "file", ".txt" ).length == WIDE_FILES) ? 1 : 0;
+            }
+        } );
+        zBenchmarks.add( new Benchmark( "getDirectories deep" ) {
+            @Override
+            public void setUp() {
+                createDeep();
+            }
+
+            @Override
+            public int run( int pInvocation ) {
+                return (mDeepPersister.getDirectories( "" ).length == DEEP_FAN_OUT) ? 1 : 0;
+            }
+        } );
+        zBenchmarks.add( new Benchmark( "getFiles deep" ) {
+            @Override
+            public void setUp() {
+                createDeep();
+            }
+
+            @Override
+            public int run( int pInvocation ) {
+                return (mDeepPersister.getFiles( "dir0", "file", "" ).length == DEEP_FILES_PER_DIRECTORY) ? 1 : 0;
+            }
+        } );
+        zBenchmarks.add( new Benchmark( "getAllFilesUnder deep" ) {
+            @Override
+            public void setUp() {
+                createDeep();
+            }
+
+            @Override
+            public int run( int pInvocation ) {
+                return (mDeepPersister.getAllFilesUnder( "dir0" ).length != 0) ? 1 : 0;
+            }
+        } );
+        zBenchmarks.add( new Benchmark( "copyFile small" ) {
+            @Override
+            public void setUp() {
+                mPersister.putFile( "copy/source", new ByteArrayInputStream( zSmall ), zSmall.length );
+            }
+
+            @Override
+            public int run( int pInvocation ) {
+                mPersister.copyFile( "copy/source", "copy/target" + (pInvocation % 100) );
+                return 1;
+            }
+        } );
+        zBenchmarks.add( new Benchmark( "deleteDirectory (" + DELETE_DIRECTORY_FILES + ")" ) {
+            @Override
+            public void prepare( int pInvocation ) {
+                for ( int i = 0; i < DELETE_DIRECTORY_FILES; i++ ) { // Directly, as 10k PUTs per invocation would dominate the run
+                    mEmulator.putObject( BUCKET, "delete/" + pInvocation + "/file" + i, new byte[1] );
+                }
+            }
+
+            @Override
+            public int run( int pInvocation ) {
+                mPersister.deleteDirectory( "delete/" + pInvocation );
+                return 1;
+            }
+        } );
+        zBenchmarks.add( new Benchmark( "isS3CopyFriendlyWith (" + CONTENTION_THREADS + " threads)" ) {
+            private final List<S3Persister> mSources = new ArrayList<S3Persister>();
+            private ExecutorService mThreads;
+
+            @Override
+            public void setUp()
+                    throws IOException {
+                for ( int i = 0; i < CONTENTION_THREADS; i++ ) {
+                    mSources.add( new S3Persister( mCredentials, new Bucket( mEmulator.getEndpoint(), BUCKET + i ) ) );
+                }
+                mThreads = Executors.newFixedThreadPool( CONTENTION_THREADS );
+            }
+
+            @Override
+            public int run( int pInvocation )
+                    throws Exception {
+                List<Future<Integer>> zThreads = new ArrayList<Future<Integer>>();
+                for ( int i = 0; i < CONTENTION_THREADS; i++ ) {
+                    zThreads.add( mThreads.submit( new Callable<Integer>() {
+                        @Override
+                        public Integer call() {
+                            int zFriendly = 0;
+                            for ( int j = 0; j < CONTENTION_CHECKS_PER_THREAD; j++ ) {
+                                zFriendly += mPersister.isS3CopyFriendlyWith( mSources.get( j % mSources.size() ) ) ? 1 : 0;
+                            }
+                            return zFriendly;
+                        }
+                    } ) );
+                }
+                int zOps = 0;
+                for ( Future<Integer> zThread : zThreads ) {
+                    zOps += zThread.get();
+                }
+                return zOps;
+            }
+
+            @Override
+            public void tearDown() {
+                mThreads.shutdown();
+                for ( S3Persister zSource : mSources ) {
+                    zSource.dispose();
+                }
+            }
+        } );
+        return zBenchmarks;
+    }
+
+    private void createWide() {
+        if ( !mWideCreated ) {
+            mWideCreated = true;
+            for ( int i = 0; i < WIDE_FILES; i++ ) {
+                mWidePersister.putFile( "file" + i + ".txt", new ByteArrayInputStream( new byte[1] ), 1 );
+            }
+            for ( int i = 0; i < WIDE_DIRECTORIES; i++ ) {
+                mWidePersister.putFile( "dir" + i + "/file.txt", new ByteArrayInputStream( new byte[1] ), 1 );
+            }
+        }
+    }
+
+    private void createDeep() {
+        if ( !mDeepCreated ) {
+            mDeepCreated = true;
+            putTree( mDeepPersister, "", DEEP_LEVELS );
+        }
+    }
+
+    /**
+     * @param pDirectory "" for the root
+     */
+    private static void putTree( S3Persister pPersister, String pDirectory, int pLevels ) {
+        for ( int i = 0; i < DEEP_FILES_PER_DIRECTORY; i++ ) {
+            pPersister.putFile( pDirectory + "file" + i, new ByteArrayInputStream( new byte[1] ), 1 );
+        }
+        if ( pLevels > 1 ) {
+            for ( int i = 0; i < DEEP_FAN_OUT; i++ ) {
+                putTree( pPersister, pDirectory + "dir" + i + "/", pLevels - 1 );
+            }
+        }
+    }
+
+    private static void consume( InputStream pInputStream )
+            throws IOException {
+        byte[] zBuffer = new byte[64 * 1024];
+        try {
+            while ( -1 != pInputStream.read( zBuffer ) ) {
+                // Just Reading...
+            }
+        }
+        finally {
+            pInputStream.close();
+        }
+    }
+
+    private static byte[] bytes( int pSize ) {
+        byte[] zBytes = new byte[pSize];
+        new Random( pSize ).nextBytes( zBytes );
+        return zBytes;
+    }
+
+    private static String[] lines( int pCount ) {
+        String[] zLines = new String[pCount];
+        for ( int i = 0; i < pCount; i++ ) {
+            zLines[i] = "Line " + i + ": the quick brown fox jumps over the lazy dog";
+        }
+        return zLines;
+    }
+
+    private static File createCacheDirectory()
+            throws IOException {
+        File zDirectory = File.createTempFile( "S3ObjectCache", "" );
+        if ( !zDirectory.delete() || !zDirectory.mkdir() ) {
+            throw new IOException( "Unable to create: " + zDirectory );
+        }
+        zDirectory.deleteOnExit();
+        return zDirectory;
+    }
+
+    static CachedAWSCredentials createCredentials()
+            throws IOException {
+        File zFile = File.createTempFile( "S3EmulatorCredentials", ".properties" );
+        zFile.deleteOnExit();
+        Writer zWriter = new OutputStreamWriter( new FileOutputStream( zFile ), "UTF-8" );
+        try {
+            zWriter.write( "accessKey=S3Emulator\nsecretKey=S3Emulator\n" );
+        }
+        finally {
+            zWriter.close();
+        }
+        return new CachedAWSCredentials( zFile.getPath() );
+    }
+
+    public static void main( String[] args )
+            throws Exception {
+        long zLatencyMillis = (args.length > 0) ? Long.parseLong( args[0] ) : 0;
+        long zIterationMillis = (args.length > 1) ? Long.parseLong( args[1] ) : 1000;
+        String zFilter = (args.length > 2) ? args[2] : "";
+        S3Emulator zEmulator = new S3Emulator( zLatencyMillis );
+        S3Emulator zEdge = new S3Emulator( zLatencyMillis / EDGE_LATENCY_DIVISOR, zEmulator );
+        try {
+            S3PersisterBenchmarks zBenchmarks = new S3PersisterBenchmarks( zEmulator, zEdge );
+            Benchmark.Runner zRunner = new Benchmark.Runner( zEmulator, 2, 5, zIterationMillis );
+            System.out.println( "S3Emulator @ " + zEmulator.getEndpoint() + " w/ " + zLatencyMillis + "ms latency" );
+            for ( Benchmark zBenchmark : zBenchmarks.getBenchmarks() ) {
+                if ( zBenchmark.getName().contains( zFilter ) ) {
+                    System.out.println( zRunner.run( zBenchmark ) );
+                }
+            }
+            System.out.println( "Requests: " + zEmulator.getRequestCounts() );
+            System.out.println( zBenchmarks.mMetrics );
+            System.out.println( zBenchmarks.mCloudFrontPersister.getCloudFrontReader() );
+        }
+        finally {
+            zEdge.stop();
+            zEmulator.stop();
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package org.litesoft.aws.s3.bench;
+
+import java.util.*;
+
+/**
+ * A test (there is no test framework) run from a main: its checks collect the failures, which exit reports (w/ an exit
+ * status of 1 if there were any).
+ */
+public abstract class SelfCheckingTest {
+    private final List<String> mFailures = new ArrayList<String>();
+
+    /**
+     * @return the failures (empty if none).
+     */
+    public List<String> run()
+            throws Exception {
+        checks();
+        return mFailures;
+    }
+
+    /**
+     * Perform the checks (see check).
+     */
+    protected abstract void checks()
+            throws Exception;
+
+    protected void check( boolean pOK, String pFailure ) {
+        if ( !pOK ) {
+            mFailures.add( pFailure );
+        }
+    }
+
+    /**
+     * Print pFailures (each as "FAILED: ..."), then "PASSED" or "FAILED", and exit (w/ 1 on a failure).
+     */
+    public static void exit( List<String> pFailures ) {
+        for ( String zFailure : pFailures ) {
+            System.out.println( "FAILED: " + zFailure );
+        }
+        System.out.println( pFailures.isEmpty() ? "PASSED" : "FAILED" );
+        System.exit( pFailures.isEmpty() ? 0 : 1 );
+    }
+}
@@ -4,7 +4,15 @@ import com.amazonaws.*;
 import com.amazonaws.auth.*;
 import java8.util.function.*;
 
+import java.util.*;
+
 public abstract class ClientFactory<Client> {
+    public static final long DEFAULT_IDLE_EVICTION_MILLIS = 5 * 60 * 1000;
+
+    private final Map<RegistryKey, RegistryEntry> mRegistry = new HashMap<RegistryKey, RegistryEntry>();
+    private long mIdleEvictionMillis = DEFAULT_IDLE_EVICTION_MILLIS;
+    private Timer mEvictor;
+
     public final Supplier<Client> supplierWith( final Supplier<AWSCredentials> pCredentialsSupplier ) {
         return new Supplier<Client>() {
             @Override
@@ -13,30 +21,257 @@ public abstract class ClientFactory<Client> {
                     return create( pCredentialsSupplier.get() );
                 }
                 catch ( AmazonServiceException ase ) {
-                    /*
-                    * AmazonServiceExceptions represent an error response from an AWS
-                    * services, i.e. your request made it to AWS, but the AWS service
-                    * either found it invalid or encountered an error trying to execute
-                    * it.
-                    */
-                    System.out.println( "Error Message:    " + ase.getMessage() );
-                    System.out.println( "HTTP Status Code: " + ase.getStatusCode() );
-                    System.out.println( "AWS Error Code:   " + ase.getErrorCode() );
-                    System.out.println( "Error Type:       " + ase.getErrorType() );
-                    System.out.println( "Request ID:       " + ase.getRequestId() );
-                    /*
-                    * AmazonClientExceptions represent an error that occurred inside
-                    * the client on the local host, either while trying to send the
-                    * request to AWS or interpret the response. For example, if no
-                    * network connection is available, the client won't be able to
-                    * connect to AWS to execute a request and will throw an
-                    * AmazonClientException.
-                    */
-                    throw new RuntimeException( ase );
+                    throw report( ase );
                 }
             }
         };
     }
 
+    /**
+     * Lease a Client, from the registry, that is shared by all leases w/ the same Credentials, Endpoint, and Settings.
+     * <p/>
+     * Each lease should be released once its user is done; a Client that has been w/o leases for the IdleEvictionMillis
+     * is shutdown (and removed from the registry).
+     *
+     * @param pEndpoint null for the SDK's default
+     * @param pSettings null for ClientSettings.DEFAULT
+     */
+    public final Lease<Client> lease( AWSCredentials pCredentials, String pEndpoint, ClientSettings pSettings ) {
+        return lease( new RegistryKey( pCredentials, pEndpoint, (pSettings != null) ? pSettings : ClientSettings.DEFAULT ) );
+    }
+
+    /**
+     * Lease a Client that gets its credentials from pCredentialsProvider on each request (so it picks up refreshed
+     * credentials w/o being rebuilt); it is shared by all leases w/ the same Provider (instance), Endpoint, and Settings.
+     *
+     * @see #lease(AWSCredentials, String, ClientSettings)
+     */
+    public final Lease<Client> lease( AWSCredentialsProvider pCredentialsProvider, String pEndpoint, ClientSettings pSettings ) {
+        return lease( new RegistryKey( pCredentialsProvider, pEndpoint, (pSettings != null) ? pSettings : ClientSettings.DEFAULT ) );
+    }
+
+    private Lease<Client> lease( RegistryKey pKey ) {
+        RegistryEntry zEntry;
+        synchronized ( mRegistry ) {
+            zEntry = mRegistry.get( pKey );
+            if ( zEntry == null ) {
+                try {
+                    Client zClient = (pKey.mProvider != null) ? create( pKey.mProvider, pKey.mSettings ) : create( pKey.mCredentials, pKey.mSettings );
+                    if ( pKey.mEndpoint != null ) {
+                        setEndpoint( zClient, pKey.mEndpoint );
+                    }
+                    mRegistry.put( pKey, zEntry = new RegistryEntry( zClient ) );
+                }
+                catch ( AmazonServiceException ase ) {
+                    throw report( ase );
+                }
+                startEvictor();
+            }
+            zEntry.mLeases++;
+        }
+        return new Lease<Client>( this, zEntry );
+    }
+
+    public long getIdleEvictionMillis() {
+        synchronized ( mRegistry ) {
+            return mIdleEvictionMillis;
+        }
+    }
+
+    public void setIdleEvictionMillis( long pIdleEvictionMillis ) {
+        synchronized ( mRegistry ) {
+            mIdleEvictionMillis = Math.max( 0, pIdleEvictionMillis );
+        }
+    }
+
+    /**
+     * @return the number of Clients in the registry (leased or idle).
+     */
+    public int getRegisteredClients() {
+        synchronized ( mRegistry ) {
+            return mRegistry.size();
+        }
+    }
+
+    /**
+     * Shutdown (and remove from the registry) the Clients that have had no leases for at least the IdleEvictionMillis.
+     *
+     * @return the number evicted.
+     */
+    public int evictIdle() {
+        List<Client> zEvicted = new ArrayList<Client>();
+        synchronized ( mRegistry ) {
+            long zIdleSince = currentTimeMillis() - mIdleEvictionMillis;
+            for ( Iterator<RegistryEntry> zIt = mRegistry.values().iterator(); zIt.hasNext(); ) {
+                RegistryEntry zEntry = zIt.next();
+                if ( (zEntry.mLeases == 0) && (zEntry.mIdleSince <= zIdleSince) ) {
+                    zIt.remove();
+                    zEvicted.add( zEntry.mClient );
+                }
+            }
+            if ( mRegistry.isEmpty() && (mEvictor != null) ) {
+                mEvictor.cancel();
+                mEvictor = null;
+            }
+        }
+        for ( Client zClient : zEvicted ) {
+            shutdown( zClient );
+        }
+        return zEvicted.size();
+    }
+
+    private void release( RegistryEntry pEntry ) {
+        synchronized ( mRegistry ) {
+            if ( --pEntry.mLeases == 0 ) {
+                pEntry.mIdleSince = currentTimeMillis();
+            }
+        }
+    }
+
+    private void startEvictor() {
+        if ( mEvictor == null ) {
+            long zPeriod = Math.max( 1000, mIdleEvictionMillis / 2 );
+            mEvictor = new Timer( getClass().getSimpleName() + "-IdleEvictor", true );
+            mEvictor.schedule( new TimerTask() {
+                @Override
+                public void run() {
+                    evictIdle();
+                }
+            }, zPeriod, zPeriod );
+        }
+    }
+
+    private static RuntimeException report( AmazonServiceException ase ) {
+        /*
+        * AmazonServiceExceptions represent an error response from an AWS
+        * services, i.e. your request made it to AWS, but the AWS service
+        * either found it invalid or encountered an error trying to execute
+        * it.
+        */
+        System.out.println( "Error Message:    " + ase.getMessage() );
+        System.out.println( "HTTP Status Code: " + ase.getStatusCode() );
+        System.out.println( "AWS Error Code:   " + ase.getErrorCode() );
+        System.out.println( "Error Type:       " + ase.getErrorType() );
+        System.out.println( "Request ID:       " + ase.getRequestId() );
+        /*
+        * AmazonClientExceptions represent an error that occurred inside
+        * the client on the local host, either while trying to send the
+        * request to AWS or interpret the response. For example, if no
+        * network connection is available, the client won't be able to
+        * connect to AWS to execute a request and will throw an
+        * AmazonClientException.
+        */
+        return new RuntimeException( ase );
+    }
+
     abstract protected Client create( AWSCredentials pCredentials );
+
+    protected Client create( AWSCredentials pCredentials, ClientSettings pSettings ) {
+        return create( pCredentials );
+    }
+
+    /**
+     * Clients that can't use a Provider get its current credentials (so they do NOT pick up refreshed credentials).
+     */
+    protected Client create( AWSCredentialsProvider pCredentialsProvider, ClientSettings pSettings ) {
+        return create( pCredentialsProvider.getCredentials(), pSettings );
+    }
+
+    /**
+     * The clock for idle eviction (overridable, e.g. by tests).
+     */
+    protected long currentTimeMillis() {
+        return System.currentTimeMillis();
+    }
+
+    protected void setEndpoint( Client pClient, String pEndpoint ) {
+        throw new UnsupportedOperationException( getClass().getSimpleName() + " does not support Endpoints" );
+    }
+
+    protected void shutdown( Client pClient ) {
+        if ( pClient instanceof AmazonWebServiceClient ) {
+            ((AmazonWebServiceClient) pClient).shutdown();
+        }
+    }
+
+    public static final class Lease<Client> {
+        private final ClientFactory<Client> mFactory;
+        private final ClientFactory<Client>.RegistryEntry mEntry;
+        private boolean mReleased;
+
+        private Lease( ClientFactory<Client> pFactory, ClientFactory<Client>.RegistryEntry pEntry ) {
+            mFactory = pFactory;
+            mEntry = pEntry;
+        }
+
+        public Client get() {
+            return mEntry.mClient;
+        }
+
+        /**
+         * Idempotent
+         */
+        public synchronized void release() {
+            if ( !mReleased ) {
+                mReleased = true;
+                mFactory.release( mEntry );
+            }
+        }
+    }
+
+    private class RegistryEntry {
+        private final Client mClient;
+        private int mLeases;
+        private long mIdleSince;
+
+        private RegistryEntry( Client pClient ) {
+            mClient = pClient;
+        }
+    }
+
+    private static class RegistryKey {
+        private final AWSCredentials mCredentials;
+        private final AWSCredentialsProvider mProvider; // Compared by identity
+        private final String mAccessKeyId, mSecretKey, mEndpoint;
+        private final ClientSettings mSettings;
+
+        private RegistryKey( AWSCredentials pCredentials, String pEndpoint, ClientSettings pSettings ) {
+            mCredentials = pCredentials;
+            mProvider = null;
+            mAccessKeyId = pCredentials.getAWSAccessKeyId();
+            mSecretKey = pCredentials.getAWSSecretKey();
+            mEndpoint = pEndpoint;
+            mSettings = pSettings;
+        }
+
+        private RegistryKey( AWSCredentialsProvider pProvider, String pEndpoint, ClientSettings pSettings ) {
+            mCredentials = null;
+            mProvider = pProvider;
+            mAccessKeyId = mSecretKey = null;
+            mEndpoint = pEndpoint;
+            mSettings = pSettings;
+        }
+
+        @Override
+        public boolean equals( Object o ) {
+            if ( !(o instanceof RegistryKey) ) {
+                return false;
+            }
+            RegistryKey them = (RegistryKey) o;
+            return (this.mProvider == them.mProvider) &&
+                   areEqual( this.mAccessKeyId, them.mAccessKeyId ) && areEqual( this.mSecretKey, them.mSecretKey ) &&
+                   areEqual( this.mEndpoint, them.mEndpoint ) && this.mSettings.equals( them.mSettings );
+        }
+
+        @Override
+        public int hashCode() {
+            int zHash = (mProvider != null) ? System.identityHashCode( mProvider ) : (mAccessKeyId == null) ? 0 : mAccessKeyId.hashCode();
+            zHash = 31 * zHash + ((mEndpoint == null) ? 0 : mEndpoint.hashCode());
+            return 31 * zHash + mSettings.hashCode();
+        }
+
+        private static boolean areEqual( String pString1, String pString2 ) {
+            return (pString1 == null) ? (pString2 == null) : pString1.equals( pString2 );
+        }
+    }
 }
@@ -0,0 +1,116 @@
+package org.litesoft.aws.clients;
+
+import com.amazonaws.*;
+
+/**
+ * Immutable (and so usable as part of a ClientFactory registry key) subset of the SDK's ClientConfiguration.
+ * <p/>
+ * Pooled HTTP connections are kept alive between requests; IdleConnectionReaper (the SDK's reaper) closes the ones
+ * that have sat idle, so a long lived shared client does not try to reuse connections the server has dropped.
+ */
+public final class ClientSettings {
+    public static final int DEFAULT_CONNECTION_TIMEOUT = 50 * 1000; // SDK's (not public) default
+
+    public static final ClientSettings DEFAULT = new ClientSettings( ClientConfiguration.DEFAULT_MAX_CONNECTIONS, //
+                                                                     DEFAULT_CONNECTION_TIMEOUT, //
+                                                                     ClientConfiguration.DEFAULT_SOCKET_TIMEOUT, //
+                                                                     -1, ClientConfiguration.DEFAULT_USE_REAPER );
+
+    private final int mMaxConnections;
+    private final int mConnectionTimeoutMillis;
+    private final int mSocketTimeoutMillis;
+    private final int mMaxErrorRetry;
+    private final boolean mIdleConnectionReaper;
+
+    /**
+     * @param pMaxErrorRetry negative for the SDK's default
+     */
+    public ClientSettings( int pMaxConnections, int pConnectionTimeoutMillis, int pSocketTimeoutMillis, int pMaxErrorRetry, boolean pIdleConnectionReaper ) {
+        mMaxConnections = Math.max( 1, pMaxConnections );
+        mConnectionTimeoutMillis = Math.max( 0, pConnectionTimeoutMillis );
+        mSocketTimeoutMillis = Math.max( 0, pSocketTimeoutMillis );
+        mMaxErrorRetry = pMaxErrorRetry;
+        mIdleConnectionReaper = pIdleConnectionReaper;
+    }
+
+    public int getMaxConnections() {
+        return mMaxConnections;
+    }
+
+    public int getConnectionTimeoutMillis() {
+        return mConnectionTimeoutMillis;
+    }
+
+    public int getSocketTimeoutMillis() {
+        return mSocketTimeoutMillis;
+    }
+
+    public int getMaxErrorRetry() {
+        return mMaxErrorRetry;
+    }
+
+    public boolean isIdleConnectionReaper() {
+        return mIdleConnectionReaper;
+    }
+
+    public ClientSettings withMaxConnections( int pMaxConnections ) {
+        return new ClientSettings( pMaxConnections, mConnectionTimeoutMillis, mSocketTimeoutMillis, mMaxErrorRetry, mIdleConnectionReaper );
+    }
+
+    public ClientSettings withConnectionTimeoutMillis( int pConnectionTimeoutMillis ) {
+        return new ClientSettings( mMaxConnections, pConnectionTimeoutMillis, mSocketTimeoutMillis, mMaxErrorRetry, mIdleConnectionReaper );
+    }
+
+    public ClientSettings withSocketTimeoutMillis( int pSocketTimeoutMillis ) {
+        return new ClientSettings( mMaxConnections, mConnectionTimeoutMillis, pSocketTimeoutMillis, mMaxErrorRetry, mIdleConnectionReaper );
+    }
+
+    public ClientSettings withMaxErrorRetry( int pMaxErrorRetry ) {
+        return new ClientSettings( mMaxConnections, mConnectionTimeoutMillis, mSocketTimeoutMillis, pMaxErrorRetry, mIdleConnectionReaper );
+    }
+
+    public ClientSettings withIdleConnectionReaper( boolean pIdleConnectionReaper ) {
+        return new ClientSettings( mMaxConnections, mConnectionTimeoutMillis, mSocketTimeoutMillis, mMaxErrorRetry, pIdleConnectionReaper );
+    }
+
+    public ClientConfiguration toClientConfiguration() {
+        ClientConfiguration zConfiguration = new ClientConfiguration();
+        zConfiguration.setMaxConnections( mMaxConnections );
+        zConfiguration.setConnectionTimeout( mConnectionTimeoutMillis );
+        zConfiguration.setSocketTimeout( mSocketTimeoutMillis );
+        if ( mMaxErrorRetry >= 0 ) {
+            zConfiguration.setMaxErrorRetry( mMaxErrorRetry );
+        }
+        zConfiguration.setUseReaper( mIdleConnectionReaper );
+        return zConfiguration;
+    }
+
+    @Override
+    public boolean equals( Object o ) {
+        if ( this == o ) {
+            return true;
+        }
+        if ( !(o instanceof ClientSettings) ) {
+            return false;
+        }
+        ClientSettings them = (ClientSettings) o;
+        return (this.mMaxConnections == them.mMaxConnections) && (this.mConnectionTimeoutMillis == them.mConnectionTimeoutMillis) &&
+               (this.mSocketTimeoutMillis == them.mSocketTimeoutMillis) && (this.mMaxErrorRetry == them.mMaxErrorRetry) &&
+               (this.mIdleConnectionReaper == them.mIdleConnectionReaper);
+    }
+
+    @Override
+    public int hashCode() {
+        int zHash = mMaxConnections;
+        zHash = 31 * zHash + mConnectionTimeoutMillis;
+        zHash = 31 * zHash + mSocketTimeoutMillis;
+        zHash = 31 * zHash + mMaxErrorRetry;
+        return 31 * zHash + (mIdleConnectionReaper ? 1 : 0);
+    }
+
+    @Override
+    public String toString() {
+        return "ClientSettings(MaxConnections=" + mMaxConnections + ", ConnectionTimeout=" + mConnectionTimeoutMillis + "ms, SocketTimeout=" +
+               mSocketTimeoutMillis + "ms, MaxErrorRetry=" + mMaxErrorRetry + ", IdleConnectionReaper=" + mIdleConnectionReaper + ")";
+    }
+}
@@ -6,36 +6,50 @@ import org.litesoft.commonfoundation.exceptions.*;
 import org.litesoft.commonfoundation.indent.*;
 
 import com.amazonaws.auth.*;
+import com.amazonaws.util.*;
 import java8.util.function.*;
 
 import java.io.*;
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Credentials from a properties file, that (once refreshingEvery has been called) are reloaded when the file changes
+ * (polling its last modified & length), so keys can be rotated w/o a restart.
+ * <p/>
+ * The loaded credentials are swapped in atomically; get (and getCredentials) never block.  A file that has gone, or
+ * can't (yet) be read, leaves the current credentials in place.
+ * <p/>
+ * As an AWSCredentialsProvider, clients created w/ it pick up the new keys on their next request.
+ */
+public class CachedAWSCredentials implements Supplier<AWSCredentials>,
+                                             AWSCredentialsProvider {
+    public static final long DEFAULT_REFRESH_MILLIS = 60 * 1000;
+
+    private static Timer sRefresher;
 
-public class CachedAWSCredentials implements Supplier<AWSCredentials> {
-    private final boolean mFileFound;
     private final String mCredentialsPropertiesFileName;
-    private final AWSCredentials mAwsCredentials;
-    private final IOException mError;
-    private boolean mReported;
+    private volatile Snapshot mSnapshot;
+    private TimerTask mRefreshTask;
+    private final AtomicBoolean mReported = new AtomicBoolean();
 
     public CachedAWSCredentials( String pCredentialsPropertiesFileName ) {
         File zFile = new File( Confirm.significant( "CredentialsPropertiesFileName", pCredentialsPropertiesFileName ) );
-        mFileFound = zFile.isFile();
-        AWSCredentials zAwsCredentials = null;
-        IOException zError = null;
         try {
             pCredentialsPropertiesFileName = zFile.getCanonicalPath();
-            zAwsCredentials = new PropertiesCredentials( new FileInputStream( pCredentialsPropertiesFileName ) );
         }
         catch ( IOException e ) {
-            zError = e;
+            mCredentialsPropertiesFileName = pCredentialsPropertiesFileName;
+            mSnapshot = failed( zFile, e );
+            return;
         }
         mCredentialsPropertiesFileName = pCredentialsPropertiesFileName;
-        mAwsCredentials = zAwsCredentials;
-        mError = zError;
+        mSnapshot = load( new File( pCredentialsPropertiesFileName ) );
     }
 
     public boolean fileExists() {
-        return mFileFound;
+        return mSnapshot.mFileFound;
     }
 
     public String getCredentialsPropertiesFileName() {
@@ -43,39 +57,169 @@ public class CachedAWSCredentials implements Supplier<AWSCredentials> {
     }
 
     public boolean hasCredentials() {
-        return (mAwsCredentials != null);
+        return (mSnapshot.mAwsCredentials != null);
     }
 
+    /**
+     * Report (once) the file in use; get calls it on every request, so after the first it only checks a flag.
+     */
     public void report() {
-        report( new ConsoleIndentableWriter( "", ConsoleSOUT.INSTANCE ) );
+        if ( !mReported.get() ) {
+            report( new ConsoleIndentableWriter( "", ConsoleSOUT.INSTANCE ) );
+        }
     }
 
     public void report( IndentableWriter pWriter ) {
-        if ( (pWriter != null) && !mReported ) {
-            mReported = true;
+        if ( (pWriter != null) && mReported.compareAndSet( false, true ) ) {
             pWriter.printLn( "Using: " + mCredentialsPropertiesFileName );
         }
     }
 
     @Override
     public AWSCredentials get() {
-        if ( hasCredentials() ) {
+        Snapshot zSnapshot = mSnapshot;
+        if ( zSnapshot.mAwsCredentials != null ) {
             report();
-            return mAwsCredentials;
+            return zSnapshot.mAwsCredentials;
         }
-        throw new FileSystemException( mError );
+        throw new FileSystemException( zSnapshot.mError );
+    }
+
+    @Override
+    public AWSCredentials getCredentials() {
+        return get();
+    }
+
+    @Override
+    public void refresh() {
+        refreshIfChanged();
     }
 
     public IOException getError() {
-        return mError;
+        return mSnapshot.mError;
+    }
+
+    /**
+     * Reload the credentials if the file has changed (only other refreshes wait on a reload).
+     *
+     * @return true if different credentials were swapped in.
+     */
+    public synchronized boolean refreshIfChanged() {
+        Snapshot zCurrent = mSnapshot;
+        File zFile = new File( mCredentialsPropertiesFileName );
+        if ( (zFile.lastModified() == zCurrent.mLastModified) && (zFile.length() == zCurrent.mLength) ) {
+            return false;
+        }
+        Snapshot zLoaded;
+        try {
+            zLoaded = load( zFile );
+        }
+        catch ( RuntimeException e ) { // e.g. PropertiesCredentials w/ a (partially written) file missing a key
+            zLoaded = failed( zFile, new IOException( e ) );
+        }
+        if ( (zLoaded.mAwsCredentials == null) && (zCurrent.mAwsCredentials != null) ) {
+            return false; // Keep the current credentials (and try again next time)
+        }
+        mSnapshot = zLoaded;
+        return !areEqual( zCurrent.mCopyFriendlyIdentity, zLoaded.mCopyFriendlyIdentity );
+    }
+
+    /**
+     * Poll the file every pPeriodMillis (on a shared daemon thread), reloading it when it changes; a period of 0 (or
+     * less) stops the polling.
+     */
+    public synchronized CachedAWSCredentials refreshingEvery( long pPeriodMillis ) {
+        if ( mRefreshTask != null ) {
+            mRefreshTask.cancel();
+            mRefreshTask = null;
+        }
+        if ( pPeriodMillis > 0 ) {
+            mRefreshTask = new TimerTask() {
+                @Override
+                public void run() {
+                    try {
+                        refreshIfChanged();
+                    }
+                    catch ( RuntimeException e ) {
+                        // Don't kill the (shared) Timer - the next poll will try again
+                    }
+                }
+            };
+            refresher().schedule( mRefreshTask, pPeriodMillis, pPeriodMillis );
+        }
+        return this;
+    }
+
+    public CachedAWSCredentials refreshing() {
+        return refreshingEvery( DEFAULT_REFRESH_MILLIS );
     }
 
+    public synchronized boolean isRefreshing() {
+        return (mRefreshTask != null);
+    }
+
+    /**
+     * Compares identities computed once (per load), so it is lock free and retains nothing.
+     */
     public boolean isS3CopyFriendly( CachedAWSCredentials them ) {
-        return (them != null) && this.hasCredentials() && them.hasCredentials() && areEqual( this.mAwsCredentials, them.mAwsCredentials );
+        String zIdentity = this.mSnapshot.mCopyFriendlyIdentity;
+        return (them != null) && (zIdentity != null) && zIdentity.equals( them.mSnapshot.mCopyFriendlyIdentity );
+    }
+
+    private static synchronized Timer refresher() {
+        if ( sRefresher == null ) {
+            sRefresher = new Timer( CachedAWSCredentials.class.getSimpleName() + "-Refresher", true );
+        }
+        return sRefresher;
+    }
+
+    private static Snapshot load( File pFile ) {
+        // The file's state is taken before it is read, so a change during the read is seen by the next refresh
+        boolean zFileFound = pFile.isFile();
+        long zLastModified = pFile.lastModified(), zLength = pFile.length();
+        try {
+            return new Snapshot( zFileFound, zLastModified, zLength, new PropertiesCredentials( new FileInputStream( pFile ) ), null );
+        }
+        catch ( IOException e ) {
+            return new Snapshot( zFileFound, zLastModified, zLength, null, e );
+        }
     }
 
-    private static boolean areEqual( AWSCredentials pCredentials1, AWSCredentials pCredentials2 ) {
-        return pCredentials1.getAWSAccessKeyId().equals( pCredentials2.getAWSAccessKeyId() )
-               && pCredentials1.getAWSSecretKey().equals( pCredentials2.getAWSSecretKey() );
+    private static Snapshot failed( File pFile, IOException pError ) {
+        return new Snapshot( pFile.isFile(), pFile.lastModified(), pFile.length(), null, pError );
+    }
+
+    private static boolean areEqual( String pString1, String pString2 ) {
+        return (pString1 == null) ? (pString2 == null) : pString1.equals( pString2 );
+    }
+
+    /**
+     * @return the Access Key Id w/ a digest of the Secret Key (so the secret is not copied into yet another String).
+     */
+    private static String copyFriendlyIdentity( AWSCredentials pCredentials ) {
+        try {
+            byte[] zDigest = MessageDigest.getInstance( "SHA-256" ).digest( pCredentials.getAWSSecretKey().getBytes( "UTF-8" ) );
+            return pCredentials.getAWSAccessKeyId() + ":" + BinaryUtils.toHex( zDigest );
+        }
+        catch ( Exception e ) {
+            throw new IllegalStateException( e );
+        }
+    }
+
+    private static class Snapshot {
+        private final boolean mFileFound;
+        private final long mLastModified, mLength;
+        private final AWSCredentials mAwsCredentials;
+        private final String mCopyFriendlyIdentity;
+        private final IOException mError;
+
+        private Snapshot( boolean pFileFound, long pLastModified, long pLength, AWSCredentials pAwsCredentials, IOException pError ) {
+            mFileFound = pFileFound;
+            mLastModified = pLastModified;
+            mLength = pLength;
+            mAwsCredentials = pAwsCredentials;
+            mCopyFriendlyIdentity = (pAwsCredentials == null) ? null : copyFriendlyIdentity( pAwsCredentials );
+            mError = pError;
+        }
     }
 }
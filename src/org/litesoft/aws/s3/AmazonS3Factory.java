@@ -12,4 +12,19 @@ public class AmazonS3Factory extends ClientFactory<AmazonS3> {
     protected AmazonS3 create( AWSCredentials pCredentials ) {
         return new AmazonS3Client( pCredentials );
     }
+
+    @Override
+    protected AmazonS3 create( AWSCredentials pCredentials, ClientSettings pSettings ) {
+        return new AmazonS3Client( pCredentials, pSettings.toClientConfiguration() );
+    }
+
+    @Override
+    protected AmazonS3 create( AWSCredentialsProvider pCredentialsProvider, ClientSettings pSettings ) {
+        return new AmazonS3Client( pCredentialsProvider, pSettings.toClientConfiguration() );
+    }
+
+    @Override
+    protected void setEndpoint( AmazonS3 pClient, String pEndpoint ) {
+        pClient.setEndpoint( pEndpoint ); // Other Regions - See: http://docs.aws.amazon.com/general/latest/gr/rande.html#s3_region
+    }
 }
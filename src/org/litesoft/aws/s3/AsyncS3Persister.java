@@ -0,0 +1,234 @@
+package org.litesoft.aws.s3;
+
+import org.litesoft.commonfoundation.base.*;
+import org.litesoft.commonfoundation.exceptions.*;
+import org.litesoft.server.util.*;
+
+import java.io.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Future returning facade over a S3Persister, so that many S3 round trips can be overlapped.
+ * <p/>
+ * At most MaxInFlight requests are submitted to the Executor at once; further calls block the caller until a slot
+ * frees up (back pressure), so a loop over thousands of keys neither needs a thread per call nor floods the bucket.
+ */
+public class AsyncS3Persister {
+    public static final int DEFAULT_MAX_IN_FLIGHT = 64;
+
+    private final S3Persister mPersister;
+    private final ExecutorService mExecutor;
+    private final int mMaxInFlight;
+    private final Semaphore mInFlight;
+
+    public AsyncS3Persister( S3Persister pPersister, ExecutorService pExecutor, int pMaxInFlight ) {
+        mPersister = Confirm.isNotNull( "Persister", pPersister );
+        mMaxInFlight = Math.max( 1, pMaxInFlight );
+        mExecutor = (pExecutor != null) ? pExecutor : S3Executors.newFixedDaemonPool( "AsyncS3Persister", mMaxInFlight );
+        mInFlight = new Semaphore( mMaxInFlight );
+    }
+
+    public AsyncS3Persister( S3Persister pPersister, int pMaxInFlight ) {
+        this( pPersister, null, pMaxInFlight );
+    }
+
+    public AsyncS3Persister( S3Persister pPersister ) {
+        this( pPersister, DEFAULT_MAX_IN_FLIGHT );
+    }
+
+    public S3Persister getPersister() {
+        return mPersister;
+    }
+
+    public int getMaxInFlight() {
+        return mMaxInFlight;
+    }
+
+    public int getInFlight() {
+        return mMaxInFlight - mInFlight.availablePermits();
+    }
+
+    public Future<Boolean> fileExists( final String pPath ) {
+        return submit( new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return mPersister.fileExists( pPath );
+            }
+        } );
+    }
+
+    public Future<Boolean> isReadable( final String pPath ) {
+        return submit( new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return mPersister.isReadable( pPath );
+            }
+        } );
+    }
+
+    public Future<InputStream> getFile( final String pPath ) {
+        return submit( new Callable<InputStream>() {
+            @Override
+            public InputStream call() {
+                return mPersister.getFile( pPath );
+            }
+        } );
+    }
+
+    public Future<String[]> getTextFile( final String pPath ) {
+        return submit( new Callable<String[]>() {
+            @Override
+            public String[] call() {
+                return mPersister.getTextFile( pPath );
+            }
+        } );
+    }
+
+    public Future<Void> putFile( final String pPath, final InputStream pFileContents ) {
+        return submit( new Callable<Void>() {
+            @Override
+            public Void call() {
+                mPersister.putFile( pPath, pFileContents );
+                return null;
+            }
+        } );
+    }
+
+    public Future<Void> putTextFile( final String pPath, final String[] pLines ) {
+        return submit( new Callable<Void>() {
+            @Override
+            public Void call() {
+                mPersister.putTextFile( pPath, pLines );
+                return null;
+            }
+        } );
+    }
+
+    public Future<Void> copyFile( final String pSourcePath, final String pDestinationPath ) {
+        return submit( new Callable<Void>() {
+            @Override
+            public Void call() {
+                mPersister.copyFile( pSourcePath, pDestinationPath );
+                return null;
+            }
+        } );
+    }
+
+    public Future<Void> copyFile( final Persister pSourcePersister, final String pSourcePath, final String pDestinationPath ) {
+        return submit( new Callable<Void>() {
+            @Override
+            public Void call() {
+                mPersister.copyFile( pSourcePersister, pSourcePath, pDestinationPath );
+                return null;
+            }
+        } );
+    }
+
+    public Future<Void> deleteFile( final String pPath ) {
+        return submit( new Callable<Void>() {
+            @Override
+            public Void call() {
+                mPersister.deleteFile( pPath );
+                return null;
+            }
+        } );
+    }
+
+    public Future<Void> deleteDirectory( final String pPath ) {
+        return submit( new Callable<Void>() {
+            @Override
+            public Void call() {
+                mPersister.deleteDirectory( pPath );
+                return null;
+            }
+        } );
+    }
+
+    public Future<String[]> getFiles( final String pFilesSubDirectory, final String pFileNamePrefix, final String pFileExtension ) {
+        return submit( new Callable<String[]>() {
+            @Override
+            public String[] call() {
+                return mPersister.getFiles( pFilesSubDirectory, pFileNamePrefix, pFileExtension );
+            }
+        } );
+    }
+
+    public Future<String[]> getDirectories( final String pDirectoryNamePrefix ) {
+        return submit( new Callable<String[]>() {
+            @Override
+            public String[] call() {
+                return mPersister.getDirectories( pDirectoryNamePrefix );
+            }
+        } );
+    }
+
+    public Future<String[]> getAllFilesUnder( final String pFilesSubDirectory ) {
+        return submit( new Callable<String[]>() {
+            @Override
+            public String[] call() {
+                return mPersister.getAllFilesUnder( pFilesSubDirectory );
+            }
+        } );
+    }
+
+    /**
+     * Blocks (interruptibly) for an in flight slot, which is freed when the returned Future is done: completed, failed,
+     * or cancelled (but not while a cancelled operation is still running).
+     */
+    protected <T> Future<T> submit( Callable<T> pOperation )
+            throws FileSystemException {
+        try {
+            mInFlight.acquire();
+        }
+        catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new FileSystemException( e );
+        }
+        InFlightTask<T> zTask = new InFlightTask<T>( pOperation );
+        try {
+            mExecutor.execute( zTask );
+        }
+        catch ( RuntimeException e ) { // e.g. RejectedExecutionException
+            zTask.cancel( false ); // Frees the slot
+            throw e;
+        }
+        return zTask;
+    }
+
+    private class InFlightTask<T> extends FutureTask<T> {
+        private final AtomicBoolean mRunning = new AtomicBoolean();
+        private final AtomicBoolean mReleased = new AtomicBoolean();
+
+        private InFlightTask( Callable<T> pOperation ) {
+            super( pOperation );
+        }
+
+        @Override
+        public void run() {
+            mRunning.set( true );
+            try {
+                super.run();
+            }
+            finally {
+                mRunning.set( false );
+                if ( isDone() ) { // Completed, or cancelled while running (either way, done() left the slot to us)
+                    release();
+                }
+            }
+        }
+
+        @Override
+        protected void done() {
+            if ( !mRunning.get() ) {
+                release();
+            }
+        }
+
+        private void release() {
+            if ( mReleased.compareAndSet( false, true ) ) {
+                mInFlight.release();
+            }
+        }
+    }
+}
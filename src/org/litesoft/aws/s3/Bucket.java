@@ -48,6 +48,6 @@ public class Bucket {
     }
 
     protected void addCloudFrontURL( MsgBuilder pBuilder ) {
-        pBuilder.addOptionalText( "(", mS3Endpoint );
+        pBuilder.addOptionalText( ", ", mCloudFrontURL );
     }
 }
@@ -7,11 +7,20 @@ import org.litesoft.commonfoundation.indent.*;
 import org.litesoft.server.file.*;
 
 import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
 
+/**
+ * Resolves (searching ancestral directories) the credentials for a bucket.  Resolved credentials are cached (per bucket
+ * name, file prefixes, and working directory), and refresh themselves as their file changes, so persisters set up
+ * later share them (and their pooled clients) w/o searching again.
+ */
 public class BucketCredentials {
     public static final String CREDENTIALS_PREFIX = "AwsCredentials";
     public static final String CREDENTIALS_SUFFIX = ".properties";
 
+    private static final ConcurrentMap<String, CachedAWSCredentials> RESOLVED = new ConcurrentHashMap<String, CachedAWSCredentials>();
+
     private final String mBucketName;
     private IndentableWriter mWriter;
 
@@ -33,6 +42,22 @@ public class BucketCredentials {
     }
 
     public CachedAWSCredentials get( String... pFilePrefixes ) {
+        String zKey = mBucketName + "|" + Arrays.toString( pFilePrefixes ) + "|" + FileUtils.currentWorkingDirectory();
+        CachedAWSCredentials zCredentials = RESOLVED.get( zKey );
+        if ( zCredentials == null ) {
+            if ( !(zCredentials = resolve( pFilePrefixes )).hasCredentials() ) {
+                return zCredentials; // Not cached, so a file added later will be found
+            }
+            CachedAWSCredentials zRaced = RESOLVED.putIfAbsent( zKey, zCredentials.refreshing() );
+            if ( zRaced != null ) {
+                zCredentials.refreshingEvery( 0 );
+                zCredentials = zRaced;
+            }
+        }
+        return zCredentials;
+    }
+
+    private CachedAWSCredentials resolve( String[] pFilePrefixes ) {
         CachedAWSCredentials zCredentials = load( mBucketName, pFilePrefixes );
         if ( zCredentials.hasCredentials() ) {
             return zCredentials;
@@ -0,0 +1,149 @@
+package org.litesoft.aws.s3;
+
+import org.litesoft.commonfoundation.exceptions.*;
+
+import com.amazonaws.services.s3.model.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Deletes a stream of keys in full (1000 key) DeleteObjects batches, several batches at a time.
+ * <p/>
+ * Keys reported as failed (MultiObjectDeleteException) w/ a retryable error (e.g. InternalError or SlowDown) are retried
+ * on their own, after the S3Retrier's backoff, so the caller never needs to re-list; any other key error (e.g.
+ * AccessDenied) fails the delete immediately.
+ */
+public class S3BulkDeleter {
+    public static final int MAX_KEYS_PER_REQUEST = 1000; // S3 limit
+    public static final int DEFAULT_BATCHES_IN_FLIGHT = 4;
+    public static final int DEFAULT_MAX_ATTEMPTS = 3;
+
+    public static final S3BulkDeleter INSTANCE = new S3BulkDeleter();
+
+    private final int mBatchesInFlight;
+    private final int mMaxAttempts;
+    private final ExecutorService mExecutor;
+
+    public S3BulkDeleter( int pBatchesInFlight, int pMaxAttempts, ExecutorService pExecutor ) {
+        mBatchesInFlight = Math.max( 1, pBatchesInFlight );
+        mMaxAttempts = Math.max( 1, pMaxAttempts );
+        mExecutor = (pExecutor != null) ? pExecutor : S3Executors.newFixedDaemonPool( "S3BulkDeleter", mBatchesInFlight );
+    }
+
+    public S3BulkDeleter( int pBatchesInFlight ) {
+        this( pBatchesInFlight, DEFAULT_MAX_ATTEMPTS, null );
+    }
+
+    public S3BulkDeleter() {
+        this( DEFAULT_BATCHES_IN_FLIGHT );
+    }
+
+    /**
+     * @return the number of keys deleted.
+     */
+    public long delete( S3Persister pPersister, Iterator<String> pKeys )
+            throws FileSystemException {
+        Semaphore zInFlight = new Semaphore( mBatchesInFlight );
+        List<Future<Integer>> zBatches = new ArrayList<Future<Integer>>();
+        try {
+            while ( pKeys.hasNext() ) {
+                List<String> zBatch = new ArrayList<String>( MAX_KEYS_PER_REQUEST );
+                while ( (zBatch.size() < MAX_KEYS_PER_REQUEST) && pKeys.hasNext() ) {
+                    zBatch.add( pKeys.next() );
+                }
+                zInFlight.acquire();
+                zBatches.add( mExecutor.submit( new BatchDeleter( pPersister, zBatch, zInFlight ) ) );
+                checkForFailedBatches( zBatches );
+            }
+            long zDeleted = 0;
+            for ( Future<Integer> zBatch : zBatches ) {
+                zDeleted += zBatch.get();
+            }
+            return zDeleted;
+        }
+        catch ( Exception e ) {
+            for ( Future<Integer> zBatch : zBatches ) {
+                zBatch.cancel( false );
+            }
+            Throwable zCause = (e instanceof ExecutionException) ? e.getCause() : e;
+            if ( zCause instanceof InterruptedException ) {
+                Thread.currentThread().interrupt();
+            }
+            if ( zCause instanceof FileSystemException ) {
+                throw (FileSystemException) zCause;
+            }
+            throw pPersister.convert( (zCause instanceof Exception) ? (Exception) zCause : e, "bulk delete" );
+        }
+    }
+
+    private void checkForFailedBatches( List<Future<Integer>> pBatches )
+            throws ExecutionException, InterruptedException {
+        for ( Future<Integer> zBatch : pBatches ) {
+            if ( zBatch.isDone() ) {
+                zBatch.get(); // Throws if the Batch failed
+            }
+        }
+    }
+
+    private class BatchDeleter implements Callable<Integer> {
+        private final S3Persister mPersister;
+        private final List<String> mKeys;
+        private final Semaphore mInFlight;
+
+        private BatchDeleter( S3Persister pPersister, List<String> pKeys, Semaphore pInFlight ) {
+            mPersister = pPersister;
+            mKeys = pKeys;
+            mInFlight = pInFlight;
+        }
+
+        @Override
+        public Integer call()
+                throws InterruptedException {
+            try {
+                List<String> zKeys = mKeys;
+                for ( int zAttempt = 1; true; zAttempt++ ) {
+                    final String[] zBatch = zKeys.toArray( new String[zKeys.size()] );
+                    try {
+                        mPersister.executeUnchecked( "deleteObjects", new S3Operation<DeleteObjectsResult>() { // Throttling & Errors
+                            @Override
+                            public DeleteObjectsResult execute() {
+                                return mPersister.mClient.deleteObjects( new DeleteObjectsRequest( mPersister.getBucketName() ).withQuiet( true ) //
+                                                                                 .withKeys( zBatch ) );
+                            }
+                        } );
+                        return mKeys.size();
+                    }
+                    catch ( MultiObjectDeleteException e ) {
+                        List<String> zRetryable = new ArrayList<String>();
+                        List<String> zFailed = new ArrayList<String>();
+                        boolean zSlowDown = false;
+                        for ( MultiObjectDeleteException.DeleteError zError : e.getErrors() ) {
+                            if ( S3Retrier.isRetryable( zError.getCode() ) ) {
+                                zRetryable.add( zError.getKey() );
+                                zSlowDown |= S3Retrier.isSlowDown( zError.getCode() );
+                            } else {
+                                zFailed.add( zError.getKey() + " (" + zError.getCode() + ")" );
+                            }
+                        }
+                        if ( !zFailed.isEmpty() || zRetryable.isEmpty() ) {
+                            throw new FileSystemException( "Unable to delete: " + zFailed, e );
+                        }
+                        if ( zAttempt >= mMaxAttempts ) {
+                            throw new FileSystemException( "Unable to delete (after " + zAttempt + " attempts): " + zRetryable, e );
+                        }
+                        S3RateLimiter zLimiter = mPersister.getRateLimiter();
+                        if ( zSlowDown && (zLimiter != null) ) {
+                            zLimiter.onSlowDown();
+                        }
+                        mPersister.getRetrier().backoff( "deleteObjects", zAttempt );
+                        zKeys = zRetryable; // Only retry the keys that failed (retryably)
+                    }
+                }
+            }
+            finally {
+                mInFlight.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package org.litesoft.aws.s3;
+
+import org.litesoft.commonfoundation.exceptions.*;
+
+import com.amazonaws.*;
+import com.amazonaws.services.s3.model.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Answers existence (and size, ETag, last modified) for a set of paths from a few listings rather than a HEAD each.
+ * <p/>
+ * The paths are grouped by directory; a directory w/ at least MinPathsToList of the paths is listed (delimited, within
+ * the longest prefix its paths share, starting just before its first path, and only as far as its last path), the
+ * others are HEADed.  As a listing page (of up to 1000 keys) only pays for itself if it covers at least one of the
+ * paths, a listing whose pages (so far) average less than one path each is judged too sparse, and its remaining paths
+ * are HEADed instead.  Listings and HEADs are run in parallel.
+ */
+public class S3BulkMetadataLoader {
+    public static final int DEFAULT_MIN_PATHS_TO_LIST = 4;
+    public static final int DEFAULT_CONCURRENCY = 16;
+    public static final int LIST_PAGE_SIZE = 1000; // S3's (maximum) keys per listObjects page
+
+    public static final S3BulkMetadataLoader INSTANCE = new S3BulkMetadataLoader();
+
+    private final int mMinPathsToList;
+    private final ExecutorService mExecutor;
+
+    public S3BulkMetadataLoader( int pMinPathsToList, int pConcurrency, ExecutorService pExecutor ) {
+        mMinPathsToList = Math.max( 1, pMinPathsToList );
+        mExecutor = (pExecutor != null) ? pExecutor : S3Executors.newFixedDaemonPool( "S3BulkMetadataLoader", pConcurrency );
+    }
+
+    public S3BulkMetadataLoader( int pMinPathsToList ) {
+        this( pMinPathsToList, DEFAULT_CONCURRENCY, null );
+    }
+
+    public S3BulkMetadataLoader() {
+        this( DEFAULT_MIN_PATHS_TO_LIST );
+    }
+
+    /**
+     * @return the metadata of the pPaths that exist (those that do not are simply absent).
+     */
+    public Map<String, S3FileMetadata> load( S3Persister pPersister, Collection<String> pPaths )
+            throws FileSystemException {
+        Map<String, List<String>> zPathsByDirectory = new HashMap<String, List<String>>();
+        for ( String zPath : new TreeSet<String>( pPaths ) ) {
+            String zDirectory = zPath.substring( 0, zPath.lastIndexOf( '/' ) + 1 );
+            List<String> zPaths = zPathsByDirectory.get( zDirectory );
+            if ( zPaths == null ) {
+                zPathsByDirectory.put( zDirectory, zPaths = new ArrayList<String>() );
+            }
+            zPaths.add( zPath );
+        }
+        Map<String, S3FileMetadata> zFound = new ConcurrentHashMap<String, S3FileMetadata>();
+        List<Future<List<String>>> zTasks = new ArrayList<Future<List<String>>>();
+        try {
+            for ( List<String> zPaths : zPathsByDirectory.values() ) {
+                if ( zPaths.size() >= mMinPathsToList ) {
+                    zTasks.add( mExecutor.submit( new Lister( pPersister, zPaths, zFound ) ) );
+                } else {
+                    submitHeaders( pPersister, zPaths, zFound, zTasks );
+                }
+            }
+            for ( int i = 0; i < zTasks.size(); i++ ) { // Grows w/ the HEADs of the paths of listings too sparse to finish
+                submitHeaders( pPersister, zTasks.get( i ).get(), zFound, zTasks );
+            }
+            return new HashMap<String, S3FileMetadata>( zFound );
+        }
+        catch ( Exception e ) {
+            for ( Future<List<String>> zTask : zTasks ) {
+                zTask.cancel( false );
+            }
+            Throwable zCause = (e instanceof ExecutionException) ? e.getCause() : e;
+            if ( zCause instanceof InterruptedException ) {
+                Thread.currentThread().interrupt();
+            }
+            if ( zCause instanceof FileSystemException ) {
+                throw (FileSystemException) zCause;
+            }
+            throw pPersister.convert( (zCause instanceof Exception) ? (Exception) zCause : e, "bulk metadata" );
+        }
+    }
+
+    private void submitHeaders( S3Persister pPersister, List<String> pPaths, Map<String, S3FileMetadata> pFound,
+                                List<Future<List<String>>> pTasks ) {
+        for ( String zPath : pPaths ) {
+            pTasks.add( mExecutor.submit( new Header( pPersister, zPath, pFound ) ) );
+        }
+    }
+
+    /**
+     * @return <0, 0, or >0 as pKey1 sorts before, with, or after pKey2 in S3's (UTF-8 binary, i.e. code point) order.
+     */
+    static int compareKeys( String pKey1, String pKey2 ) {
+        int i1 = 0, i2 = 0;
+        while ( (i1 < pKey1.length()) && (i2 < pKey2.length()) ) {
+            int zCodePoint1 = pKey1.codePointAt( i1 );
+            int zCodePoint2 = pKey2.codePointAt( i2 );
+            if ( zCodePoint1 != zCodePoint2 ) {
+                return zCodePoint1 - zCodePoint2;
+            }
+            i1 += Character.charCount( zCodePoint1 );
+            i2 += Character.charCount( zCodePoint2 );
+        }
+        return (pKey1.length() - i1) - (pKey2.length() - i2);
+    }
+
+    /**
+     * @param pSortedPaths all in the same directory
+     */
+    private static String commonPrefix( List<String> pSortedPaths ) {
+        String zFirst = pSortedPaths.get( 0 );
+        String zLast = pSortedPaths.get( pSortedPaths.size() - 1 );
+        int zLength = 0;
+        while ( (zLength < zFirst.length()) && (zLength < zLast.length()) && (zFirst.charAt( zLength ) == zLast.charAt( zLength )) ) {
+            zLength++;
+        }
+        if ( (zLength != 0) && Character.isHighSurrogate( zFirst.charAt( zLength - 1 ) ) ) {
+            zLength--; // Don't split a surrogate pair
+        }
+        return zFirst.substring( 0, zLength );
+    }
+
+    /**
+     * @return the (shortest) key that sorts just before pKey (so a listing w/ it as the marker starts w/ pKey), or null
+     * if there is none (pKey is a single character).
+     */
+    static String marker( String pKey ) {
+        int zLength = pKey.length() - Character.charCount( pKey.codePointBefore( pKey.length() ) );
+        return (zLength == 0) ? null : pKey.substring( 0, zLength ); // A proper prefix sorts before it
+    }
+
+    /**
+     * Returns the paths it didn't get to, when the listing proved too sparse (to be worth finishing).
+     */
+    private static class Lister implements Callable<List<String>> {
+        private final S3Persister mPersister;
+        private final List<String> mPaths;
+        private final Map<String, S3FileMetadata> mFound;
+
+        private Lister( S3Persister pPersister, List<String> pSortedPaths, Map<String, S3FileMetadata> pFound ) {
+            mPersister = pPersister;
+            mPaths = pSortedPaths;
+            mFound = pFound;
+        }
+
+        @Override
+        public List<String> call() {
+            List<String> zWanted = new ArrayList<String>( mPaths ); // In S3's order, so the listing passes them in turn
+            Collections.sort( zWanted, new Comparator<String>() {
+                @Override
+                public int compare( String pKey1, String pKey2 ) {
+                    return compareKeys( pKey1, pKey2 );
+                }
+            } );
+            ListObjectsRequest zRequest = mPersister.createListRequest( commonPrefix( mPaths ), true ) //
+                    .withMarker( marker( zWanted.get( 0 ) ) ).withMaxKeys( LIST_PAGE_SIZE );
+            Iterator<S3ObjectSummary> zIt = mPersister.summaryIterator( zRequest, null );
+            int zNext = 0; // into zWanted
+            for ( long zListed = 1; (zNext < zWanted.size()) && zIt.hasNext(); zListed++ ) {
+                S3ObjectSummary zSummary = zIt.next();
+                String zKey = zSummary.getKey();
+                while ( (zNext < zWanted.size()) && (compareKeys( zWanted.get( zNext ), zKey ) < 0) ) {
+                    zNext++; // Passed it, so it doesn't exist
+                }
+                if ( (zNext < zWanted.size()) && zWanted.get( zNext ).equals( zKey ) ) {
+                    mFound.put( zKey, new S3FileMetadata( zSummary ) );
+                    zNext++;
+                }
+                if ( ((zListed % LIST_PAGE_SIZE) == 0) && (zNext < (zListed / LIST_PAGE_SIZE)) ) {
+                    return new ArrayList<String>( zWanted.subList( zNext, zWanted.size() ) ); // Fewer than one path per page
+                }
+            }
+            return Collections.emptyList(); // Any not passed are after the last key listed, so don't exist
+        }
+    }
+
+    private static class Header implements Callable<List<String>> {
+        private final S3Persister mPersister;
+        private final String mPath;
+        private final Map<String, S3FileMetadata> mFound;
+
+        private Header( S3Persister pPersister, String pPath, Map<String, S3FileMetadata> pFound ) {
+            mPersister = pPersister;
+            mPath = pPath;
+            mFound = pFound;
+        }
+
+        @Override
+        public List<String> call() {
+            ObjectMetadata zMetadata = mPersister.execute( "fileExists", mPath, new S3Operation<ObjectMetadata>() {
+                @Override
+                public ObjectMetadata execute() {
+                    try {
+                        return mPersister.mClient.getObjectMetadata( mPersister.getBucketName(), mPath );
+                    }
+                    catch ( AmazonServiceException e ) {
+                        if ( e.getStatusCode() == 404 ) {
+                            return null;
+                        }
+                        throw e;
+                    }
+                }
+            } );
+            if ( zMetadata != null ) {
+                mFound.put( mPath, new S3FileMetadata( mPath, zMetadata ) );
+            }
+            return Collections.emptyList();
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package org.litesoft.aws.s3;
 
+import org.litesoft.aws.clients.*;
 import org.litesoft.aws.credentials.*;
 import org.litesoft.commonfoundation.base.*;
 import org.litesoft.commonfoundation.exceptions.*;
@@ -9,24 +10,39 @@ import org.litesoft.server.util.*;
 import com.amazonaws.*;
 import com.amazonaws.services.s3.*;
 import com.amazonaws.services.s3.model.*;
+import java8.util.Spliterator;
+import java8.util.Spliterators;
+import java8.util.stream.*;
 
 import java.io.*;
 import java.text.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 public abstract class S3ClientSupport extends Persister {
     private final CachedAWSCredentials mCredentials;
     private final Bucket mBucket;
+    private final ClientFactory.Lease<AmazonS3> mClientLease;
     protected final AmazonS3 mClient;
     protected final String m2Jan1970, mOneYearFromNow;
+    private volatile S3Retrier mRetrier = S3Retrier.INSTANCE;
+    private volatile S3RateLimiter mRateLimiter;
+    private volatile S3Metrics mMetrics;
 
-    protected S3ClientSupport( CachedAWSCredentials pCredentials, Bucket pBucket )
+    /**
+     * @param pClientSettings null for ClientSettings.DEFAULT; a (negative) SDK default MaxErrorRetry is turned into 0, as
+     *                        the S3Retrier does the retrying (w/ SDK retries too, each S3Retrier attempt would be 4)
+     */
+    protected S3ClientSupport( CachedAWSCredentials pCredentials, Bucket pBucket, ClientSettings pClientSettings )
             throws IOException {
         mCredentials = Confirm.isNotNull( "Credentials", pCredentials );
         mBucket = Confirm.isNotNull( "Bucket", pBucket );
         System.setProperty( "org.apache.commons.logging.Log", "org.apache.commons.logging.impl.NoOpLog" );
-        mClient = AmazonS3Factory.INSTANCE.supplierWith( pCredentials ).get();
-        mClient.setEndpoint( pBucket.getS3Endpoint() ); // Other Regions - See: http://docs.aws.amazon.com/general/latest/gr/rande.html#s3_region
+        pCredentials.get(); // Fail fast (w/ the credentials' error)
+        // Clients (and their connection pools) are shared by all persisters w/ the same Credentials, Endpoint, & Settings;
+        // the Client asks pCredentials on each request, so it uses refreshed credentials
+        mClientLease = AmazonS3Factory.INSTANCE.lease( pCredentials, pBucket.getS3Endpoint(), retrierInCharge( pClientSettings ) );
+        mClient = mClientLease.get();
         // RFC 1123: "Thu, 01 Dec 1994 16:00:00 GMT"
         String fmt = "EEE, dd MMM yyyy HH:mm:ss zzz";
         SimpleDateFormat zFormatter = new SimpleDateFormat( fmt, Locale.US );
@@ -35,11 +51,136 @@ public abstract class S3ClientSupport extends Persister {
         mOneYearFromNow = zFormatter.format( new Date( System.currentTimeMillis() + 31536000000l ) );
     }
 
+    protected S3ClientSupport( CachedAWSCredentials pCredentials, Bucket pBucket )
+            throws IOException {
+        this( pCredentials, pBucket, null );
+    }
+
+    private static ClientSettings retrierInCharge( ClientSettings pClientSettings ) {
+        ClientSettings zSettings = (pClientSettings != null) ? pClientSettings : ClientSettings.DEFAULT;
+        return (zSettings.getMaxErrorRetry() < 0) ? zSettings.withMaxErrorRetry( 0 ) : zSettings;
+    }
+
+    /**
+     * Release this persister's lease on its (shared) client; the persister should not be used afterwards.
+     */
+    public void dispose() {
+        mClientLease.release();
+    }
+
     @Override
     public String toString() {
         return mBucket.toString();
     }
 
+    public S3Retrier getRetrier() {
+        return mRetrier;
+    }
+
+    /**
+     * @param pRetrier null for S3Retrier.INSTANCE
+     */
+    protected void setRetrier( S3Retrier pRetrier ) {
+        mRetrier = ConstrainTo.notNull( pRetrier, S3Retrier.INSTANCE );
+    }
+
+    public S3RateLimiter getRateLimiter() {
+        return mRateLimiter;
+    }
+
+    /**
+     * @param pRateLimiter null (the default) for no rate limiting
+     */
+    protected void setRateLimiter( S3RateLimiter pRateLimiter ) {
+        mRateLimiter = pRateLimiter;
+    }
+
+    public S3Metrics getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * @param pMetrics null for no metrics
+     */
+    protected void setMetrics( S3Metrics pMetrics ) {
+        mMetrics = pMetrics;
+    }
+
+    protected void countBytesIn( String pOperationName, long pBytes ) {
+        S3Metrics zMetrics = mMetrics;
+        if ( zMetrics != null ) {
+            zMetrics.addBytesIn( pOperationName, pBytes );
+        }
+    }
+
+    protected void countBytesOut( String pOperationName, long pBytes ) {
+        S3Metrics zMetrics = mMetrics;
+        if ( zMetrics != null ) {
+            zMetrics.addBytesOut( pOperationName, pBytes );
+        }
+    }
+
+    /**
+     * Execute pOperation (rate limited, and retried per the S3Retrier), converting any failure to a FileSystemException.
+     */
+    protected <T> T execute( String pOperationName, String pPath, S3Operation<T> pOperation )
+            throws FileSystemException {
+        return execute( pOperationName, pPath, mRetrier.getMaxAttempts(), pOperation );
+    }
+
+    /**
+     * @param pMaxAttempts 1 when pOperation can NOT be repeated (e.g. it consumes a caller's stream).
+     */
+    protected <T> T execute( String pOperationName, String pPath, int pMaxAttempts, S3Operation<T> pOperation )
+            throws FileSystemException {
+        try {
+            return executeRaw( pOperationName, pMaxAttempts, pOperation );
+        }
+        catch ( FileSystemException e ) {
+            throw e;
+        }
+        catch ( Exception e ) {
+            throw convert( e, pPath );
+        }
+    }
+
+    /**
+     * Execute pOperation (rate limited, and retried per the S3Retrier), leaving any failure as is.
+     */
+    protected <T> T executeRaw( String pOperationName, int pMaxAttempts, S3Operation<T> pOperation )
+            throws Exception {
+        S3Metrics zMetrics = mMetrics;
+        return mRetrier.execute( mRateLimiter, pOperationName, pMaxAttempts, //
+                                 (zMetrics == null) ? pOperation : zMetrics.instrument( pOperationName, pOperation ) );
+    }
+
+    protected <T> T executeRaw( String pOperationName, S3Operation<T> pOperation )
+            throws Exception {
+        return executeRaw( pOperationName, mRetrier.getMaxAttempts(), pOperation );
+    }
+
+    /**
+     * executeRaw for operations that only throw RuntimeExceptions (others are wrapped in a FileSystemException).
+     */
+    protected <T> T executeUnchecked( String pOperationName, S3Operation<T> pOperation ) {
+        try {
+            return executeRaw( pOperationName, pOperation );
+        }
+        catch ( RuntimeException e ) {
+            throw e;
+        }
+        catch ( Exception e ) {
+            if ( e instanceof InterruptedException ) {
+                Thread.currentThread().interrupt();
+            }
+            throw new FileSystemException( e );
+        }
+    }
+
+    public Bucket getBucket() {
+        return mBucket;
+    }
+
     protected String getBucketName() {
         return mBucket.getName();
     }
@@ -80,53 +221,243 @@ public abstract class S3ClientSupport extends Persister {
         boolean filteredAdd( String pPath, Collection<String> pCollector );
     }
 
+    protected static final S3ListFilter ALL_S3LISTFILTER = new S3ListFilter() {
+        @Override
+        public boolean filteredAdd( String pPath, Collection<String> pCollector ) {
+            pCollector.add( pPath );
+            return true;
+        }
+    };
+
     protected Set<String> getKeySet( String pKeyPrefix, S3ListFilter pFilter ) {
         Set<String> zFound = new HashSet<String>();
+        for ( Iterator<String> zIt = keyIterator( pKeyPrefix, pFilter ); zIt.hasNext(); ) {
+            zFound.add( zIt.next() );
+        }
+        return zFound;
+    }
+
+    /**
+     * @return a lazy Iterator over the keys starting with pKeyPrefix (pages are listed as needed, and the next page is
+     * prefetched while the current one is consumed).
+     */
+    protected Iterator<String> keyIterator( String pKeyPrefix ) {
+        return keyIterator( pKeyPrefix, ALL_S3LISTFILTER );
+    }
+
+    /**
+     * @return a lazy Iterator over what pFilter adds for each key starting with pKeyPrefix.  The listing stops as soon as
+     * pFilter returns false, and as keys are listed in order, consecutive duplicates (e.g. directory names) are dropped.
+     */
+    protected Iterator<String> keyIterator( String pKeyPrefix, S3ListFilter pFilter ) {
+        return keyIterator( pKeyPrefix, pFilter, false );
+    }
+
+    /**
+     * @param pDelimited if true, S3 rolls up everything under a further "/" (after pKeyPrefix) into a Common Prefix, so
+     *                   only the keys at the "top" level of pKeyPrefix are listed (sent over the wire).
+     */
+    protected Iterator<String> keyIterator( String pKeyPrefix, S3ListFilter pFilter, boolean pDelimited ) {
         try {
-            for ( S3ListObjectsIterator zIt = new S3ListObjectsIterator( mClient, getBucketName(), pKeyPrefix ); zIt.hasNext(); ) {
-                pFilter.filteredAdd( zIt.next().getKey(), zFound );
+            return new S3KeyIterator( pKeyPrefix, pFilter, new S3ListObjectsIterator( createListRequest( pKeyPrefix, pDelimited ), null ) );
+        }
+        catch ( Exception e ) {
+            throw convert( e, pKeyPrefix );
+        }
+    }
+
+    /**
+     * @return the (server side rolled up) Common Prefixes, each ending with "/", directly under pKeyPrefix.
+     */
+    protected Set<String> getCommonPrefixes( String pKeyPrefix ) {
+        Set<String> zCommonPrefixes = new LinkedHashSet<String>();
+        try {
+            for ( Iterator<S3ObjectSummary> zIt = new S3ListObjectsIterator( createListRequest( pKeyPrefix, true ), zCommonPrefixes );
+                  zIt.hasNext(); ) {
+                zIt.next(); // Just to page thru the Common Prefixes
             }
         }
         catch ( Exception e ) {
             throw convert( e, pKeyPrefix );
         }
-        return zFound;
+        return zCommonPrefixes;
+    }
+
+    /**
+     * @return a lazy Iterator over the Object Summaries from pRequest (with prefetch of the next page).
+     */
+    protected Iterator<S3ObjectSummary> summaryIterator( ListObjectsRequest pRequest, Collection<String> pCommonPrefixCollector ) {
+        return new S3ListObjectsIterator( pRequest, pCommonPrefixCollector );
+    }
+
+    protected ListObjectsRequest createListRequest( String pKeyPrefix, boolean pDelimited ) {
+        ListObjectsRequest zRequest = new ListObjectsRequest().withBucketName( getBucketName() ).withPrefix( pKeyPrefix );
+        return pDelimited ? zRequest.withDelimiter( "/" ) : zRequest;
+    }
+
+    /**
+     * @return a lazy (sequential) Stream over the keys starting with pKeyPrefix.
+     */
+    public Stream<String> keyStream( String pKeyPrefix ) {
+        return StreamSupport.stream( Spliterators.spliteratorUnknownSize( keyIterator( pKeyPrefix ), //
+                                                                          Spliterator.ORDERED | Spliterator.NONNULL ), false );
     }
 
     protected String[] getKeyList( String pKeyPrefix, S3ListFilter pFilter ) {
-        Set<String> zFound = getKeySet( pKeyPrefix, pFilter );
+        return getKeyList( pKeyPrefix, pFilter, false );
+    }
+
+    protected String[] getKeyList( String pKeyPrefix, S3ListFilter pFilter, boolean pDelimited ) {
+        Set<String> zFound = new HashSet<String>();
+        for ( Iterator<String> zIt = keyIterator( pKeyPrefix, pFilter, pDelimited ); zIt.hasNext(); ) {
+            zFound.add( zIt.next() );
+        }
         return zFound.toArray( new String[zFound.size()] );
     }
 
+    /**
+     * @return nullable - the key prefix that is reserved for this support's own bookkeeping (e.g. the S3PrefixIndex's
+     * IndexRoot), whose keys and Common Prefixes are left out of every listing (and so are never deleted w/ a directory).
+     */
+    protected String getReservedKeyPrefix() {
+        return null;
+    }
+
     protected boolean isS3CopyFriendly( S3ClientSupport them ) {
         return (this.mCredentials != null) && this.mCredentials.isS3CopyFriendly( them.mCredentials );
     }
 
-    private static class S3ListObjectsIterator implements Iterator<S3ObjectSummary> {
-        private final AmazonS3 mClient;
+    private class S3KeyIterator implements Iterator<String> {
+        private final String mKeyPrefix;
+        private final S3ListFilter mFilter;
+        private final Iterator<S3ObjectSummary> mSummaries;
+        private final LinkedList<String> mPending = new LinkedList<String>();
+        private String mLastReturned;
+        private boolean mStopped;
+
+        private S3KeyIterator( String pKeyPrefix, S3ListFilter pFilter, Iterator<S3ObjectSummary> pSummaries ) {
+            mKeyPrefix = pKeyPrefix;
+            mFilter = pFilter;
+            mSummaries = pSummaries;
+        }
+
+        @Override
+        public boolean hasNext() {
+            try {
+                while ( mPending.isEmpty() && !mStopped && mSummaries.hasNext() ) {
+                    mStopped = !mFilter.filteredAdd( mSummaries.next().getKey(), mPending );
+                    for ( Iterator<String> zIt = mPending.iterator(); zIt.hasNext(); ) {
+                        String zKey = zIt.next();
+                        if ( zKey.equals( mLastReturned ) ) {
+                            zIt.remove();
+                        } else {
+                            mLastReturned = zKey;
+                        }
+                    }
+                }
+            }
+            catch ( Exception e ) {
+                throw convert( e, mKeyPrefix );
+            }
+            return !mPending.isEmpty();
+        }
+
+        @Override
+        public String next() {
+            if ( hasNext() ) {
+                return mPending.removeFirst();
+            }
+            throw new NoSuchElementException();
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    private static final ExecutorService LIST_PREFETCHER = S3Executors.newFixedDaemonPool( "S3ListPrefetcher", 8 );
+
+    private class S3ListObjectsIterator implements Iterator<S3ObjectSummary> {
         private ObjectListing mObjectListing;
         private Iterator<S3ObjectSummary> mCurIterator;
+        private final Collection<String> mCommonPrefixCollector;
+        private final String mReservedKeyPrefix = getReservedKeyPrefix();
+        private Future<ObjectListing> mNextBlock;
 
-        public S3ListObjectsIterator( AmazonS3 pClient, String pBucketName, String pPrefix ) {
-            mClient = pClient;
-            handleBlock( mClient.listObjects( pBucketName, pPrefix ) );
+        /**
+         * @param pCommonPrefixCollector nullable - the Common Prefixes of each page are added as the page is reached.
+         */
+        public S3ListObjectsIterator( final ListObjectsRequest pRequest, Collection<String> pCommonPrefixCollector ) {
+            mCommonPrefixCollector = pCommonPrefixCollector;
+            handleBlock( executeUnchecked( "listObjects", new S3Operation<ObjectListing>() {
+                @Override
+                public ObjectListing execute() {
+                    return mClient.listObjects( pRequest );
+                }
+            } ) );
         }
 
-        private Iterator<S3ObjectSummary> handleBlock( ObjectListing pObjectListing ) {
+        private Iterator<S3ObjectSummary> handleBlock( final ObjectListing pObjectListing ) {
             mObjectListing = pObjectListing;
-            return mCurIterator = mObjectListing.getObjectSummaries().iterator();
+            if ( mCommonPrefixCollector != null ) {
+                for ( String zCommonPrefix : pObjectListing.getCommonPrefixes() ) {
+                    if ( !isReserved( zCommonPrefix ) ) {
+                        mCommonPrefixCollector.add( zCommonPrefix );
+                    }
+                }
+            }
+            mNextBlock = !pObjectListing.isTruncated() ? null : LIST_PREFETCHER.submit( new Callable<ObjectListing>() {
+                @Override
+                public ObjectListing call()
+                        throws Exception {
+                    return executeRaw( "listObjects", new S3Operation<ObjectListing>() {
+                        @Override
+                        public ObjectListing execute() {
+                            return mClient.listNextBatchOfObjects( pObjectListing );
+                        }
+                    } );
+                }
+            } );
+            List<S3ObjectSummary> zSummaries = mObjectListing.getObjectSummaries();
+            if ( mReservedKeyPrefix != null ) {
+                List<S3ObjectSummary> zUnreserved = new ArrayList<S3ObjectSummary>( zSummaries.size() );
+                for ( S3ObjectSummary zSummary : zSummaries ) {
+                    if ( !isReserved( zSummary.getKey() ) ) {
+                        zUnreserved.add( zSummary );
+                    }
+                }
+                zSummaries = zUnreserved;
+            }
+            return mCurIterator = zSummaries.iterator();
+        }
+
+        private boolean isReserved( String pKey ) {
+            return (mReservedKeyPrefix != null) && pKey.startsWith( mReservedKeyPrefix );
+        }
+
+        private ObjectListing nextBlock() {
+            try {
+                return mNextBlock.get();
+            }
+            catch ( InterruptedException e ) {
+                Thread.currentThread().interrupt();
+                throw new FileSystemException( e );
+            }
+            catch ( ExecutionException e ) {
+                throw (e.getCause() instanceof RuntimeException) ? (RuntimeException) e.getCause() : new FileSystemException( e.getCause() );
+            }
         }
 
-        @SuppressWarnings("SimplifiableIfStatement")
         @Override
         public boolean hasNext() {
-            if ( mCurIterator.hasNext() ) {
-                return true;
-            }
-            if ( mObjectListing.isTruncated() ) {
-                return handleBlock( mClient.listNextBatchOfObjects( mObjectListing ) ).hasNext();
+            while ( !mCurIterator.hasNext() ) {
+                if ( mNextBlock == null ) {
+                    return false;
+                }
+                handleBlock( nextBlock() );
             }
-            return false;
+            return true;
         }
 
         @Override
@@ -0,0 +1,174 @@
+package org.litesoft.aws.s3;
+
+import com.amazonaws.util.*;
+import org.apache.http.*;
+import org.apache.http.client.methods.*;
+import org.apache.http.impl.client.*;
+import org.apache.http.impl.conn.*;
+import org.apache.http.params.*;
+import org.apache.http.util.*;
+
+import java.io.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Reads public objects thru the bucket's CloudFront distribution (Bucket.getCloudFrontURL) w/ plain (unsigned) GETs
+ * on a pooled keep-alive HTTP client, so reads are served from the edge rather than the S3 origin.
+ * <p/>
+ * A miss (404 or 403, e.g. not yet at the edge or not public) or an error returns null, so the caller falls back to
+ * the S3 API; nothing is retried here.  Hits, misses, errors, bytes, and the edge latency (to the response headers) are
+ * counted here, and (when the persister has a S3Metrics) recorded as the CLOUDFRONT_OPERATION.
+ * <p/>
+ * Note: the edge serves what it has cached (up to the distribution's TTL), and writes do not invalidate it, so only
+ * read this way what is written once (or where that staleness is acceptable).
+ */
+public class S3CloudFrontReader {
+    public static final String CLOUDFRONT_OPERATION = "getObject(CloudFront)";
+    public static final int DEFAULT_MAX_CONNECTIONS = 64;
+    public static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 2000;
+    public static final int DEFAULT_READ_TIMEOUT_MILLIS = 10000;
+
+    private final DefaultHttpClient mClient;
+    private final S3LatencyHistogram mLatency = new S3LatencyHistogram();
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+    private final AtomicLong mErrors = new AtomicLong();
+    private final AtomicLong mBytes = new AtomicLong();
+
+    public S3CloudFrontReader( int pMaxConnections, int pConnectTimeoutMillis, int pReadTimeoutMillis ) {
+        PoolingClientConnectionManager zConnections = new PoolingClientConnectionManager();
+        zConnections.setMaxTotal( Math.max( 1, pMaxConnections ) );
+        zConnections.setDefaultMaxPerRoute( Math.max( 1, pMaxConnections ) ); // Normally only the one (edge) host
+        mClient = new DefaultHttpClient( zConnections );
+        mClient.setHttpRequestRetryHandler( new DefaultHttpRequestRetryHandler( 0, false ) ); // The fall back is the retry
+        HttpParams zParams = mClient.getParams();
+        HttpConnectionParams.setConnectionTimeout( zParams, pConnectTimeoutMillis );
+        HttpConnectionParams.setSoTimeout( zParams, pReadTimeoutMillis );
+        HttpConnectionParams.setTcpNoDelay( zParams, true );
+    }
+
+    public S3CloudFrontReader() {
+        this( DEFAULT_MAX_CONNECTIONS, DEFAULT_CONNECT_TIMEOUT_MILLIS, DEFAULT_READ_TIMEOUT_MILLIS );
+    }
+
+    public long getHits() {
+        return mHits.get();
+    }
+
+    /**
+     * @return the 404s & 403s (each fell back to S3).
+     */
+    public long getMisses() {
+        return mMisses.get();
+    }
+
+    /**
+     * @return the failed requests (each fell back to S3).
+     */
+    public long getErrors() {
+        return mErrors.get();
+    }
+
+    /**
+     * @return the (content) bytes read from the edge.
+     */
+    public long getBytes() {
+        return mBytes.get();
+    }
+
+    /**
+     * @return the fraction (0 - 1) of the reads served by the edge.
+     */
+    public double getOffloadRatio() {
+        long zHits = getHits(), zTotal = zHits + getMisses() + getErrors();
+        return (zTotal == 0) ? 0 : ((double) zHits) / zTotal;
+    }
+
+    public S3LatencyHistogram getLatency() {
+        return mLatency;
+    }
+
+    public void dispose() {
+        mClient.getConnectionManager().shutdown();
+    }
+
+    @Override
+    public String toString() {
+        return "S3CloudFrontReader(hits=" + getHits() + ", misses=" + getMisses() + ", errors=" + getErrors() + //
+               ", bytes=" + getBytes() + ", " + mLatency + ")";
+    }
+
+    /**
+     * @return a stream of pPath's content from the edge (decoded as pPersister would), or null to use S3.
+     */
+    public InputStream open( final S3Persister pPersister, String pPath ) {
+        String zCloudFrontURL = pPersister.getBucket().getCloudFrontURL();
+        if ( zCloudFrontURL == null ) {
+            return null;
+        }
+        final HttpGet zGet = new HttpGet( url( zCloudFrontURL, pPath ) );
+        S3Operation<HttpResponse> zOperation = new S3Operation<HttpResponse>() {
+            @Override
+            public HttpResponse execute()
+                    throws Exception {
+                return mClient.execute( zGet );
+            }
+        };
+        S3Metrics zMetrics = pPersister.getMetrics();
+        if ( zMetrics != null ) {
+            zOperation = zMetrics.instrument( CLOUDFRONT_OPERATION, zOperation );
+        }
+        long zStarted = System.nanoTime();
+        HttpResponse zResponse;
+        try {
+            zResponse = zOperation.execute();
+        }
+        catch ( Exception e ) {
+            mErrors.incrementAndGet();
+            zGet.abort();
+            return null;
+        }
+        finally {
+            mLatency.recordNanos( System.nanoTime() - zStarted );
+        }
+        HttpEntity zEntity = zResponse.getEntity();
+        int zStatus = zResponse.getStatusLine().getStatusCode();
+        if ( (zStatus != HttpStatus.SC_OK) || (zEntity == null) ) {
+            ((zStatus == HttpStatus.SC_NOT_FOUND) || (zStatus == HttpStatus.SC_FORBIDDEN) ? mMisses : mErrors).incrementAndGet();
+            consume( zGet, zEntity ); // Returns the connection to the pool
+            return null;
+        }
+        InputStream zContent;
+        try {
+            zContent = zEntity.getContent();
+        }
+        catch ( IOException e ) {
+            mErrors.incrementAndGet();
+            zGet.abort();
+            return null;
+        }
+        mHits.incrementAndGet();
+        if ( zEntity.getContentLength() > 0 ) {
+            mBytes.addAndGet( zEntity.getContentLength() );
+            if ( zMetrics != null ) {
+                zMetrics.addBytesIn( CLOUDFRONT_OPERATION, zEntity.getContentLength() );
+            }
+        }
+        Header zContentEncoding = zResponse.getFirstHeader( "Content-Encoding" );
+        return pPersister.decode( pPath, zContent, (zContentEncoding == null) ? null : zContentEncoding.getValue() );
+    }
+
+    static String url( String pCloudFrontURL, String pPath ) {
+        String zBase = pCloudFrontURL.contains( "://" ) ? pCloudFrontURL : "https://" + pCloudFrontURL;
+        return (zBase.endsWith( "/" ) ? zBase : zBase + "/") + HttpUtils.urlEncode( pPath, true );
+    }
+
+    private static void consume( HttpGet pGet, HttpEntity pEntity ) {
+        try {
+            EntityUtils.consume( pEntity );
+        }
+        catch ( IOException e ) {
+            pGet.abort();
+        }
+    }
+}
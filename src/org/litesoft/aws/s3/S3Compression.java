@@ -0,0 +1,211 @@
+package org.litesoft.aws.s3;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.*;
+
+/**
+ * Opt-in (by Content-Type) compression of S3Persister uploads, w/ the Content-Encoding set so getFile (and so
+ * getTextFile) can transparently decompress.  Both directions stream (a buffer at a time).
+ * <p/>
+ * Content-Types are matched w/o their parameters (e.g. "; charset=UTF-8"); an entry ending w/ "/" (e.g. "text/")
+ * matches the whole type.
+ */
+public class S3Compression {
+    public static final int BUFFER_SIZE = 8 * 1024;
+
+    public interface Codec {
+        /**
+         * @return the Content-Encoding (e.g. "gzip") of this Codec's compressed form.
+         */
+        String getContentEncoding();
+
+        OutputStream compress( OutputStream pOut )
+                throws IOException;
+
+        InputStream decompress( InputStream pIn )
+                throws IOException;
+    }
+
+    public static final Codec GZIP = gzip( Deflater.DEFAULT_COMPRESSION );
+
+    public static final String[] DEFAULT_CONTENT_TYPES = {"text/", //
+                                                          "application/json", //
+                                                          "application/javascript", //
+                                                          "application/x-javascript", //
+                                                          "application/xml", //
+                                                          "image/svg+xml"};
+
+    private final Codec mCodec;
+    private final Set<String> mContentTypes = new HashSet<String>();
+    private final Map<String, Codec> mDecoders = new HashMap<String, Codec>();
+
+    public S3Compression( Codec pCodec, String... pContentTypes ) {
+        mCodec = pCodec;
+        for ( String zContentType : pContentTypes ) {
+            mContentTypes.add( zContentType.toLowerCase() );
+        }
+        mDecoders.put( pCodec.getContentEncoding().toLowerCase(), pCodec );
+    }
+
+    public S3Compression() {
+        this( GZIP, DEFAULT_CONTENT_TYPES );
+    }
+
+    /**
+     * Also decompress (but do not compress w/) pDecoder's Content-Encoding.
+     */
+    public S3Compression withDecoder( Codec pDecoder ) {
+        mDecoders.put( pDecoder.getContentEncoding().toLowerCase(), pDecoder );
+        return this;
+    }
+
+    /**
+     * @return null if pContentType is not to be compressed.
+     */
+    public Codec codecFor( String pContentType ) {
+        if ( pContentType != null ) {
+            String zType = pContentType.toLowerCase();
+            int zAt = zType.indexOf( ';' );
+            if ( zAt != -1 ) {
+                zType = zType.substring( 0, zAt );
+            }
+            zType = zType.trim();
+            if ( mContentTypes.contains( zType ) || (((zAt = zType.indexOf( '/' )) != -1) && mContentTypes.contains( zType.substring( 0, zAt + 1 ) )) ) {
+                return mCodec;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return pContent decompressed if pContentEncoding is a known Codec's (otherwise pContent).
+     */
+    public InputStream decode( InputStream pContent, String pContentEncoding )
+            throws IOException {
+        Codec zDecoder = (pContentEncoding == null) ? null : mDecoders.get( pContentEncoding.trim().toLowerCase() );
+        return (zDecoder == null) ? pContent : zDecoder.decompress( pContent );
+    }
+
+    /**
+     * @param pLevel 0-9 (or Deflater.DEFAULT_COMPRESSION)
+     */
+    public static Codec gzip( final int pLevel ) {
+        return new Codec() {
+            @Override
+            public String getContentEncoding() {
+                return "gzip";
+            }
+
+            @Override
+            public OutputStream compress( OutputStream pOut )
+                    throws IOException {
+                return new GZIPOutputStream( pOut, BUFFER_SIZE ) {
+                    {
+                        def.setLevel( pLevel );
+                    }
+                };
+            }
+
+            @Override
+            public InputStream decompress( InputStream pIn )
+                    throws IOException {
+                return new GZIPInputStream( pIn, BUFFER_SIZE );
+            }
+        };
+    }
+
+    /**
+     * Compresses its source as it is read, so only about a buffer of either form is held at a time.  Closing (or
+     * reading to the end) closes the source.
+     */
+    public static class CompressingInputStream extends InputStream {
+        private final InputStream mSource;
+        private final Buffer mCompressed = new Buffer();
+        private final OutputStream mCompressor;
+        private final byte[] mChunk = new byte[BUFFER_SIZE];
+        private int mPosition;
+        private boolean mFinished;
+
+        public CompressingInputStream( InputStream pSource, Codec pCodec )
+                throws IOException {
+            mSource = pSource;
+            mCompressor = pCodec.compress( mCompressed ); // Any header is now in mCompressed
+        }
+
+        @Override
+        public int read()
+                throws IOException {
+            while ( mPosition == mCompressed.size() ) {
+                if ( !fill() ) {
+                    return -1;
+                }
+            }
+            return mCompressed.bytes()[mPosition++] & 0xFF;
+        }
+
+        @Override
+        public int read( byte[] pBuffer, int pOffset, int pLength )
+                throws IOException {
+            if ( pLength == 0 ) {
+                return 0;
+            }
+            while ( mPosition == mCompressed.size() ) {
+                if ( !fill() ) {
+                    return -1;
+                }
+            }
+            int zLength = Math.min( pLength, mCompressed.size() - mPosition );
+            System.arraycopy( mCompressed.bytes(), mPosition, pBuffer, pOffset, zLength );
+            mPosition += zLength;
+            return zLength;
+        }
+
+        @Override
+        public int available() {
+            return mCompressed.size() - mPosition;
+        }
+
+        @Override
+        public void close()
+                throws IOException {
+            if ( !mFinished ) {
+                mFinished = true;
+                try {
+                    mCompressor.close(); // Release the (native) compressor
+                }
+                finally {
+                    mSource.close();
+                }
+            }
+        }
+
+        /**
+         * @return false at the end of the compressed form.
+         */
+        private boolean fill()
+                throws IOException {
+            mCompressed.reset();
+            mPosition = 0;
+            while ( !mFinished && (mCompressed.size() == 0) ) {
+                int zRead = mSource.read( mChunk );
+                if ( zRead == -1 ) {
+                    close(); // Writes any trailer
+                } else {
+                    mCompressor.write( mChunk, 0, zRead );
+                }
+            }
+            return (mCompressed.size() != 0);
+        }
+    }
+
+    private static class Buffer extends ByteArrayOutputStream {
+        Buffer() {
+            super( 2 * BUFFER_SIZE );
+        }
+
+        byte[] bytes() {
+            return buf;
+        }
+    }
+}
@@ -0,0 +1,276 @@
+package org.litesoft.aws.s3;
+
+import org.litesoft.commonfoundation.exceptions.*;
+
+import com.amazonaws.services.s3.model.*;
+import com.amazonaws.util.*;
+
+import java.io.*;
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Content addressed (incremental) sync of a local directory tree to a prefix of a S3Persister's bucket.
+ * <p/>
+ * The prefix is listed once, and each local file's MD5 (or Multipart ETag, when the persister uploads w/ a
+ * S3MultipartUploader and the file is at least a part long) is compared with the listed ETags:
+ * <ul>
+ * <li>Same ETag at the same key - skipped</li>
+ * <li>Same ETag at a key w/o a local file - server side copy (renamed but identical), w/ the metadata of the new key</li>
+ * <li>Otherwise - uploaded (putFile)</li>
+ * </ul>
+ * Files the persister compresses (see S3Compression) are stored w/ the ETag of the compressed bytes, so instead their
+ * MD5 is compared w/ the RAW_MD5_METADATA the upload stored (a HEAD, when there is an object at the key), and they are
+ * never copied.
+ * Optionally, keys under the prefix w/o a local file (orphans) are deleted once all the copies are done.
+ */
+public class S3DirectorySync {
+    public static final int DEFAULT_FILES_IN_FLIGHT = 8;
+
+    public static final S3DirectorySync INSTANCE = new S3DirectorySync();
+
+    private final int mFilesInFlight;
+    private final ExecutorService mExecutor;
+
+    public S3DirectorySync( int pFilesInFlight, ExecutorService pExecutor ) {
+        mFilesInFlight = Math.max( 1, pFilesInFlight );
+        mExecutor = (pExecutor != null) ? pExecutor : S3Executors.newFixedDaemonPool( "S3DirectorySync", mFilesInFlight );
+    }
+
+    public S3DirectorySync( int pFilesInFlight ) {
+        this( pFilesInFlight, null );
+    }
+
+    public S3DirectorySync() {
+        this( DEFAULT_FILES_IN_FLIGHT );
+    }
+
+    public Result sync( S3Persister pPersister, File pLocalRoot, String pTargetPrefix, boolean pDeleteOrphans )
+            throws FileSystemException {
+        if ( !pLocalRoot.isDirectory() ) {
+            throw new FileSystemException( "Not a Directory: " + pLocalRoot );
+        }
+        String zPrefix = (pTargetPrefix == null) ? "" : pTargetPrefix;
+        if ( (zPrefix.length() != 0) && !zPrefix.endsWith( "/" ) ) {
+            zPrefix += "/";
+        }
+        Map<String, S3ObjectSummary> zRemote = new HashMap<String, S3ObjectSummary>();
+        Map<String, String> zKeysByETag = new HashMap<String, String>();
+        try {
+            for ( Iterator<S3ObjectSummary> zIt = pPersister.summaryIterator( pPersister.createListRequest( zPrefix, false ), null ); zIt.hasNext(); ) {
+                S3ObjectSummary zSummary = zIt.next();
+                zRemote.put( zSummary.getKey(), zSummary );
+            }
+        }
+        catch ( Exception e ) {
+            throw pPersister.convert( e, zPrefix );
+        }
+        Map<String, File> zLocal = new TreeMap<String, File>();
+        collectFiles( pLocalRoot, zPrefix, zLocal );
+        for ( S3ObjectSummary zSummary : zRemote.values() ) {
+            if ( !zLocal.containsKey( zSummary.getKey() ) ) { // Only keys that this sync won't be overwriting are safe copy sources
+                zKeysByETag.put( zSummary.getETag(), zSummary.getKey() );
+            }
+        }
+
+        Result zResult = new Result();
+        S3MultipartUploader zMultipartUploader = pPersister.getMultipartUploader();
+        int zPartSize = (zMultipartUploader == null) ? 0 : zMultipartUploader.getPartSize();
+        Semaphore zInFlight = new Semaphore( mFilesInFlight );
+        List<Future<?>> zFiles = new ArrayList<Future<?>>( zLocal.size() );
+        pPersister.indexInvalidateUnder( zPrefix ); // Before (so each file's update is a no-op) and after
+        try {
+            for ( Map.Entry<String, File> zEntry : zLocal.entrySet() ) {
+                zInFlight.acquire();
+                zFiles.add( mExecutor.submit( new FileSyncer( pPersister, zEntry.getKey(), zEntry.getValue(), zPartSize, //
+                                                              zRemote, zKeysByETag, zResult, zInFlight ) ) );
+            }
+            for ( Future<?> zFile : zFiles ) {
+                zFile.get();
+            }
+        }
+        catch ( Exception e ) {
+            for ( Future<?> zFile : zFiles ) {
+                zFile.cancel( false );
+            }
+            Throwable zCause = (e instanceof ExecutionException) ? e.getCause() : e;
+            if ( zCause instanceof InterruptedException ) {
+                Thread.currentThread().interrupt();
+            }
+            throw (zCause instanceof RuntimeException) ? (RuntimeException) zCause : new FileSystemException( zCause );
+        }
+        if ( pDeleteOrphans ) {
+            List<String> zOrphans = new ArrayList<String>( zRemote.keySet() );
+            zOrphans.removeAll( zLocal.keySet() );
+            if ( !zOrphans.isEmpty() ) {
+                zResult.mDeleted.addAndGet( pPersister.getBulkDeleter().delete( pPersister, zOrphans.iterator() ) );
+                for ( String zOrphan : zOrphans ) {
+                    pPersister.invalidate( zOrphan );
+                }
+            }
+        }
+        pPersister.indexInvalidateUnder( zPrefix );
+        return zResult;
+    }
+
+    private static void collectFiles( File pDirectory, String pKeyPrefix, Map<String, File> pCollector ) {
+        File[] zEntries = pDirectory.listFiles();
+        if ( zEntries != null ) {
+            for ( File zEntry : zEntries ) {
+                if ( zEntry.isDirectory() ) {
+                    collectFiles( zEntry, pKeyPrefix + zEntry.getName() + "/", pCollector );
+                } else if ( zEntry.isFile() ) {
+                    pCollector.put( pKeyPrefix + zEntry.getName(), zEntry );
+                }
+            }
+        }
+    }
+
+    /**
+     * @param pPartSize 0 for a plain MD5; otherwise the ETag S3 would give a Multipart Upload of that part size.
+     *
+     * @return the ETag S3 would give pFile (in the same lower case hex form as the listings).
+     */
+    static String localETag( File pFile, int pPartSize )
+            throws IOException {
+        MessageDigest zWhole = newMD5();
+        MessageDigest zParts = newMD5();
+        MessageDigest zPart = newMD5();
+        int zPartCount = 0;
+        long zInPart = 0;
+        byte[] zBuffer = new byte[64 * 1024];
+        InputStream zIn = new FileInputStream( pFile );
+        try {
+            for ( int zRead; -1 != (zRead = zIn.read( zBuffer )); ) {
+                zWhole.update( zBuffer, 0, zRead );
+                for ( int zOffset = 0; (pPartSize > 0) && (zOffset < zRead); ) {
+                    int zLength = (int) Math.min( zRead - zOffset, pPartSize - zInPart );
+                    zPart.update( zBuffer, zOffset, zLength );
+                    zOffset += zLength;
+                    if ( (zInPart += zLength) == pPartSize ) {
+                        zParts.update( zPart.digest() );
+                        zPartCount++;
+                        zInPart = 0;
+                    }
+                }
+            }
+        }
+        finally {
+            zIn.close();
+        }
+        if ( (pPartSize <= 0) || (pFile.length() < pPartSize) ) { // S3MultipartUploader uses a single PUT for these
+            return BinaryUtils.toHex( zWhole.digest() );
+        }
+        if ( zInPart != 0 ) {
+            zParts.update( zPart.digest() );
+            zPartCount++;
+        }
+        return BinaryUtils.toHex( zParts.digest() ) + "-" + zPartCount;
+    }
+
+    private static MessageDigest newMD5() {
+        try {
+            return MessageDigest.getInstance( "MD5" );
+        }
+        catch ( NoSuchAlgorithmException e ) {
+            throw new IllegalStateException( e );
+        }
+    }
+
+    private static class FileSyncer implements Callable<Void> {
+        private final S3Persister mPersister;
+        private final String mKey;
+        private final File mFile;
+        private final int mPartSize;
+        private final Map<String, S3ObjectSummary> mRemote;
+        private final Map<String, String> mKeysByETag;
+        private final Result mResult;
+        private final Semaphore mInFlight;
+
+        private FileSyncer( S3Persister pPersister, String pKey, File pFile, int pPartSize, Map<String, S3ObjectSummary> pRemote, //
+                            Map<String, String> pKeysByETag, Result pResult, Semaphore pInFlight ) {
+            mPersister = pPersister;
+            mKey = pKey;
+            mFile = pFile;
+            mPartSize = pPartSize;
+            mRemote = pRemote;
+            mKeysByETag = pKeysByETag;
+            mResult = pResult;
+            mInFlight = pInFlight;
+        }
+
+        @Override
+        public Void call()
+                throws Exception {
+            try {
+                long zLength = mFile.length();
+                boolean zCompressed = mPersister.compresses( mKey );
+                String zETag = localETag( mFile, zCompressed ? 0 : mPartSize );
+                S3ObjectSummary zExisting = mRemote.get( mKey );
+                if ( (zExisting != null) && zETag.equals( zCompressed ? mPersister.getRawMD5( mKey ) : zExisting.getETag() ) ) {
+                    mResult.mSkipped.incrementAndGet();
+                    mResult.mBytesAvoided.addAndGet( zLength );
+                    return null;
+                }
+                String zSameContentKey = zCompressed ? null : mKeysByETag.get( zETag );
+                if ( zSameContentKey != null ) {
+                    mPersister.copyFileAsPut( zSameContentKey, mKey ); // The new key's Content-Type, Cache-Control, etc.
+                    mResult.mCopied.incrementAndGet();
+                    mResult.mBytesAvoided.addAndGet( zLength );
+                    return null;
+                }
+                mPersister.putFile( mKey, new FileInputStream( mFile ), zLength, zCompressed ? zETag : null ); // Streamed, not buffered
+                mResult.mUploaded.incrementAndGet();
+                mResult.mBytesUploaded.addAndGet( zLength );
+                return null;
+            }
+            finally {
+                mInFlight.release();
+            }
+        }
+    }
+
+    public static class Result {
+        private final AtomicLong mUploaded = new AtomicLong();
+        private final AtomicLong mCopied = new AtomicLong();
+        private final AtomicLong mSkipped = new AtomicLong();
+        private final AtomicLong mDeleted = new AtomicLong();
+        private final AtomicLong mBytesUploaded = new AtomicLong();
+        private final AtomicLong mBytesAvoided = new AtomicLong();
+
+        public long getUploaded() {
+            return mUploaded.get();
+        }
+
+        public long getCopied() {
+            return mCopied.get();
+        }
+
+        public long getSkipped() {
+            return mSkipped.get();
+        }
+
+        public long getDeleted() {
+            return mDeleted.get();
+        }
+
+        public long getBytesUploaded() {
+            return mBytesUploaded.get();
+        }
+
+        /**
+         * @return bytes NOT uploaded, as they were either already there or copied server side.
+         */
+        public long getBytesAvoided() {
+            return mBytesAvoided.get();
+        }
+
+        @Override
+        public String toString() {
+            return "Uploaded " + getUploaded() + " (" + getBytesUploaded() + " bytes), Copied " + getCopied() + ", Skipped " + getSkipped() + //
+                   ", Deleted " + getDeleted() + ", Avoided " + getBytesAvoided() + " bytes";
+        }
+    }
+}
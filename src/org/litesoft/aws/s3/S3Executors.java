@@ -0,0 +1,32 @@
+package org.litesoft.aws.s3;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+public class S3Executors {
+    private S3Executors() {
+    }
+
+    /**
+     * @return a fixed size pool of daemon threads (named "pName-#") so that an unclosed pool never holds the JVM open.
+     */
+    public static ExecutorService newFixedDaemonPool( String pName, int pThreads ) {
+        return Executors.newFixedThreadPool( Math.max( 1, pThreads ), new DaemonThreadFactory( pName ) );
+    }
+
+    private static class DaemonThreadFactory implements ThreadFactory {
+        private final String mName;
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        private DaemonThreadFactory( String pName ) {
+            mName = pName;
+        }
+
+        @Override
+        public Thread newThread( Runnable pRunnable ) {
+            Thread zThread = new Thread( pRunnable, mName + "-" + mCount.incrementAndGet() );
+            zThread.setDaemon( true );
+            return zThread;
+        }
+    }
+}
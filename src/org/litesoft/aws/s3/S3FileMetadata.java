@@ -0,0 +1,57 @@
+package org.litesoft.aws.s3;
+
+import com.amazonaws.services.s3.model.*;
+
+import java.util.*;
+
+/**
+ * What a listing (S3ObjectSummary) or a HEAD (ObjectMetadata) tells about an existing file: its (stored, so possibly
+ * compressed) size, ETag, and last modified.
+ */
+public class S3FileMetadata {
+    private final String mPath, mETag;
+    private final long mSize, mLastModified;
+
+    public S3FileMetadata( String pPath, long pSize, String pETag, long pLastModified ) {
+        mPath = pPath;
+        mSize = pSize;
+        mETag = pETag;
+        mLastModified = pLastModified;
+    }
+
+    public S3FileMetadata( S3ObjectSummary pSummary ) {
+        this( pSummary.getKey(), pSummary.getSize(), pSummary.getETag(), millis( pSummary.getLastModified() ) );
+    }
+
+    public S3FileMetadata( String pPath, ObjectMetadata pMetadata ) {
+        this( pPath, pMetadata.getContentLength(), pMetadata.getETag(), millis( pMetadata.getLastModified() ) );
+    }
+
+    public String getPath() {
+        return mPath;
+    }
+
+    public long getSize() {
+        return mSize;
+    }
+
+    public String getETag() {
+        return mETag;
+    }
+
+    /**
+     * @return millis since the epoch (0 if unknown)
+     */
+    public long getLastModified() {
+        return mLastModified;
+    }
+
+    @Override
+    public String toString() {
+        return mPath + "(" + mSize + "b, " + mETag + ", " + mLastModified + ")";
+    }
+
+    private static long millis( Date pDate ) {
+        return (pDate != null) ? pDate.getTime() : 0;
+    }
+}
@@ -0,0 +1,109 @@
+package org.litesoft.aws.s3;
+
+import java.util.concurrent.atomic.*;
+
+/**
+ * Fixed size, lock free, latency histogram (in microseconds) w/ log-linear buckets: 4 sub-buckets per power of 2, so
+ * a reported percentile is within 25% of the recorded value.  Recording does not allocate.
+ * <p/>
+ * Reads are not a consistent snapshot (recording continues while reading), which is fine for monitoring.
+ */
+public final class S3LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 2;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_EXPONENT = 40; // 2^40 micros ~ 12.7 days
+    private static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    private final AtomicLongArray mCounts = new AtomicLongArray( BUCKETS );
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mTotalMicros = new AtomicLong();
+    private final AtomicLong mMaxMicros = new AtomicLong();
+
+    public void recordNanos( long pNanos ) {
+        recordMicros( pNanos / 1000 );
+    }
+
+    public void recordMicros( long pMicros ) {
+        long zMicros = Math.max( 0, pMicros );
+        mCounts.incrementAndGet( bucketFor( zMicros ) );
+        mCount.incrementAndGet();
+        mTotalMicros.addAndGet( zMicros );
+        for ( long zMax; zMicros > (zMax = mMaxMicros.get()); ) {
+            if ( mMaxMicros.compareAndSet( zMax, zMicros ) ) {
+                break;
+            }
+        }
+    }
+
+    public long getCount() {
+        return mCount.get();
+    }
+
+    public long getMaxMicros() {
+        return mMaxMicros.get();
+    }
+
+    public double getMeanMicros() {
+        long zCount = mCount.get();
+        return (zCount == 0) ? 0 : (double) mTotalMicros.get() / zCount;
+    }
+
+    /**
+     * @param pPercentile 0 - 100 (e.g. 99.9)
+     *
+     * @return the (upper bound of the bucket of the) latency that pPercentile of the recordings are at or below; 0 if none.
+     */
+    public long getPercentileMicros( double pPercentile ) {
+        long zCount = mCount.get();
+        if ( zCount == 0 ) {
+            return 0;
+        }
+        long zTarget = Math.max( 1, (long) Math.ceil( zCount * Math.min( 100, Math.max( 0, pPercentile ) ) / 100 ) );
+        long zSeen = 0;
+        for ( int i = 0; i < BUCKETS; i++ ) {
+            if ( (zSeen += mCounts.get( i )) >= zTarget ) {
+                return Math.min( upperBound( i ), mMaxMicros.get() );
+            }
+        }
+        return mMaxMicros.get();
+    }
+
+    public void reset() {
+        for ( int i = 0; i < BUCKETS; i++ ) {
+            mCounts.set( i, 0 );
+        }
+        mCount.set( 0 );
+        mTotalMicros.set( 0 );
+        mMaxMicros.set( 0 );
+    }
+
+    @Override
+    public String toString() {
+        return "n=" + getCount() + ", mean=" + Math.round( getMeanMicros() ) + "us, p50=" + getPercentileMicros( 50 ) + "us, p99=" + //
+               getPercentileMicros( 99 ) + "us, p99.9=" + getPercentileMicros( 99.9 ) + "us, max=" + getMaxMicros() + "us";
+    }
+
+    static int bucketFor( long pMicros ) {
+        if ( pMicros < SUB_BUCKETS ) {
+            return (int) pMicros;
+        }
+        int zExponent = 63 - Long.numberOfLeadingZeros( pMicros );
+        if ( zExponent > MAX_EXPONENT ) {
+            return BUCKETS - 1;
+        }
+        int zSubBucket = (int) (pMicros >>> (zExponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (zExponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + zSubBucket;
+    }
+
+    static long lowerBound( int pBucket ) {
+        if ( pBucket < SUB_BUCKETS ) {
+            return pBucket;
+        }
+        int zExponent = pBucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        return (long) (SUB_BUCKETS + (pBucket % SUB_BUCKETS)) << (zExponent - SUB_BUCKET_BITS);
+    }
+
+    static long upperBound( int pBucket ) {
+        return (pBucket + 1 < BUCKETS) ? lowerBound( pBucket + 1 ) - 1 : Long.MAX_VALUE;
+    }
+}
@@ -0,0 +1,157 @@
+package org.litesoft.aws.s3;
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Bounded (LRU) cache, with a Time To Live, of the answers to fileExists (HEAD) and isReadable (ACL) per path.
+ * <p/>
+ * Negative answers (e.g. 404 -> not exists) are cached as well.  A S3Persister invalidates the paths it writes or
+ * deletes, but changes made thru other clients are only seen once the TTL expires.
+ * <p/>
+ * An answer fetched while an invalidate happened may already be stale, so it is only cached if the Generation (taken
+ * before asking S3) is still current.
+ */
+public class S3MetadataCache {
+    public static final int DEFAULT_MAX_ENTRIES = 10000;
+    public static final long DEFAULT_TTL_MILLIS = 60 * 1000;
+
+    private final int mMaxEntries;
+    private final long mTtlMillis;
+    private final Map<String, S3MetadataCache.Entry> mEntries;
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+    private long mGeneration;
+
+    public S3MetadataCache( int pMaxEntries, long pTtlMillis ) {
+        mMaxEntries = Math.max( 1, pMaxEntries );
+        mTtlMillis = Math.max( 0, pTtlMillis );
+        mEntries = new LinkedHashMap<String, S3MetadataCache.Entry>( 16, 0.75f, true ) {
+            @Override
+            protected boolean removeEldestEntry( Map.Entry<String, S3MetadataCache.Entry> pEldest ) {
+                return size() > mMaxEntries;
+            }
+        };
+    }
+
+    public S3MetadataCache() {
+        this( DEFAULT_MAX_ENTRIES, DEFAULT_TTL_MILLIS );
+    }
+
+    public long getHits() {
+        return mHits.get();
+    }
+
+    public long getMisses() {
+        return mMisses.get();
+    }
+
+    public synchronized int size() {
+        return mEntries.size();
+    }
+
+    /**
+     * @return null if not cached (or expired)
+     */
+    public Boolean getExists( String pPath ) {
+        return count( get( pPath, false ) );
+    }
+
+    /**
+     * @return null if not cached (or expired)
+     */
+    public Boolean getReadable( String pPath ) {
+        return count( get( pPath, true ) );
+    }
+
+    /**
+     * @return the current Generation, which every invalidate (or clear) advances; take it before asking S3.
+     */
+    public synchronized long getGeneration() {
+        return mGeneration;
+    }
+
+    public void putExists( String pPath, boolean pExists ) {
+        putExists( pPath, pExists, getGeneration() );
+    }
+
+    public void putReadable( String pPath, boolean pReadable ) {
+        putReadable( pPath, pReadable, getGeneration() );
+    }
+
+    /**
+     * @param pGeneration from getGeneration before pExists was asked for (it is dropped if an invalidate happened since)
+     */
+    public void putExists( String pPath, boolean pExists, long pGeneration ) {
+        put( pPath, false, pExists, pGeneration );
+    }
+
+    /**
+     * @param pGeneration from getGeneration before pReadable was asked for (it is dropped if an invalidate happened since)
+     */
+    public void putReadable( String pPath, boolean pReadable, long pGeneration ) {
+        put( pPath, true, pReadable, pGeneration );
+    }
+
+    public synchronized void invalidate( String pPath ) {
+        mGeneration++;
+        mEntries.remove( pPath );
+    }
+
+    public synchronized void invalidatePrefix( String pPathPrefix ) {
+        mGeneration++;
+        for ( Iterator<String> zIt = mEntries.keySet().iterator(); zIt.hasNext(); ) {
+            if ( zIt.next().startsWith( pPathPrefix ) ) {
+                zIt.remove();
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        mGeneration++;
+        mEntries.clear();
+    }
+
+    private Boolean count( Boolean pAnswer ) {
+        (pAnswer != null ? mHits : mMisses).incrementAndGet();
+        return pAnswer;
+    }
+
+    private synchronized Boolean get( String pPath, boolean pReadable ) {
+        Entry zEntry = mEntries.get( pPath );
+        return (zEntry == null) ? null : zEntry.get( pReadable, System.currentTimeMillis() - mTtlMillis );
+    }
+
+    private synchronized void put( String pPath, boolean pReadable, boolean pAnswer, long pGeneration ) {
+        if ( pGeneration != mGeneration ) {
+            return; // Possibly stale
+        }
+        Entry zEntry = mEntries.get( pPath );
+        if ( zEntry == null ) {
+            mEntries.put( pPath, zEntry = new Entry() );
+        }
+        zEntry.set( pReadable, pAnswer, System.currentTimeMillis() );
+    }
+
+    private static class Entry {
+        private Boolean mExists, mReadable;
+        private long mExistsAt, mReadableAt;
+
+        Boolean get( boolean pReadable, long pOldestValid ) {
+            if ( pReadable ) {
+                return (mReadableAt >= pOldestValid) ? mReadable : null;
+            }
+            return (mExistsAt >= pOldestValid) ? mExists : null;
+        }
+
+        void set( boolean pReadable, boolean pAnswer, long pNow ) {
+            if ( pReadable ) {
+                mReadable = pAnswer;
+                mReadableAt = pNow;
+            } else {
+                mExists = pAnswer;
+                mExistsAt = pNow;
+            }
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package org.litesoft.aws.s3;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Registry of per operation S3OperationMetrics (latency histogram, request, error, retry, and byte counters), plus an
+ * overall in flight gauge, for the S3 calls made thru S3ClientSupport.execute (and executeRaw).
+ * <p/>
+ * Recording is lock free and only allocates a small wrapper per call, so a S3Metrics can be left on in production;
+ * Listeners are told of every attempt, on the calling thread, so they should be quick.
+ */
+public class S3Metrics {
+    public interface Listener {
+        /**
+         * @param pAttempt 1 for the first attempt (more are retries)
+         * @param pFailure null if the attempt succeeded
+         */
+        void attempted( String pOperationName, int pAttempt, long pNanos, Exception pFailure );
+    }
+
+    private final ConcurrentMap<String, S3OperationMetrics> mOperations = new ConcurrentHashMap<String, S3OperationMetrics>();
+    private final AtomicInteger mInFlight = new AtomicInteger();
+    private final List<Listener> mListeners = new CopyOnWriteArrayList<Listener>();
+
+    public S3Metrics addListener( Listener pListener ) {
+        if ( pListener != null ) {
+            mListeners.add( pListener );
+        }
+        return this;
+    }
+
+    public void removeListener( Listener pListener ) {
+        mListeners.remove( pListener );
+    }
+
+    public int getInFlight() {
+        return mInFlight.get();
+    }
+
+    /**
+     * @return null if pOperationName has not been called.
+     */
+    public S3OperationMetrics getOperation( String pOperationName ) {
+        return mOperations.get( pOperationName );
+    }
+
+    /**
+     * @return the operations (so far) by name.
+     */
+    public Map<String, S3OperationMetrics> getOperations() {
+        return new TreeMap<String, S3OperationMetrics>( mOperations );
+    }
+
+    public void addBytesIn( String pOperationName, long pBytes ) {
+        if ( pBytes > 0 ) {
+            operation( pOperationName ).addBytesIn( pBytes );
+        }
+    }
+
+    public void addBytesOut( String pOperationName, long pBytes ) {
+        if ( pBytes > 0 ) {
+            operation( pOperationName ).addBytesOut( pBytes );
+        }
+    }
+
+    /**
+     * @return pOperation wrapped so that each attempt (call of execute) is recorded under pOperationName.
+     */
+    public <T> S3Operation<T> instrument( String pOperationName, S3Operation<T> pOperation ) {
+        return new Instrumented<T>( operation( pOperationName ), pOperation );
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder( "S3Metrics(inFlight=" ).append( getInFlight() ).append( ")" );
+        for ( S3OperationMetrics zOperation : getOperations().values() ) {
+            sb.append( "\n  " ).append( zOperation );
+        }
+        return sb.toString();
+    }
+
+    private S3OperationMetrics operation( String pOperationName ) {
+        S3OperationMetrics zOperation = mOperations.get( pOperationName );
+        if ( zOperation == null ) {
+            S3OperationMetrics zExisting = mOperations.putIfAbsent( pOperationName, zOperation = new S3OperationMetrics( pOperationName ) );
+            if ( zExisting != null ) {
+                zOperation = zExisting;
+            }
+        }
+        return zOperation;
+    }
+
+    private void attempted( S3OperationMetrics pOperation, int pAttempt, long pNanos, Exception pFailure ) {
+        mInFlight.decrementAndGet();
+        pOperation.finished( pNanos, (pFailure != null) );
+        for ( Listener zListener : mListeners ) {
+            try {
+                zListener.attempted( pOperation.getName(), pAttempt, pNanos, pFailure );
+            }
+            catch ( RuntimeException e ) {
+                e.printStackTrace(); // A broken Listener should not fail the operation
+            }
+        }
+    }
+
+    private class Instrumented<T> implements S3Operation<T> {
+        private final S3OperationMetrics mOperation;
+        private final S3Operation<T> mOperationToInstrument;
+        private int mAttempts; // The S3Retrier makes the attempts sequentially
+
+        private Instrumented( S3OperationMetrics pOperation, S3Operation<T> pOperationToInstrument ) {
+            mOperation = pOperation;
+            mOperationToInstrument = pOperationToInstrument;
+        }
+
+        @Override
+        public T execute()
+                throws Exception {
+            int zAttempt = ++mAttempts;
+            mInFlight.incrementAndGet();
+            mOperation.started( zAttempt );
+            long zStarted = System.nanoTime();
+            Exception zFailure = null;
+            try {
+                return mOperationToInstrument.execute();
+            }
+            catch ( Exception e ) {
+                throw zFailure = e;
+            }
+            finally {
+                attempted( mOperation, zAttempt, System.nanoTime() - zStarted, zFailure );
+            }
+        }
+    }
+}
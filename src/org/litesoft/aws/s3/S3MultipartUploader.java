@@ -0,0 +1,247 @@
+package org.litesoft.aws.s3;
+
+import org.litesoft.commonfoundation.exceptions.*;
+
+import com.amazonaws.services.s3.model.*;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Streams an InputStream to S3 as a Multipart Upload, cutting it into fixed size parts that are uploaded in parallel.
+ * <p/>
+ * Part buffers come from a pool shared by all uploads thru this uploader, so memory stays at (PartsInFlight * PartSize)
+ * regardless of the object size (or the number of concurrent uploads).
+ */
+public class S3MultipartUploader {
+    public static final int MIN_PART_SIZE = 5 * 1024 * 1024; // S3 minimum for all but the last part
+    public static final int DEFAULT_PART_SIZE = 8 * 1024 * 1024;
+    public static final int DEFAULT_PARTS_IN_FLIGHT = 4;
+    public static final int DEFAULT_MAX_PART_ATTEMPTS = 3;
+
+    private final int mPartSize;
+    private final int mMaxPartAttempts;
+    private final ExecutorService mExecutor;
+    private final BlockingQueue<byte[]> mBufferPool;
+
+    public S3MultipartUploader( int pPartSize, int pPartsInFlight, int pMaxPartAttempts, ExecutorService pExecutor ) {
+        mPartSize = Math.max( MIN_PART_SIZE, pPartSize );
+        mMaxPartAttempts = Math.max( 1, pMaxPartAttempts );
+        int zPartsInFlight = Math.max( 1, pPartsInFlight );
+        mExecutor = (pExecutor != null) ? pExecutor : S3Executors.newFixedDaemonPool( "S3MultipartUploader", zPartsInFlight );
+        mBufferPool = new ArrayBlockingQueue<byte[]>( zPartsInFlight );
+        for ( int i = 0; i < zPartsInFlight; i++ ) {
+            mBufferPool.add( new byte[mPartSize] );
+        }
+    }
+
+    public S3MultipartUploader( int pPartSize, int pPartsInFlight ) {
+        this( pPartSize, pPartsInFlight, DEFAULT_MAX_PART_ATTEMPTS, null );
+    }
+
+    public S3MultipartUploader() {
+        this( DEFAULT_PART_SIZE, DEFAULT_PARTS_IN_FLIGHT );
+    }
+
+    public int getPartSize() {
+        return mPartSize;
+    }
+
+    /**
+     * Upload pContents to pPath; objects that fit in a single part are sent with a single (Content-Length'd) PUT.
+     * <p/>
+     * pContents is read to its end, but is NOT closed.
+     */
+    public void upload( final S3Persister pPersister, final String pPath, InputStream pContents, final ObjectMetadata pMetadata )
+            throws IOException, InterruptedException {
+        byte[] zBuffer = mBufferPool.take();
+        int zRead;
+        try {
+            zRead = readPart( pContents, zBuffer );
+        }
+        catch ( IOException e ) {
+            mBufferPool.add( zBuffer );
+            throw e;
+        }
+        if ( zRead < mPartSize ) {
+            try {
+                putSinglePart( pPersister, pPath, pMetadata, zBuffer, zRead );
+            }
+            finally {
+                mBufferPool.add( zBuffer );
+            }
+            return;
+        }
+        String zUploadId;
+        try {
+            zUploadId = pPersister.executeRaw( "initiateMultipartUpload", new S3Operation<String>() {
+                @Override
+                public String execute() {
+                    return pPersister.mClient.initiateMultipartUpload( pPersister.addACL( new InitiateMultipartUploadRequest( //
+                            pPersister.getBucketName(), pPath, pMetadata ) ) ).getUploadId();
+                }
+            } );
+        }
+        catch ( Exception e ) {
+            mBufferPool.add( zBuffer );
+            throw unwrap( e );
+        }
+        List<Future<PartETag>> zParts = new ArrayList<Future<PartETag>>();
+        AtomicBoolean zAborted = new AtomicBoolean();
+        try {
+            for ( int zPartNumber = 1; zRead > 0; zPartNumber++ ) {
+                zParts.add( mExecutor.submit( new PartUploader( pPersister, pPath, zUploadId, zAborted, zPartNumber, zBuffer, zRead ) ) );
+                zBuffer = null;
+                checkForFailedParts( zParts );
+                zBuffer = mBufferPool.take();
+                if ( 0 == (zRead = readPart( pContents, zBuffer )) ) {
+                    mBufferPool.add( zBuffer );
+                    zBuffer = null;
+                }
+            }
+            final List<PartETag> zETags = new ArrayList<PartETag>( zParts.size() );
+            for ( Future<PartETag> zPart : zParts ) {
+                zETags.add( zPart.get() );
+            }
+            final String zCompletingUploadId = zUploadId;
+            pPersister.executeRaw( "completeMultipartUpload", new S3Operation<CompleteMultipartUploadResult>() {
+                @Override
+                public CompleteMultipartUploadResult execute() {
+                    return pPersister.mClient.completeMultipartUpload( new CompleteMultipartUploadRequest( pPersister.getBucketName(), pPath, //
+                                                                                                           zCompletingUploadId, zETags ) );
+                }
+            } );
+        }
+        catch ( Exception e ) {
+            if ( zBuffer != null ) {
+                mBufferPool.add( zBuffer );
+            }
+            abort( pPersister, pPath, zUploadId, zAborted, zParts );
+            throw unwrap( e );
+        }
+    }
+
+    private void putSinglePart( final S3Persister pPersister, final String pPath, final ObjectMetadata pMetadata, final byte[] pBuffer, final int pLength )
+            throws IOException {
+        pMetadata.setContentLength( pLength );
+        try {
+            pPersister.executeRaw( "putObject", new S3Operation<PutObjectResult>() { // Repeatable - the bytes are buffered
+                @Override
+                public PutObjectResult execute() {
+                    return pPersister.mClient.putObject( pPersister.addACL( new PutObjectRequest( pPersister.getBucketName(), pPath, //
+                                                                                                  new ByteArrayInputStream( pBuffer, 0, pLength ), pMetadata ) ) );
+                }
+            } );
+            pPersister.countBytesOut( "putObject", pLength );
+        }
+        catch ( Exception e ) {
+            throw unwrap( e );
+        }
+    }
+
+    private void checkForFailedParts( List<Future<PartETag>> pParts )
+            throws ExecutionException, InterruptedException {
+        for ( Future<PartETag> zPart : pParts ) {
+            if ( zPart.isDone() ) {
+                zPart.get(); // Throws if the Part failed
+            }
+        }
+    }
+
+    private void abort( final S3Persister pPersister, final String pPath, final String pUploadId, AtomicBoolean pAborted, List<Future<PartETag>> pParts ) {
+        pAborted.set( true ); // Parts not yet started will be skipped
+        for ( Future<PartETag> zPart : pParts ) { // Let the in-flight parts finish so their buffers are returned and S3 won't keep them
+            try {
+                zPart.get();
+            }
+            catch ( Exception e ) {
+                // Ignore - already failing
+            }
+        }
+        try {
+            pPersister.executeRaw( "abortMultipartUpload", new S3Operation<Void>() {
+                @Override
+                public Void execute() {
+                    pPersister.mClient.abortMultipartUpload( new AbortMultipartUploadRequest( pPersister.getBucketName(), pPath, pUploadId ) );
+                    return null;
+                }
+            } );
+        }
+        catch ( Exception e ) {
+            e.printStackTrace(); // Fall thru... (the original failure is more interesting)
+        }
+    }
+
+    private static RuntimeException unwrap( Exception e ) {
+        Throwable zCause = (e instanceof ExecutionException) ? e.getCause() : e;
+        if ( zCause instanceof RuntimeException ) {
+            return (RuntimeException) zCause;
+        }
+        if ( zCause instanceof InterruptedException ) {
+            Thread.currentThread().interrupt();
+        }
+        return new FileSystemException( zCause );
+    }
+
+    /**
+     * @return the number of bytes read into pBuffer; less than the buffer's length only at the end of the stream.
+     */
+    static int readPart( InputStream pContents, byte[] pBuffer )
+            throws IOException {
+        int zTotal = 0;
+        for ( int zRead; zTotal < pBuffer.length; zTotal += zRead ) {
+            if ( -1 == (zRead = pContents.read( pBuffer, zTotal, pBuffer.length - zTotal )) ) {
+                break;
+            }
+        }
+        return zTotal;
+    }
+
+    private class PartUploader implements Callable<PartETag> {
+        private final S3Persister mPersister;
+        private final String mPath, mUploadId;
+        private final AtomicBoolean mAborted;
+        private final int mPartNumber;
+        private final byte[] mBuffer;
+        private final int mLength;
+
+        private PartUploader( S3Persister pPersister, String pPath, String pUploadId, AtomicBoolean pAborted, //
+                              int pPartNumber, byte[] pBuffer, int pLength ) {
+            mPersister = pPersister;
+            mPath = pPath;
+            mUploadId = pUploadId;
+            mAborted = pAborted;
+            mPartNumber = pPartNumber;
+            mBuffer = pBuffer;
+            mLength = pLength;
+        }
+
+        @Override
+        public PartETag call()
+                throws Exception {
+            try {
+                PartETag zETag = mPersister.executeRaw( "uploadPart", mMaxPartAttempts, new S3Operation<PartETag>() {
+                    @Override
+                    public PartETag execute() {
+                        if ( mAborted.get() ) {
+                            return null;
+                        }
+                        return mPersister.mClient.uploadPart( new UploadPartRequest().withBucketName( mPersister.getBucketName() ).withKey( mPath ) //
+                                                                      .withUploadId( mUploadId ).withPartNumber( mPartNumber ) //
+                                                                      .withInputStream( new ByteArrayInputStream( mBuffer, 0, mLength ) ) //
+                                                                      .withPartSize( mLength ) ).getPartETag();
+                    }
+                } );
+                if ( zETag != null ) {
+                    mPersister.countBytesOut( "uploadPart", mLength );
+                }
+                return zETag;
+            }
+            finally {
+                mBufferPool.add( mBuffer );
+            }
+        }
+    }
+}
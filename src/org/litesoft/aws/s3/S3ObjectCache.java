@@ -0,0 +1,406 @@
+package org.litesoft.aws.s3;
+
+import org.litesoft.commonfoundation.exceptions.*;
+
+import com.amazonaws.services.s3.model.*;
+import com.amazonaws.util.*;
+
+import java.io.*;
+import java.nio.channels.*;
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Size limited (LRU) local disk cache of object contents for S3Persister.getFile.
+ * <p/>
+ * A cached object is revalidated w/ a conditional GET (If-None-Match: its ETag) once it is older than the FreshMillis
+ * (0 = on every getFile), so an unchanged object costs a 304 w/o a body.  Hits are streamed from the cache file.
+ * <p/>
+ * A S3Persister invalidates the paths it writes or deletes; others' changes are seen at the next revalidation.  A body
+ * fetched while its path was invalidated may already be stale, so it is only cached if the path's Generation (taken
+ * before the GET) is unchanged (see S3MetadataCache).  The
+ * index is in memory, so each cache keeps its files in its own subdirectory of the given directory, which it holds a
+ * lock on (a "lock" file) until it is closed; the subdirectories a previous (ended) run left are deleted when a cache is
+ * created, and nothing else in the directory is touched.
+ * Objects larger than the MaxObjectBytes are not cached.  Objects are cached as stored (i.e. still compressed).
+ */
+public class S3ObjectCache {
+    public static final long DEFAULT_MAX_BYTES = 256L * 1024 * 1024;
+    public static final long DEFAULT_FRESH_MILLIS = 0;
+    private static final String SUFFIX = ".s3cache";
+    private static final String SUBDIRECTORY_PREFIX = "S3ObjectCache-", SUBDIRECTORY_SUFFIX = ".dir", LOCK = "lock";
+
+    private final File mDirectory;
+    private final FileLock mLock;
+    private final long mMaxBytes, mMaxObjectBytes, mFreshMillis;
+    private final LinkedHashMap<String, Entry> mEntries = new LinkedHashMap<String, Entry>( 16, 0.75f, true );
+    private final Map<String, Fetches> mFetches = new HashMap<String, Fetches>(); // Only the keys being fetched
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mRevalidations = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+    private long mBytes;
+    private int mTempFiles;
+
+    public S3ObjectCache( File pDirectory, long pMaxBytes, long pMaxObjectBytes, long pFreshMillis ) {
+        mMaxBytes = Math.max( 1, pMaxBytes );
+        mMaxObjectBytes = Math.max( 0, Math.min( mMaxBytes, pMaxObjectBytes ) );
+        mFreshMillis = Math.max( 0, pFreshMillis );
+        if ( !pDirectory.isDirectory() && !pDirectory.mkdirs() ) {
+            throw new FileSystemException( "Unable to create: " + pDirectory );
+        }
+        deleteAbandoned( pDirectory );
+        try {
+            mDirectory = File.createTempFile( SUBDIRECTORY_PREFIX, SUBDIRECTORY_SUFFIX, pDirectory );
+            if ( !mDirectory.delete() || !mDirectory.mkdir() ) {
+                throw new FileSystemException( "Unable to create: " + mDirectory );
+            }
+            mLock = new RandomAccessFile( new File( mDirectory, LOCK ), "rw" ).getChannel().lock();
+        }
+        catch ( IOException e ) {
+            throw new FileSystemException( e );
+        }
+    }
+
+    public S3ObjectCache( File pDirectory, long pMaxBytes ) {
+        this( pDirectory, pMaxBytes, pMaxBytes / 8, DEFAULT_FRESH_MILLIS );
+    }
+
+    public S3ObjectCache( File pDirectory ) {
+        this( pDirectory, DEFAULT_MAX_BYTES );
+    }
+
+    public long getHits() {
+        return mHits.get();
+    }
+
+    /**
+     * @return the hits that were revalidated (304) w/ S3.
+     */
+    public long getRevalidations() {
+        return mRevalidations.get();
+    }
+
+    public long getMisses() {
+        return mMisses.get();
+    }
+
+    public synchronized long getBytes() {
+        return mBytes;
+    }
+
+    public synchronized int size() {
+        return mEntries.size();
+    }
+
+    /**
+     * @return pPath's content, from the cache when it is (still) valid.
+     */
+    public InputStream get( S3Persister pPersister, String pPath )
+            throws IOException {
+        String zKey = pPersister.getBucketName() + ":" + pPath;
+        Entry zEntry = getEntry( zKey );
+        if ( (zEntry != null) && (System.currentTimeMillis() - zEntry.mValidated < mFreshMillis) ) {
+            InputStream zHit = open( zKey, zEntry );
+            if ( zHit != null ) {
+                mHits.incrementAndGet();
+                return pPersister.decode( pPath, zHit, zEntry.mContentEncoding );
+            }
+        }
+        long zGeneration = beginFetch( zKey );
+        try {
+            return fetch( pPersister, pPath, zKey, zEntry, zGeneration );
+        }
+        finally {
+            endFetch( zKey );
+        }
+    }
+
+    private InputStream fetch( S3Persister pPersister, String pPath, String pKey, Entry pEntry, long pGeneration )
+            throws IOException {
+        S3Object zObject;
+        try {
+            zObject = pPersister.getObject( pPath, (pEntry == null) ? null : pEntry.mETag );
+        }
+        catch ( FileSystemException e ) { // e.g. deleted by someone else
+            invalidate( pKey );
+            throw e;
+        }
+        if ( zObject == null ) { // 304 - Not Modified
+            pEntry.mValidated = System.currentTimeMillis();
+            InputStream zHit = open( pKey, pEntry );
+            if ( zHit != null ) {
+                mHits.incrementAndGet();
+                mRevalidations.incrementAndGet();
+                return pPersister.decode( pPath, zHit, pEntry.mContentEncoding );
+            }
+            zObject = pPersister.getObject( pPath, null ); // Evicted while revalidating
+        }
+        mMisses.incrementAndGet();
+        ObjectMetadata zMetadata = zObject.getObjectMetadata();
+        if ( (zMetadata.getETag() == null) || (zMetadata.getContentLength() > mMaxObjectBytes) ) {
+            invalidate( pKey );
+            return pPersister.decode( pPath, zObject.getObjectContent(), zMetadata.getContentEncoding() );
+        }
+        InputStream zStored = store( pKey, pGeneration, zMetadata.getETag(), zMetadata.getContentEncoding(), zObject.getObjectContent() );
+        return pPersister.decode( pPath, zStored, zMetadata.getContentEncoding() );
+    }
+
+    public void invalidate( S3Persister pPersister, String pPath ) {
+        invalidate( pPersister.getBucketName() + ":" + pPath );
+    }
+
+    public void invalidatePrefix( S3Persister pPersister, String pPathPrefix ) {
+        String zKeyPrefix = pPersister.getBucketName() + ":" + pPathPrefix;
+        List<Entry> zRemoved = new ArrayList<Entry>();
+        synchronized ( this ) {
+            for ( Iterator<Map.Entry<String, Entry>> zIt = mEntries.entrySet().iterator(); zIt.hasNext(); ) {
+                Map.Entry<String, Entry> zEntry = zIt.next();
+                if ( zEntry.getKey().startsWith( zKeyPrefix ) ) {
+                    zIt.remove();
+                    mBytes -= zEntry.getValue().mSize;
+                    zRemoved.add( zEntry.getValue() );
+                }
+            }
+            for ( Map.Entry<String, Fetches> zEntry : mFetches.entrySet() ) {
+                if ( zEntry.getKey().startsWith( zKeyPrefix ) ) {
+                    zEntry.getValue().mGeneration++;
+                }
+            }
+        }
+        delete( zRemoved );
+    }
+
+    public void clear() {
+        List<Entry> zRemoved;
+        synchronized ( this ) {
+            zRemoved = new ArrayList<Entry>( mEntries.values() );
+            mEntries.clear();
+            mBytes = 0;
+            for ( Fetches zFetches : mFetches.values() ) {
+                zFetches.mGeneration++;
+            }
+        }
+        delete( zRemoved );
+    }
+
+    /**
+     * Clears the cache, and deletes (and releases the lock on) its subdirectory.
+     */
+    public void close() {
+        clear();
+        try {
+            mLock.channel().close(); // Releases the lock
+        }
+        catch ( IOException e ) {
+            // Whatever
+        }
+        deleteSubdirectory( mDirectory );
+    }
+
+    /**
+     * @return pKey's current Generation, which every invalidate (of pKey, its prefix, or clear) advances while it is being
+     * fetched.
+     */
+    private synchronized long beginFetch( String pKey ) {
+        Fetches zFetches = mFetches.get( pKey );
+        if ( zFetches == null ) {
+            mFetches.put( pKey, zFetches = new Fetches() );
+        }
+        zFetches.mFetchers++;
+        return zFetches.mGeneration;
+    }
+
+    private synchronized void endFetch( String pKey ) {
+        Fetches zFetches = mFetches.get( pKey );
+        if ( --zFetches.mFetchers == 0 ) {
+            mFetches.remove( pKey );
+        }
+    }
+
+    private synchronized Entry getEntry( String pKey ) {
+        return mEntries.get( pKey );
+    }
+
+    /**
+     * @return null if pEntry is no longer cached (or its file has gone)
+     */
+    private InputStream open( String pKey, Entry pEntry ) {
+        synchronized ( this ) {
+            if ( mEntries.get( pKey ) != pEntry ) {
+                return null;
+            }
+        }
+        try {
+            return new FileInputStream( pEntry.mFile ); // Once open, an eviction (delete) does not disturb the reader (POSIX)
+        }
+        catch ( FileNotFoundException e ) {
+            invalidate( pKey );
+            return null;
+        }
+    }
+
+    /**
+     * Writes pContent to a new cache file, and caches it, unless pKey was invalidated since pGeneration.
+     *
+     * @return a stream of the (new) cache file (opened before it could be evicted).
+     */
+    private InputStream store( String pKey, long pGeneration, String pETag, String pContentEncoding, InputStream pContent )
+            throws IOException {
+        File zTemp = new File( mDirectory, fileNameFor( pKey ) + "-" + nextTempId() + ".tmp" );
+        long zSize = 0;
+        OutputStream zOut = new FileOutputStream( zTemp );
+        try {
+            byte[] zBuffer = new byte[64 * 1024];
+            for ( int zRead; -1 != (zRead = pContent.read( zBuffer )); zSize += zRead ) {
+                zOut.write( zBuffer, 0, zRead );
+            }
+        }
+        catch ( IOException e ) {
+            zOut.close();
+            zTemp.delete();
+            throw e;
+        }
+        finally {
+            pContent.close();
+        }
+        zOut.close();
+        InputStream zStored = new FileInputStream( zTemp ); // Once open, a rename or delete does not disturb the reader (POSIX)
+        Entry zEntry = new Entry( new File( mDirectory, fileNameFor( pKey ) + "-" + nextTempId() + SUFFIX ), pETag, pContentEncoding, zSize );
+        if ( !zTemp.renameTo( zEntry.mFile ) ) {
+            zStored.close();
+            zTemp.delete();
+            throw new IOException( "Unable to rename " + zTemp + " to " + zEntry.mFile );
+        }
+        List<Entry> zRemoved = new ArrayList<Entry>();
+        synchronized ( this ) {
+            if ( mFetches.get( pKey ).mGeneration != pGeneration ) { // Invalidated while fetching, so possibly stale
+                zRemoved.add( zEntry );
+            } else {
+                Entry zReplaced = mEntries.put( pKey, zEntry );
+                if ( zReplaced != null ) {
+                    mBytes -= zReplaced.mSize;
+                    zRemoved.add( zReplaced );
+                }
+                mBytes += zSize;
+                for ( Iterator<Entry> zIt = mEntries.values().iterator(); (mBytes > mMaxBytes) && zIt.hasNext(); ) {
+                    Entry zEldest = zIt.next();
+                    if ( zEldest != zEntry ) {
+                        zIt.remove();
+                        mBytes -= zEldest.mSize;
+                        zRemoved.add( zEldest );
+                    }
+                }
+            }
+        }
+        delete( zRemoved );
+        return zStored;
+    }
+
+    private void invalidate( String pKey ) {
+        Entry zEntry;
+        synchronized ( this ) {
+            Fetches zFetches = mFetches.get( pKey );
+            if ( zFetches != null ) {
+                zFetches.mGeneration++;
+            }
+            if ( null == (zEntry = mEntries.remove( pKey )) ) {
+                return;
+            }
+            mBytes -= zEntry.mSize;
+        }
+        zEntry.mFile.delete();
+    }
+
+    private static void delete( List<Entry> pEntries ) {
+        for ( Entry zEntry : pEntries ) {
+            zEntry.mFile.delete();
+        }
+    }
+
+    /**
+     * Deletes the subdirectories in pDirectory that no (running) cache holds the lock on.
+     */
+    private static void deleteAbandoned( File pDirectory ) {
+        File[] zSubdirectories = pDirectory.listFiles();
+        if ( zSubdirectories != null ) {
+            for ( File zSubdirectory : zSubdirectories ) {
+                String zName = zSubdirectory.getName();
+                if ( zName.startsWith( SUBDIRECTORY_PREFIX ) && zName.endsWith( SUBDIRECTORY_SUFFIX ) && zSubdirectory.isDirectory() &&
+                     isAbandoned( zSubdirectory ) ) {
+                    deleteSubdirectory( zSubdirectory );
+                }
+            }
+        }
+    }
+
+    private static boolean isAbandoned( File pSubdirectory ) {
+        File zLock = new File( pSubdirectory, LOCK );
+        if ( !zLock.isFile() ) {
+            return false; // Not (yet) locked, or not a cache's
+        }
+        try {
+            FileChannel zChannel = new RandomAccessFile( zLock, "rw" ).getChannel();
+            try {
+                return (zChannel.tryLock() != null);
+            }
+            catch ( OverlappingFileLockException e ) { // Held by a cache in this JVM
+                return false;
+            }
+            finally {
+                zChannel.close();
+            }
+        }
+        catch ( IOException e ) {
+            return false;
+        }
+    }
+
+    /**
+     * Deletes the cache (and temp) files, and then the lock, in pSubdirectory, and then pSubdirectory itself.
+     */
+    private static void deleteSubdirectory( File pSubdirectory ) {
+        File[] zFiles = pSubdirectory.listFiles();
+        if ( zFiles != null ) {
+            for ( File zFile : zFiles ) {
+                if ( !LOCK.equals( zFile.getName() ) ) {
+                    zFile.delete();
+                }
+            }
+        }
+        new File( pSubdirectory, LOCK ).delete();
+        pSubdirectory.delete();
+    }
+
+    private synchronized int nextTempId() {
+        return ++mTempFiles;
+    }
+
+    private static String fileNameFor( String pKey ) {
+        try {
+            return BinaryUtils.toHex( MessageDigest.getInstance( "SHA-1" ).digest( pKey.getBytes( "UTF-8" ) ) );
+        }
+        catch ( Exception e ) {
+            throw new IllegalStateException( e );
+        }
+    }
+
+    private static class Fetches {
+        private long mGeneration;
+        private int mFetchers;
+    }
+
+    private static class Entry {
+        private final File mFile;
+        private final String mETag, mContentEncoding;
+        private final long mSize;
+        private volatile long mValidated = System.currentTimeMillis();
+
+        private Entry( File pFile, String pETag, String pContentEncoding, long pSize ) {
+            mFile = pFile;
+            mETag = pETag;
+            mContentEncoding = pContentEncoding;
+            mSize = pSize;
+        }
+    }
+}
@@ -0,0 +1,9 @@
+package org.litesoft.aws.s3;
+
+/**
+ * A single S3 request (the unit that is rate limited, retried, and measured).
+ */
+public interface S3Operation<T> {
+    T execute()
+            throws Exception;
+}
@@ -0,0 +1,91 @@
+package org.litesoft.aws.s3;
+
+import java.util.concurrent.atomic.*;
+
+/**
+ * The (cumulative) metrics of one operation name (e.g. "getObject") of a S3Metrics.
+ * <p/>
+ * Requests, Errors, and the Latency histogram are per attempt; Retries are the attempts after the first.
+ */
+public final class S3OperationMetrics {
+    private final String mName;
+    private final S3LatencyHistogram mLatency = new S3LatencyHistogram();
+    private final AtomicLong mRequests = new AtomicLong();
+    private final AtomicLong mErrors = new AtomicLong();
+    private final AtomicLong mRetries = new AtomicLong();
+    private final AtomicLong mBytesIn = new AtomicLong();
+    private final AtomicLong mBytesOut = new AtomicLong();
+    private final AtomicInteger mInFlight = new AtomicInteger();
+
+    S3OperationMetrics( String pName ) {
+        mName = pName;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public S3LatencyHistogram getLatency() {
+        return mLatency;
+    }
+
+    public long getRequests() {
+        return mRequests.get();
+    }
+
+    public long getErrors() {
+        return mErrors.get();
+    }
+
+    public long getRetries() {
+        return mRetries.get();
+    }
+
+    /**
+     * @return bytes read from S3.
+     */
+    public long getBytesIn() {
+        return mBytesIn.get();
+    }
+
+    /**
+     * @return bytes sent to S3.
+     */
+    public long getBytesOut() {
+        return mBytesOut.get();
+    }
+
+    public int getInFlight() {
+        return mInFlight.get();
+    }
+
+    void started( int pAttempt ) {
+        mInFlight.incrementAndGet();
+        mRequests.incrementAndGet();
+        if ( pAttempt > 1 ) {
+            mRetries.incrementAndGet();
+        }
+    }
+
+    void finished( long pNanos, boolean pFailed ) {
+        mInFlight.decrementAndGet();
+        mLatency.recordNanos( pNanos );
+        if ( pFailed ) {
+            mErrors.incrementAndGet();
+        }
+    }
+
+    void addBytesIn( long pBytes ) {
+        mBytesIn.addAndGet( pBytes );
+    }
+
+    void addBytesOut( long pBytes ) {
+        mBytesOut.addAndGet( pBytes );
+    }
+
+    @Override
+    public String toString() {
+        return mName + ": requests=" + getRequests() + ", errors=" + getErrors() + ", retries=" + getRetries() + ", in=" + getBytesIn() + //
+               "b, out=" + getBytesOut() + "b, inFlight=" + getInFlight() + ", " + mLatency;
+    }
+}
@@ -1,5 +1,6 @@
 package org.litesoft.aws.s3;
 
+import org.litesoft.aws.clients.*;
 import org.litesoft.aws.credentials.*;
 import org.litesoft.commonfoundation.base.*;
 import org.litesoft.commonfoundation.exceptions.*;
@@ -10,40 +11,259 @@ import com.amazonaws.*;
 import com.amazonaws.services.s3.internal.*;
 import com.amazonaws.services.s3.model.*;
 import com.amazonaws.util.*;
+import java8.util.Spliterator;
+import java8.util.Spliterators;
+import java8.util.stream.*;
 
 import java.io.*;
+import java.nio.channels.*;
 import java.util.*;
 
 public class S3Persister extends S3ClientSupport {
+    /**
+     * User metadata (x-amz-meta-) w/ the hex MD5 of the content before it was compressed, as then the ETag is of the
+     * compressed bytes (set when known, see putFile).
+     */
+    public static final String RAW_MD5_METADATA = "raw-md5";
+
     private final CannedAccessControlList mCannedAclForAllS3Objects;
+    private S3MultipartUploader mMultipartUploader;
+    private S3RangedDownloader mRangedDownloader;
+    private S3BulkDeleter mBulkDeleter = S3BulkDeleter.INSTANCE;
+    private S3BulkMetadataLoader mBulkMetadataLoader = S3BulkMetadataLoader.INSTANCE;
+    private S3ShardedLister mShardedLister;
+    private S3MetadataCache mMetadataCache;
+    private S3ObjectCache mObjectCache;
+    private S3CloudFrontReader mCloudFrontReader;
+    private S3PrefixIndex mPrefixIndex;
+    private S3Compression mCompression;
 
-    public S3Persister( CachedAWSCredentials pCredentials, Bucket pBucket, CannedAccessControlList pCannedAclForAllS3Objects )
+    /**
+     * @param pClientSettings null for ClientSettings.DEFAULT
+     */
+    public S3Persister( CachedAWSCredentials pCredentials, Bucket pBucket, CannedAccessControlList pCannedAclForAllS3Objects,
+                        ClientSettings pClientSettings )
             throws IOException {
-        super( pCredentials, pBucket );
+        super( pCredentials, pBucket, pClientSettings );
         mCannedAclForAllS3Objects = ConstrainTo.notNull( pCannedAclForAllS3Objects, CannedAccessControlList.PublicRead );
     }
 
+    public S3Persister( CachedAWSCredentials pCredentials, Bucket pBucket, CannedAccessControlList pCannedAclForAllS3Objects )
+            throws IOException {
+        this( pCredentials, pBucket, pCannedAclForAllS3Objects, null );
+    }
+
     public S3Persister( CachedAWSCredentials pCredentials, Bucket pBucket )
             throws IOException {
         this( pCredentials, pBucket, null );
     }
 
+    /**
+     * Stream putFile contents as parallel Multipart Uploads (null reverts to the single PUT).
+     */
+    public S3Persister with( S3MultipartUploader pMultipartUploader ) {
+        mMultipartUploader = pMultipartUploader;
+        return this;
+    }
+
+    public S3MultipartUploader getMultipartUploader() {
+        return mMultipartUploader;
+    }
+
+    /**
+     * Read getFile (and getTextFile) contents as parallel byte range GETs (null reverts to the single GET).
+     */
+    public S3Persister with( S3RangedDownloader pRangedDownloader ) {
+        mRangedDownloader = pRangedDownloader;
+        return this;
+    }
+
+    /**
+     * Batches (and parallelism) used by deleteDirectory (null reverts to the shared S3BulkDeleter.INSTANCE).
+     */
+    public S3Persister with( S3BulkDeleter pBulkDeleter ) {
+        mBulkDeleter = ConstrainTo.notNull( pBulkDeleter, S3BulkDeleter.INSTANCE );
+        return this;
+    }
+
+    public S3BulkDeleter getBulkDeleter() {
+        return mBulkDeleter;
+    }
+
+    /**
+     * Listings (and parallelism) used by getFileMetadata (null reverts to the shared S3BulkMetadataLoader.INSTANCE).
+     */
+    public S3Persister with( S3BulkMetadataLoader pBulkMetadataLoader ) {
+        mBulkMetadataLoader = ConstrainTo.notNull( pBulkMetadataLoader, S3BulkMetadataLoader.INSTANCE );
+        return this;
+    }
+
+    public S3BulkMetadataLoader getBulkMetadataLoader() {
+        return mBulkMetadataLoader;
+    }
+
+    /**
+     * List getAllFilesUnder (and iterateAllFilesUnder) as parallel key range shards (null reverts to a single listing).
+     */
+    public S3Persister with( S3ShardedLister pShardedLister ) {
+        mShardedLister = pShardedLister;
+        return this;
+    }
+
+    /**
+     * Answer fileExists and isReadable from pMetadataCache when possible (null reverts to always asking S3).
+     */
+    public S3Persister with( S3MetadataCache pMetadataCache ) {
+        mMetadataCache = pMetadataCache;
+        return this;
+    }
+
+    public S3MetadataCache getMetadataCache() {
+        return mMetadataCache;
+    }
+
+    /**
+     * Serve getFile from pObjectCache's local (disk) copies, revalidated w/ conditional GETs (null turns it off).
+     */
+    public S3Persister with( S3ObjectCache pObjectCache ) {
+        mObjectCache = pObjectCache;
+        return this;
+    }
+
+    public S3ObjectCache getObjectCache() {
+        return mObjectCache;
+    }
+
+    /**
+     * Read getFile (and getTextFile) contents of public objects thru the Bucket's CloudFront URL, falling back to S3 on
+     * a miss or an error (null, or a Bucket w/o a CloudFront URL, reads only from S3).  Objects are public when the
+     * CannedAclForAllS3Objects is public, or (w/ a S3MetadataCache) when isReadable.
+     */
+    public S3Persister with( S3CloudFrontReader pCloudFrontReader ) {
+        mCloudFrontReader = pCloudFrontReader;
+        return this;
+    }
+
+    public S3CloudFrontReader getCloudFrontReader() {
+        return mCloudFrontReader;
+    }
+
+    /**
+     * Answer the listings (getDirectories, getFiles, getAllFilesUnder, and iterateAllFilesUnder) within pPrefixIndex's
+     * prefixes from its manifests, which this persister's writes keep up to date (null reverts to listing S3).
+     */
+    public S3Persister with( S3PrefixIndex pPrefixIndex ) {
+        mPrefixIndex = pPrefixIndex;
+        return this;
+    }
+
+    public S3PrefixIndex getPrefixIndex() {
+        return mPrefixIndex;
+    }
+
+    @Override
+    protected String getReservedKeyPrefix() {
+        S3PrefixIndex zPrefixIndex = mPrefixIndex;
+        return (zPrefixIndex == null) ? null : zPrefixIndex.getIndexRoot();
+    }
+
+    /**
+     * Compress uploads of pCompression's Content-Types (setting the Content-Encoding), and decompress getFile contents
+     * w/ a Content-Encoding of its Codecs (null turns both off).
+     */
+    public S3Persister with( S3Compression pCompression ) {
+        mCompression = pCompression;
+        return this;
+    }
+
+    public S3Compression getCompression() {
+        return mCompression;
+    }
+
+    /**
+     * Retry policy for this persister's S3 calls (null reverts to the shared S3Retrier.INSTANCE).
+     */
+    public S3Persister with( S3Retrier pRetrier ) {
+        setRetrier( pRetrier );
+        return this;
+    }
+
+    /**
+     * Request rate limiter for this persister's S3 calls, e.g. S3RateLimiter.forBucket to share one w/ all the
+     * persisters of the same bucket (null, the default, turns off rate limiting).
+     */
+    public S3Persister with( S3RateLimiter pRateLimiter ) {
+        setRateLimiter( pRateLimiter );
+        return this;
+    }
+
+    /**
+     * Record latencies, counts, and bytes of this persister's S3 calls in pMetrics (which may be shared; null turns
+     * off the recording).
+     */
+    public S3Persister with( S3Metrics pMetrics ) {
+        setMetrics( pMetrics );
+        return this;
+    }
+
     @Override
     public boolean fileExists( String pPath )
             throws FileSystemException {
-        try {
-            mClient.getObjectMetadata( getBucketName(), pPath );
-            return true;
+        S3MetadataCache zCache = mMetadataCache;
+        if ( zCache == null ) {
+            return fileExistsOnS3( pPath );
         }
-        catch ( AmazonServiceException e ) {
-            if ( e.getStatusCode() == 404 ) {
-                return false;
-            }
-            throw convert( e, pPath );
+        Boolean zExists = zCache.getExists( pPath );
+        if ( zExists == null ) {
+            long zGeneration = zCache.getGeneration(); // So a write during the HEAD is not cached over
+            zCache.putExists( pPath, zExists = fileExistsOnS3( pPath ), zGeneration );
         }
-        catch ( Exception e ) {
-            throw convert( e, pPath );
+        return zExists;
+    }
+
+    /**
+     * Bulk version of fileExists: answered from a few listings (w/ HEADs for sparse paths), rather than a HEAD each.
+     *
+     * @return the metadata of the pPaths that exist (those that do not are simply absent).
+     */
+    public Map<String, S3FileMetadata> getFileMetadata( Collection<String> pPaths )
+            throws FileSystemException {
+        S3MetadataCache zCache = mMetadataCache;
+        long zGeneration = (zCache == null) ? 0 : zCache.getGeneration();
+        Map<String, S3FileMetadata> zFound = mBulkMetadataLoader.load( this, pPaths );
+        if ( zCache != null ) {
+            for ( String zPath : pPaths ) {
+                zCache.putExists( zPath, zFound.containsKey( zPath ), zGeneration );
+            }
         }
+        return zFound;
+    }
+
+    /**
+     * @return those of pPaths that exist (see getFileMetadata).
+     */
+    public Set<String> filesExist( Collection<String> pPaths )
+            throws FileSystemException {
+        return getFileMetadata( pPaths ).keySet();
+    }
+
+    private boolean fileExistsOnS3( final String pPath )
+            throws FileSystemException {
+        return execute( "fileExists", pPath, new S3Operation<Boolean>() {
+            @Override
+            public Boolean execute() {
+                try {
+                    mClient.getObjectMetadata( getBucketName(), pPath );
+                    return true;
+                }
+                catch ( AmazonServiceException e ) {
+                    if ( e.getStatusCode() == 404 ) {
+                        return false;
+                    }
+                    throw e;
+                }
+            }
+        } );
     }
 
     @Override
@@ -78,12 +298,149 @@ public class S3Persister extends S3ClientSupport {
         }
     }
 
+    /**
+     * Lazy (streaming) version of getTextFile: lines are decoded a buffer at a time; the Iterator is also Closeable
+     * (and closes itself at the end).
+     */
+    public S3TextLines.LineIterator iterateTextFile( String pPath )
+            throws FileSystemException {
+        return new S3TextLines.LineIterator( getBucketName() + ":" + pPath, getFile( pPath ) );
+    }
+
+    /**
+     * @return a lazy (sequential) Stream over the lines of pPath (close it if it is not consumed to the end).
+     */
+    public Stream<String> textFileLines( String pPath )
+            throws FileSystemException {
+        final S3TextLines.LineIterator zLines = iterateTextFile( pPath );
+        return StreamSupport.stream( Spliterators.spliteratorUnknownSize( zLines, Spliterator.ORDERED | Spliterator.NONNULL ), false ) //
+                .onClose( new Runnable() {
+                    @Override
+                    public void run() {
+                        zLines.close();
+                    }
+                } );
+    }
+
+    /**
+     * Streaming version of putTextFile: each line is encoded (UTF-8, "\n" terminated) straight into the upload.
+     * <p/>
+     * W/o a S3MultipartUploader (or compression), pLines is iterated twice: first to compute the Content-Length (so the
+     * single PUT can stream), then to upload.
+     */
+    public void putTextFile( String pPath, Iterable<String> pLines )
+            throws FileSystemException {
+        boolean zLengthUnneeded = (mMultipartUploader != null) || compresses( pPath );
+        long zContentLength = zLengthUnneeded ? -1 : S3TextLines.encodedLength( pLines );
+        putFile( pPath, new S3TextLines.LinesInputStream( pLines.iterator() ), zContentLength );
+    }
+
     @Override
     public InputStream getFile( String pPath )
             throws FileSystemException {
         try {
-            S3Object zObject = mClient.getObject( getBucketName(), pPath );
-            return zObject.getObjectContent();
+            S3ObjectCache zObjectCache = mObjectCache;
+            if ( zObjectCache != null ) {
+                return zObjectCache.get( this, pPath );
+            }
+            S3CloudFrontReader zCloudFrontReader = mCloudFrontReader;
+            if ( (zCloudFrontReader != null) && isPublic( pPath ) ) {
+                InputStream zContent = zCloudFrontReader.open( this, pPath );
+                if ( zContent != null ) {
+                    return zContent;
+                }
+            }
+            S3RangedDownloader zRangedDownloader = mRangedDownloader;
+            if ( zRangedDownloader != null ) {
+                return zRangedDownloader.open( this, pPath );
+            }
+            S3Object zObject = getObject( pPath );
+            return decode( pPath, zObject.getObjectContent(), zObject.getObjectMetadata().getContentEncoding() );
+        }
+        catch ( FileSystemException e ) {
+            throw e;
+        }
+        catch ( Exception e ) {
+            throw convert( e, pPath );
+        }
+    }
+
+    /**
+     * @return pContent, decompressed if a S3Compression is in use and pContentEncoding is one of its Codecs'.
+     */
+    protected InputStream decode( String pPath, InputStream pContent, String pContentEncoding )
+            throws FileSystemException {
+        S3Compression zCompression = mCompression;
+        if ( zCompression == null ) {
+            return pContent;
+        }
+        try {
+            return zCompression.decode( pContent, pContentEncoding );
+        }
+        catch ( IOException e ) {
+            Closeables.dispose( pContent );
+            throw convert( e, pPath );
+        }
+    }
+
+    protected S3Object getObject( String pPath )
+            throws FileSystemException {
+        return getObject( pPath, null );
+    }
+
+    /**
+     * @param pCachedETag if not null, the GET is conditional (If-None-Match)
+     *
+     * @return null if pPath's ETag is (still) pCachedETag.
+     */
+    protected S3Object getObject( final String pPath, String pCachedETag )
+            throws FileSystemException {
+        final GetObjectRequest zRequest = new GetObjectRequest( getBucketName(), pPath );
+        if ( pCachedETag != null ) {
+            zRequest.withNonmatchingETagConstraint( pCachedETag );
+        }
+        S3Object zObject = execute( "getObject", pPath, new S3Operation<S3Object>() {
+            @Override
+            public S3Object execute() {
+                return mClient.getObject( zRequest );
+            }
+        } );
+        if ( zObject != null ) {
+            countBytesIn( "getObject", zObject.getObjectMetadata().getContentLength() );
+        }
+        return zObject;
+    }
+
+    /**
+     * Download pPath into pChannel (from position 0), in parallel ranges if a S3RangedDownloader has been provided (and
+     * there is no S3Compression, as then the content is decompressed, and so written, as a single stream); pChannel is
+     * then truncated to what was written.
+     *
+     * @return the number of bytes written.
+     */
+    public long getFile( String pPath, FileChannel pChannel )
+            throws FileSystemException {
+        try {
+            S3RangedDownloader zRangedDownloader = mRangedDownloader;
+            InputStream zInputStream;
+            if ( mCompression != null ) {
+                zInputStream = getFile( pPath );
+            } else if ( zRangedDownloader != null ) {
+                return zRangedDownloader.download( this, pPath, pChannel );
+            } else {
+                zInputStream = getObject( pPath ).getObjectContent();
+            }
+            try {
+                long zWritten = pChannel.transferFrom( Channels.newChannel( zInputStream ), 0, Long.MAX_VALUE );
+                pChannel.truncate( zWritten );
+                return zWritten;
+            }
+            finally {
+                Closeables.dispose( zInputStream );
+            }
+        }
+        catch ( FileSystemException e ) {
+            throw e;
         }
         catch ( Exception e ) {
             throw convert( e, pPath );
@@ -93,22 +450,65 @@ public class S3Persister extends S3ClientSupport {
     @Override
     public void putFile( String pPath, InputStream pFileContents )
             throws FileSystemException {
-        ObjectMetadata zMetadata = new ObjectMetadata();
-        if ( shouldCache( pPath ) ) {
-            cacheForever( zMetadata );
-        } else {
-            noCache( zMetadata );
+        putFile( pPath, pFileContents, -1 );
+    }
+
+    /**
+     * @param pContentLength if known (not negative), the single PUT streams w/o the SDK buffering the contents.
+     *                       <p/>
+     *                       Compressed content has no known length, so w/o a S3MultipartUploader it is spooled to a
+     *                       temporary file, rather than buffered (in full) in memory.
+     */
+    public void putFile( String pPath, InputStream pFileContents, long pContentLength )
+            throws FileSystemException {
+        putFile( pPath, pFileContents, pContentLength, null );
+    }
+
+    /**
+     * @param pRawMD5 nullable hex MD5 of pFileContents, stored (as the RAW_MD5_METADATA) when the content is compressed
+     */
+    public void putFile( final String pPath, final InputStream pFileContents, long pContentLength, String pRawMD5 )
+            throws FileSystemException {
+        final ObjectMetadata zMetadata = createMetadata( pPath );
+        S3Compression.Codec zCodec = compressionCodecFor( zMetadata );
+        if ( (zCodec != null) && (pRawMD5 != null) ) {
+            zMetadata.addUserMetadata( RAW_MD5_METADATA, pRawMD5 );
         }
-        zMetadata.setContentType( Mimetypes.getInstance().getMimetype( extractFileName( pPath ) ) );
         boolean zClosed = false;
         try {
-            mClient.putObject( addACL( new PutObjectRequest( getBucketName(), pPath, pFileContents, zMetadata ) ) );
+            S3MultipartUploader zMultipartUploader = mMultipartUploader;
+            if ( zCodec != null ) {
+                zMetadata.setContentEncoding( zCodec.getContentEncoding() );
+                InputStream zCompressed = new S3Compression.CompressingInputStream( pFileContents, zCodec );
+                if ( zMultipartUploader != null ) {
+                    zMultipartUploader.upload( this, pPath, zCompressed, zMetadata );
+                } else {
+                    putFileSpooled( pPath, zCompressed, zMetadata );
+                }
+                Closeables.dispose( zCompressed );
+            } else if ( zMultipartUploader != null ) {
+                zMultipartUploader.upload( this, pPath, pFileContents, zMetadata );
+                Closeables.dispose( pFileContents );
+            } else {
+                if ( pContentLength >= 0 ) {
+                    zMetadata.setContentLength( pContentLength );
+                }
+                executeRaw( "putObject", 1, new S3Operation<PutObjectResult>() { // Once - as the stream is consumed
+                    @Override
+                    public PutObjectResult execute() {
+                        return mClient.putObject( addACL( new PutObjectRequest( getBucketName(), pPath, pFileContents, zMetadata ) ) );
+                    }
+                } );
+                countBytesOut( "putObject", pContentLength ); // Unknown (negative) lengths are not counted
+            }
             zClosed = true;
+            indexAdded( pPath );
         }
         catch ( Exception e ) {
             throw convert( e, pPath );
         }
         finally {
+            invalidate( pPath );
             if ( !zClosed ) {
                 IOUtils.drain( pFileContents );
                 Closeables.dispose( pFileContents );
@@ -116,14 +516,139 @@ public class S3Persister extends S3ClientSupport {
         }
     }
 
+    /**
+     * PUT pStoredContents as is, i.e. already encoded (per pStoredMetadata's Content-Encoding, e.g. as read w/ getObject
+     * from another bucket), w/o (re)compressing it, w/ pStoredMetadata's Content-Length and user metadata (e.g. the
+     * RAW_MD5_METADATA).
+     */
+    protected void putStoredFile( final String pPath, final InputStream pStoredContents, ObjectMetadata pStoredMetadata )
+            throws FileSystemException {
+        final ObjectMetadata zMetadata = createMetadata( pPath );
+        long zContentLength = pStoredMetadata.getContentLength();
+        zMetadata.setContentLength( zContentLength );
+        if ( pStoredMetadata.getContentEncoding() != null ) {
+            zMetadata.setContentEncoding( pStoredMetadata.getContentEncoding() );
+        }
+        zMetadata.setUserMetadata( new HashMap<String, String>( pStoredMetadata.getUserMetadata() ) );
+        try {
+            execute( "putObject", pPath, 1, new S3Operation<PutObjectResult>() { // Once - as the stream is consumed
+                @Override
+                public PutObjectResult execute() {
+                    return mClient.putObject( addACL( new PutObjectRequest( getBucketName(), pPath, pStoredContents, zMetadata ) ) );
+                }
+            } );
+            countBytesOut( "putObject", zContentLength );
+            indexAdded( pPath );
+        }
+        finally {
+            invalidate( pPath );
+            Closeables.dispose( pStoredContents );
+        }
+    }
+
+    private void putFileSpooled( final String pPath, InputStream pContents, final ObjectMetadata pMetadata )
+            throws IOException {
+        final File zFile = S3Spooler.spool( "S3Persister", pContents );
+        try {
+            execute( "putObject", pPath, new S3Operation<PutObjectResult>() { // Retry-able, as the file can be re-read
+                @Override
+                public PutObjectResult execute() {
+                    return mClient.putObject( addACL( new PutObjectRequest( getBucketName(), pPath, zFile ).withMetadata( pMetadata ) ) );
+                }
+            } );
+            countBytesOut( "putObject", zFile.length() );
+        }
+        finally {
+            zFile.delete();
+        }
+    }
+
+    /**
+     * @return true if putFile would compress pPath's content (so its ETag is not the MD5 of what was put).
+     */
+    public boolean compresses( String pPath ) {
+        return (compressionCodecFor( createMetadata( pPath ) ) != null);
+    }
+
+    /**
+     * @return pPath's RAW_MD5_METADATA, or null if it has none (or does not exist).
+     */
+    protected String getRawMD5( final String pPath )
+            throws FileSystemException {
+        ObjectMetadata zMetadata = execute( "getObjectMetadata", pPath, new S3Operation<ObjectMetadata>() {
+            @Override
+            public ObjectMetadata execute() {
+                try {
+                    return mClient.getObjectMetadata( getBucketName(), pPath );
+                }
+                catch ( AmazonServiceException e ) {
+                    if ( e.getStatusCode() == 404 ) {
+                        return null;
+                    }
+                    throw e;
+                }
+            }
+        } );
+        return (zMetadata == null) ? null : zMetadata.getUserMetadata().get( RAW_MD5_METADATA );
+    }
+
+    /**
+     * @return null if the content described by pMetadata is not to be compressed.
+     */
+    private S3Compression.Codec compressionCodecFor( ObjectMetadata pMetadata ) {
+        S3Compression zCompression = mCompression;
+        return (zCompression == null) ? null : zCompression.codecFor( pMetadata.getContentType() );
+    }
+
+    protected ObjectMetadata createMetadata( String pPath ) {
+        ObjectMetadata zMetadata = new ObjectMetadata();
+        if ( shouldCache( pPath ) ) {
+            cacheForever( zMetadata );
+        } else {
+            noCache( zMetadata );
+        }
+        zMetadata.setContentType( Mimetypes.getInstance().getMimetype( extractFileName( pPath ) ) );
+        return zMetadata;
+    }
+
     protected PutObjectRequest addACL( PutObjectRequest pRequest ) {
         return pRequest.withCannedAcl( getCannedAclForAllS3Objects() );
     }
 
+    protected InitiateMultipartUploadRequest addACL( InitiateMultipartUploadRequest pRequest ) {
+        return pRequest.withCannedACL( getCannedAclForAllS3Objects() );
+    }
+
     @Override
     public String[] getDirectories( String pDirectoryNamePrefix )
             throws FileSystemException {
-        return getKeyList( pDirectoryNamePrefix, DIRECTORY_S3LISTFILTER );
+        String zKeyPrefix = ConstrainTo.significantOrNull( pDirectoryNamePrefix, "" );
+        SortedSet<String> zIndexed = indexedKeys( zKeyPrefix );
+        if ( zIndexed != null ) {
+            Set<String> zDirectories = new LinkedHashSet<String>();
+            if ( zKeyPrefix.indexOf( '/' ) != -1 ) {
+                for ( String zKey : zIndexed ) {
+                    DIRECTORY_S3LISTFILTER.filteredAdd( zKey, zDirectories );
+                }
+            } else {
+                for ( String zKey : zIndexed ) {
+                    int zAt = zKey.indexOf( '/', zKeyPrefix.length() );
+                    if ( zAt != -1 ) {
+                        zDirectories.add( zKey.substring( 0, zAt ) );
+                    }
+                }
+            }
+            return zDirectories.toArray( new String[zDirectories.size()] );
+        }
+        if ( zKeyPrefix.indexOf( '/' ) != -1 ) { // Directories are from the root, so the Common Prefixes would be too deep
+            return getKeyList( zKeyPrefix, DIRECTORY_S3LISTFILTER );
+        }
+        Set<String> zCommonPrefixes = getCommonPrefixes( zKeyPrefix );
+        List<String> zDirectories = new ArrayList<String>( zCommonPrefixes.size() );
+        for ( String zCommonPrefix : zCommonPrefixes ) {
+            zDirectories.add( zCommonPrefix.substring( 0, zCommonPrefix.length() - 1 ) );
+        }
+        return zDirectories.toArray( new String[zDirectories.size()] );
     }
 
     @Override
@@ -134,7 +659,7 @@ public class S3Persister extends S3ClientSupport {
             zKeyPrefix = (pFilesSubDirectory += "/") + pFileNamePrefix;
         }
         final int zSkipLength = pFilesSubDirectory.length();
-        return getKeyList( zKeyPrefix, new S3ListFilter() {
+        S3ListFilter zFilter = new S3ListFilter() {
             @Override
             public boolean filteredAdd( String pPath, Collection<String> pCollector ) {
                 int zAt = (pPath = pPath.substring( zSkipLength )).indexOf( '/' );
@@ -143,19 +668,59 @@ public class S3Persister extends S3ClientSupport {
                 }
                 return true;
             }
-        } );
+        };
+        SortedSet<String> zIndexed = indexedKeys( zKeyPrefix );
+        if ( zIndexed != null ) {
+            List<String> zFiles = new ArrayList<String>();
+            for ( String zKey : zIndexed ) {
+                zFilter.filteredAdd( zKey, zFiles );
+            }
+            return zFiles.toArray( new String[zFiles.size()] );
+        }
+        return getKeyList( zKeyPrefix, zFilter, true );
     }
 
     @Override
     public String[] getAllFilesUnder( String pFilesSubDirectory )
             throws FileSystemException {
-        return getKeyList( Confirm.significant( "FilesSubDirectory", pFilesSubDirectory ), new S3ListFilter() {
-            @Override
-            public boolean filteredAdd( String pPath, Collection<String> pCollector ) {
-                pCollector.add( pPath );
-                return true;
-            }
-        } );
+        SortedSet<String> zIndexed = indexedKeys( Confirm.significant( "FilesSubDirectory", pFilesSubDirectory ) );
+        if ( zIndexed != null ) {
+            return zIndexed.toArray( new String[zIndexed.size()] );
+        }
+        if ( mShardedLister == null ) {
+            return getKeyList( pFilesSubDirectory, ALL_S3LISTFILTER );
+        }
+        List<String> zKeys = new ArrayList<String>();
+        for ( Iterator<String> zIt = iterateAllFilesUnder( pFilesSubDirectory ); zIt.hasNext(); ) {
+            zKeys.add( zIt.next() );
+        }
+        return zKeys.toArray( new String[zKeys.size()] );
+    }
+
+    /**
+     * Lazy version of getAllFilesUnder, for prefixes too big to materialize.
+     * <p/>
+     * W/ a S3ShardedLister, the Iterator is also Closeable, and a caller that stops before its end should close() it,
+     * otherwise its shards hold (shared) listing threads until the lister treats it as abandoned (see
+     * S3ShardedLister.withAbandonedAfterMillis).
+     */
+    public Iterator<String> iterateAllFilesUnder( String pFilesSubDirectory )
+            throws FileSystemException {
+        String zKeyPrefix = Confirm.significant( "FilesSubDirectory", pFilesSubDirectory );
+        SortedSet<String> zIndexed = indexedKeys( zKeyPrefix );
+        if ( zIndexed != null ) {
+            return zIndexed.iterator();
+        }
+        S3ShardedLister zShardedLister = mShardedLister;
+        return (zShardedLister != null) ? zShardedLister.list( this, zKeyPrefix ) : keyIterator( zKeyPrefix );
+    }
+
+    /**
+     * Upload only the new or changed files under pLocalRoot to pTargetPrefix (see S3DirectorySync).
+     */
+    public S3DirectorySync.Result sync( File pLocalRoot, String pTargetPrefix, boolean pDeleteOrphans )
+            throws FileSystemException {
+        return S3DirectorySync.INSTANCE.sync( this, pLocalRoot, pTargetPrefix, pDeleteOrphans );
     }
 
     @Override
@@ -164,6 +729,15 @@ public class S3Persister extends S3ClientSupport {
         copyFileFromUsingS3sObjectCopy( getBucketName(), pSourcePath, pDestinationPath );
     }
 
+    /**
+     * copyFile, but w/ the metadata (e.g. Content-Type and Cache-Control) that putFile would give pDestinationPath,
+     * rather than pSourcePath's (e.g. for a rename that changes the extension).
+     */
+    public void copyFileAsPut( String pSourcePath, String pDestinationPath )
+            throws FileSystemException {
+        copyFileFromUsingS3sObjectCopy( getBucketName(), pSourcePath, pDestinationPath, createMetadata( pDestinationPath ) );
+    }
+
     @Override
     public void copyFile( Persister pSourcePersister, String pSourcePath, String pDestinationPath )
             throws FileSystemException {
@@ -172,62 +746,179 @@ public class S3Persister extends S3ClientSupport {
             copyFileFromUsingS3sObjectCopy( them.getBucketName(), pSourcePath, pDestinationPath );
             return;
         }
-        super.copyFile( pSourcePersister, pSourcePath, pDestinationPath ); // Read and then Write!
+        try {
+            super.copyFile( pSourcePersister, pSourcePath, pDestinationPath ); // Read and then Write!
+        }
+        finally {
+            invalidate( pDestinationPath );
+        }
+    }
+
+    /**
+     * Copy everything under pSourcePrefix of pSourcePersister to pDestinationPrefix of this (see S3PrefixCopier).
+     *
+     * @param pProgress nullable
+     */
+    public S3PrefixCopier.Result copyDirectory( S3Persister pSourcePersister, String pSourcePrefix, String pDestinationPrefix,
+                                                S3PrefixCopier.Progress pProgress )
+            throws FileSystemException {
+        return S3PrefixCopier.INSTANCE.copy( pSourcePersister, pSourcePrefix, this, pDestinationPrefix, pProgress );
     }
 
     @Override
     public void deleteDirectory( String pPath )
             throws FileSystemException {
         String zKeyPrefix = Strings.replace( pPath + "/", "//", "/" );
-        for ( Set<String> zKeysToDelete = getKeySet( zKeyPrefix, DELETE_S3LISTFILTER ); !zKeysToDelete.isEmpty(); ) {
-            try {
-                mClient.deleteObjects( new DeleteObjectsRequest( getBucketName() ).withKeys( zKeysToDelete.toArray( new String[zKeysToDelete.size()] ) ) );
-            }
-            catch ( MultiObjectDeleteException e ) {
-                e.printStackTrace(); // Fall thru...
+        try {
+            mBulkDeleter.delete( this, keyIterator( zKeyPrefix ) );
+            S3PrefixIndex zPrefixIndex = mPrefixIndex;
+            if ( zPrefixIndex != null ) {
+                zPrefixIndex.removedUnder( this, zKeyPrefix );
             }
-            catch ( Exception e ) {
-                throw convert( e, zKeyPrefix );
+        }
+        catch ( FileSystemException e ) {
+            throw e;
+        }
+        catch ( Exception e ) {
+            throw convert( e, zKeyPrefix );
+        }
+        finally {
+            S3MetadataCache zCache = mMetadataCache;
+            if ( zCache != null ) {
+                zCache.invalidatePrefix( zKeyPrefix );
             }
-            Set<String> zKeysToDelete2 = getKeySet( zKeyPrefix, DELETE_S3LISTFILTER );
-            if ( zKeysToDelete.equals( zKeysToDelete2 ) ) {
-                throw new FileSystemException( "Unable to delete: " + zKeysToDelete );
+            S3ObjectCache zObjectCache = mObjectCache;
+            if ( zObjectCache != null ) {
+                zObjectCache.invalidatePrefix( this, zKeyPrefix );
             }
-            zKeysToDelete = zKeysToDelete2;
         }
     }
 
     @Override
-    public void deleteFile( String pPath )
+    public void deleteFile( final String pPath )
             throws FileSystemException {
         try {
-            mClient.deleteObject( getBucketName(), pPath );
+            execute( "deleteFile", pPath, new S3Operation<Void>() {
+                @Override
+                public Void execute() {
+                    mClient.deleteObject( getBucketName(), pPath );
+                    return null;
+                }
+            } );
+            S3PrefixIndex zPrefixIndex = mPrefixIndex;
+            if ( zPrefixIndex != null ) {
+                zPrefixIndex.removed( this, pPath );
+            }
         }
-        catch ( Exception e ) {
-            throw convert( e, pPath );
+        finally {
+            invalidate( pPath );
         }
     }
 
     @Override
     public boolean isReadable( String pPath )
             throws FileSystemException {
-        AccessControlList zACL;
-        try {
-            zACL = mClient.getObjectAcl( getBucketName(), pPath );
+        S3MetadataCache zCache = mMetadataCache;
+        if ( zCache == null ) {
+            return isReadableOnS3( pPath );
         }
-        catch ( Exception e ) {
-            throw convert( e, pPath );
+        Boolean zReadable = zCache.getReadable( pPath );
+        if ( zReadable == null ) {
+            long zGeneration = zCache.getGeneration();
+            zCache.putReadable( pPath, zReadable = isReadableOnS3( pPath ), zGeneration );
+        }
+        return zReadable;
+    }
+
+    /**
+     * @return true if pPath is (known to be) readable by all, w/o asking S3 for its ACL on every call.
+     */
+    private boolean isPublic( String pPath ) {
+        CannedAccessControlList zAcl = getCannedAclForAllS3Objects();
+        if ( (zAcl == CannedAccessControlList.PublicRead) || (zAcl == CannedAccessControlList.PublicReadWrite) ) {
+            return true;
         }
+        return (mMetadataCache != null) && isReadable( pPath );
+    }
+
+    private boolean isReadableOnS3( final String pPath )
+            throws FileSystemException {
+        AccessControlList zACL = execute( "isReadable", pPath, new S3Operation<AccessControlList>() {
+            @Override
+            public AccessControlList execute() {
+                return mClient.getObjectAcl( getBucketName(), pPath );
+            }
+        } );
         return zACL.getGrants().contains( new Grant( GroupGrantee.AllUsers, Permission.Read ) );
     }
 
-    private void copyFileFromUsingS3sObjectCopy( String pSourceS3BucketName, String pSourcePath, String pDestinationPath )
+    protected void copyFileFromUsingS3sObjectCopy( String pSourceS3BucketName, String pSourcePath, String pDestinationPath )
+            throws FileSystemException {
+        copyFileFromUsingS3sObjectCopy( pSourceS3BucketName, pSourcePath, pDestinationPath, null );
+    }
+
+    /**
+     * @param pNewMetadata null to keep the source's metadata, otherwise it replaces it (REPLACE metadata directive)
+     */
+    protected void copyFileFromUsingS3sObjectCopy( final String pSourceS3BucketName, final String pSourcePath, final String pDestinationPath,
+                                                   final ObjectMetadata pNewMetadata )
             throws FileSystemException {
         try {
-            mClient.copyObject( addACL( new CopyObjectRequest( pSourceS3BucketName, pSourcePath, getBucketName(), pDestinationPath ) ) );
+            execute( "copyFile", pDestinationPath + " <- " + pSourceS3BucketName + ":" + pSourcePath, new S3Operation<CopyObjectResult>() {
+                @Override
+                public CopyObjectResult execute() {
+                    CopyObjectRequest zRequest = new CopyObjectRequest( pSourceS3BucketName, pSourcePath, getBucketName(), pDestinationPath );
+                    return mClient.copyObject( addACL( (pNewMetadata == null) ? zRequest : zRequest.withNewObjectMetadata( pNewMetadata ) ) );
+                }
+            } );
+            indexAdded( pDestinationPath );
         }
-        catch ( Exception e ) {
-            throw convert( e, pDestinationPath + " <- " + pSourceS3BucketName + ":" + pSourcePath );
+        finally {
+            invalidate( pDestinationPath );
+        }
+    }
+
+    /**
+     * Forget anything cached about pPath (as this persister has just changed it).
+     */
+    protected void invalidate( String pPath ) {
+        S3MetadataCache zCache = mMetadataCache;
+        if ( zCache != null ) {
+            zCache.invalidate( pPath );
+        }
+        S3ObjectCache zObjectCache = mObjectCache;
+        if ( zObjectCache != null ) {
+            zObjectCache.invalidate( this, pPath );
+        }
+    }
+
+    /**
+     * @return the keys starting w/ pKeyPrefix from the S3PrefixIndex, or null if pKeyPrefix is not indexed.
+     */
+    private SortedSet<String> indexedKeys( String pKeyPrefix )
+            throws FileSystemException {
+        S3PrefixIndex zPrefixIndex = mPrefixIndex;
+        return (zPrefixIndex == null) ? null : zPrefixIndex.keys( this, pKeyPrefix );
+    }
+
+    /**
+     * Record in the S3PrefixIndex (if any) that pPath now exists (as this persister has just written it).
+     */
+    protected void indexAdded( String pPath ) {
+        S3PrefixIndex zPrefixIndex = mPrefixIndex;
+        if ( zPrefixIndex != null ) {
+            zPrefixIndex.added( this, pPath );
+        }
+    }
+
+    /**
+     * Mark the S3PrefixIndex manifests (if any) covering pKeyPrefix dirty, for bulk writes (each key's update would
+     * contend).
+     */
+    protected void indexInvalidateUnder( String pKeyPrefix ) {
+        S3PrefixIndex zPrefixIndex = mPrefixIndex;
+        if ( zPrefixIndex != null ) {
+            zPrefixIndex.invalidateUnder( this, pKeyPrefix );
         }
     }
 
@@ -255,28 +946,15 @@ public class S3Persister extends S3ClientSupport {
         }
     };
 
-    private static S3ListFilter DELETE_S3LISTFILTER = new S3ListFilter() {
-        @Override
-        public boolean filteredAdd( String pPath, Collection<String> pCollector ) {
-            pCollector.add( pPath );
-            return pCollector.size() < 5;
-        }
-    };
-
-    private final Map<Persister, Boolean> mCachedCheckS3CopyFriendly = Maps.newIdentityHashMap();
-
-    private S3Persister checkS3CopyFriendly( Persister pPersister ) {
-        Boolean zFriendly;
-        synchronized ( mCachedCheckS3CopyFriendly ) {
-            zFriendly = mCachedCheckS3CopyFriendly.get( pPersister );
-            if ( zFriendly == null ) {
-                mCachedCheckS3CopyFriendly.put( pPersister, zFriendly = isS3CopyFriendly( pPersister ) );
-            }
-        }
-        return zFriendly ? (S3Persister) pPersister : null;
+    /**
+     * @return true if pPersister's objects can be copied w/ S3's (server side) Object Copy (lock free, see
+     * CachedAWSCredentials.isS3CopyFriendly).
+     */
+    public boolean isS3CopyFriendlyWith( Persister pPersister ) {
+        return (checkS3CopyFriendly( pPersister ) != null);
     }
 
-    private synchronized boolean isS3CopyFriendly( Persister pPersister ) {
-        return (pPersister instanceof S3Persister) && super.isS3CopyFriendly( (S3ClientSupport) pPersister );
+    private S3Persister checkS3CopyFriendly( Persister pPersister ) {
+        return ((pPersister instanceof S3Persister) && isS3CopyFriendly( (S3ClientSupport) pPersister )) ? (S3Persister) pPersister : null;
     }
 }
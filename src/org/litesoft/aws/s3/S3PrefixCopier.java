@@ -0,0 +1,254 @@
+package org.litesoft.aws.s3;
+
+import org.litesoft.commonfoundation.exceptions.*;
+
+import com.amazonaws.services.s3.model.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Copies every object under a prefix of one S3Persister to a prefix of another (or the same) S3Persister, many objects
+ * at a time, from a single listing of the source.
+ * <p/>
+ * S3 copy friendly pairs use server side copies: CopyObject up to the 5 GB single copy limit, and Multipart
+ * (UploadPartCopy) above it.  Other pairs stream each object's stored bytes (still encoded, w/ their Content-Encoding
+ * and Content-Length) thru the JVM w/o temp files, so memory is bounded by the in flight objects' stream buffers.
+ */
+public class S3PrefixCopier {
+    public static final long MAX_SINGLE_COPY_SIZE = 5L * 1024 * 1024 * 1024; // S3 limit
+    public static final long MIN_COPY_PART_SIZE = 512L * 1024 * 1024;
+    public static final int MAX_PARTS = 10000; // S3 limit
+    public static final int DEFAULT_OBJECTS_IN_FLIGHT = 16;
+
+    public static final S3PrefixCopier INSTANCE = new S3PrefixCopier();
+
+    public interface Progress {
+        void copied( String pDestinationKey, long pBytes, Result pSoFar );
+    }
+
+    private final int mObjectsInFlight;
+    private final ExecutorService mExecutor;
+
+    public S3PrefixCopier( int pObjectsInFlight, ExecutorService pExecutor ) {
+        mObjectsInFlight = Math.max( 1, pObjectsInFlight );
+        mExecutor = (pExecutor != null) ? pExecutor : S3Executors.newFixedDaemonPool( "S3PrefixCopier", mObjectsInFlight );
+    }
+
+    public S3PrefixCopier( int pObjectsInFlight ) {
+        this( pObjectsInFlight, null );
+    }
+
+    public S3PrefixCopier() {
+        this( DEFAULT_OBJECTS_IN_FLIGHT );
+    }
+
+    /**
+     * @param pProgress nullable
+     */
+    public Result copy( S3Persister pSource, String pSourcePrefix, S3Persister pDestination, String pDestinationPrefix, Progress pProgress )
+            throws FileSystemException {
+        String zSourcePrefix = (pSourcePrefix == null) ? "" : pSourcePrefix;
+        String zDestinationPrefix = (pDestinationPrefix == null) ? "" : pDestinationPrefix;
+        boolean zServerSide = (pSource == pDestination) || pDestination.isS3CopyFriendlyWith( pSource );
+        Result zResult = new Result();
+        Semaphore zInFlight = new Semaphore( mObjectsInFlight );
+        List<Future<?>> zObjects = new ArrayList<Future<?>>();
+        pDestination.indexInvalidateUnder( zDestinationPrefix ); // Before (so each key's update is a no-op) and after
+        try {
+            for ( Iterator<S3ObjectSummary> zIt = pSource.summaryIterator( pSource.createListRequest( zSourcePrefix, false ), null ); zIt.hasNext(); ) {
+                S3ObjectSummary zSummary = zIt.next();
+                String zDestinationKey = zDestinationPrefix + zSummary.getKey().substring( zSourcePrefix.length() );
+                zInFlight.acquire();
+                zObjects.add( mExecutor.submit( new ObjectCopier( pSource, pDestination, zServerSide, zSummary, zDestinationKey, //
+                                                                  zResult, pProgress, zInFlight ) ) );
+                checkForFailedObjects( zObjects );
+            }
+            for ( Future<?> zObject : zObjects ) {
+                zObject.get();
+            }
+        }
+        catch ( Exception e ) {
+            for ( Future<?> zObject : zObjects ) {
+                zObject.cancel( false );
+            }
+            Throwable zCause = (e instanceof ExecutionException) ? e.getCause() : e;
+            if ( zCause instanceof InterruptedException ) {
+                Thread.currentThread().interrupt();
+            }
+            if ( zCause instanceof FileSystemException ) {
+                throw (FileSystemException) zCause;
+            }
+            throw pDestination.convert( (zCause instanceof Exception) ? (Exception) zCause : e, zDestinationPrefix + " <- " + zSourcePrefix );
+        }
+        finally {
+            pDestination.indexInvalidateUnder( zDestinationPrefix );
+        }
+        return zResult.finished();
+    }
+
+    private void checkForFailedObjects( List<Future<?>> pObjects )
+            throws ExecutionException, InterruptedException {
+        for ( Future<?> zObject : pObjects ) {
+            if ( zObject.isDone() ) {
+                zObject.get(); // Throws if the Object failed
+            }
+        }
+    }
+
+    private static void multipartCopy( final S3Persister pSource, final S3Persister pDestination, final S3ObjectSummary pSummary,
+                                       final String pDestinationKey ) {
+        ObjectMetadata zSourceMetadata = pSource.executeUnchecked( "getObjectMetadata", new S3Operation<ObjectMetadata>() {
+            @Override
+            public ObjectMetadata execute() {
+                return pSource.mClient.getObjectMetadata( pSource.getBucketName(), pSummary.getKey() );
+            }
+        } );
+        final ObjectMetadata zMetadata = pDestination.createMetadata( pDestinationKey );
+        zMetadata.setUserMetadata( zSourceMetadata.getUserMetadata() );
+        if ( zSourceMetadata.getContentEncoding() != null ) {
+            zMetadata.setContentEncoding( zSourceMetadata.getContentEncoding() );
+        }
+        final String zUploadId = pDestination.executeUnchecked( "initiateMultipartUpload", new S3Operation<String>() {
+            @Override
+            public String execute() {
+                return pDestination.mClient.initiateMultipartUpload( pDestination.addACL( new InitiateMultipartUploadRequest( //
+                        pDestination.getBucketName(), pDestinationKey, zMetadata ) ) ).getUploadId();
+            }
+        } );
+        try {
+            long zSize = pSummary.getSize();
+            long zPartSize = Math.max( MIN_COPY_PART_SIZE, (zSize + MAX_PARTS - 1) / MAX_PARTS );
+            final List<PartETag> zETags = new ArrayList<PartETag>();
+            for ( long zFirstByte = 0; zFirstByte < zSize; zFirstByte += zPartSize ) {
+                final CopyPartRequest zRequest = new CopyPartRequest() //
+                        .withSourceBucketName( pSource.getBucketName() ).withSourceKey( pSummary.getKey() ) //
+                        .withMatchingETagConstraint( pSummary.getETag() ) //
+                        .withDestinationBucketName( pDestination.getBucketName() ) //
+                        .withDestinationKey( pDestinationKey ).withUploadId( zUploadId ) //
+                        .withPartNumber( zETags.size() + 1 ).withFirstByte( zFirstByte ) //
+                        .withLastByte( Math.min( zSize, zFirstByte + zPartSize ) - 1 );
+                zETags.add( pDestination.executeUnchecked( "copyPart", new S3Operation<PartETag>() {
+                    @Override
+                    public PartETag execute() {
+                        return pDestination.mClient.copyPart( zRequest ).getPartETag();
+                    }
+                } ) );
+            }
+            pDestination.executeUnchecked( "completeMultipartUpload", new S3Operation<CompleteMultipartUploadResult>() {
+                @Override
+                public CompleteMultipartUploadResult execute() {
+                    return pDestination.mClient.completeMultipartUpload( new CompleteMultipartUploadRequest( pDestination.getBucketName(), //
+                                                                                                             pDestinationKey, zUploadId, zETags ) );
+                }
+            } );
+        }
+        catch ( RuntimeException e ) {
+            try {
+                pDestination.executeUnchecked( "abortMultipartUpload", new S3Operation<Void>() {
+                    @Override
+                    public Void execute() {
+                        pDestination.mClient.abortMultipartUpload( new AbortMultipartUploadRequest( pDestination.getBucketName(), pDestinationKey, //
+                                                                                                    zUploadId ) );
+                        return null;
+                    }
+                } );
+            }
+            catch ( Exception e2 ) {
+                e2.printStackTrace(); // Fall thru... (the original failure is more interesting)
+            }
+            throw e;
+        }
+        finally {
+            pDestination.invalidate( pDestinationKey );
+        }
+    }
+
+    private static class ObjectCopier implements Callable<Void> {
+        private final S3Persister mSource, mDestination;
+        private final boolean mServerSide;
+        private final S3ObjectSummary mSummary;
+        private final String mDestinationKey;
+        private final Result mResult;
+        private final Progress mProgress;
+        private final Semaphore mInFlight;
+
+        private ObjectCopier( S3Persister pSource, S3Persister pDestination, boolean pServerSide, S3ObjectSummary pSummary, String pDestinationKey, //
+                              Result pResult, Progress pProgress, Semaphore pInFlight ) {
+            mSource = pSource;
+            mDestination = pDestination;
+            mServerSide = pServerSide;
+            mSummary = pSummary;
+            mDestinationKey = pDestinationKey;
+            mResult = pResult;
+            mProgress = pProgress;
+            mInFlight = pInFlight;
+        }
+
+        @Override
+        public Void call() {
+            try {
+                if ( !mServerSide ) {
+                    S3Object zObject = mSource.getObject( mSummary.getKey() ); // Not decoded, so w/ its stored length
+                    mDestination.putStoredFile( mDestinationKey, zObject.getObjectContent(), zObject.getObjectMetadata() );
+                } else if ( mSummary.getSize() <= MAX_SINGLE_COPY_SIZE ) {
+                    mDestination.copyFileFromUsingS3sObjectCopy( mSource.getBucketName(), mSummary.getKey(), mDestinationKey );
+                } else {
+                    multipartCopy( mSource, mDestination, mSummary, mDestinationKey );
+                }
+                mResult.add( mSummary.getSize() );
+                if ( mProgress != null ) {
+                    mProgress.copied( mDestinationKey, mSummary.getSize(), mResult );
+                }
+                return null;
+            }
+            finally {
+                mInFlight.release();
+            }
+        }
+    }
+
+    public static class Result {
+        private final long mStarted = System.currentTimeMillis();
+        private final AtomicLong mObjects = new AtomicLong();
+        private final AtomicLong mBytes = new AtomicLong();
+        private volatile long mFinished;
+
+        private void add( long pBytes ) {
+            mObjects.incrementAndGet();
+            mBytes.addAndGet( pBytes );
+        }
+
+        private Result finished() {
+            mFinished = System.currentTimeMillis();
+            return this;
+        }
+
+        public long getObjects() {
+            return mObjects.get();
+        }
+
+        public long getBytes() {
+            return mBytes.get();
+        }
+
+        public long getElapsedMillis() {
+            long zFinished = mFinished;
+            return ((zFinished != 0) ? zFinished : System.currentTimeMillis()) - mStarted;
+        }
+
+        public double getBytesPerSecond() {
+            return getBytes() * 1000.0 / Math.max( 1, getElapsedMillis() );
+        }
+
+        public double getObjectsPerSecond() {
+            return getObjects() * 1000.0 / Math.max( 1, getElapsedMillis() );
+        }
+
+        @Override
+        public String toString() {
+            return "Copied " + getObjects() + " objects (" + getBytes() + " bytes) in " + getElapsedMillis() + "ms";
+        }
+    }
+}
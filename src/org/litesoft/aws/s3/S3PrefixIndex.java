@@ -0,0 +1,411 @@
+package org.litesoft.aws.s3;
+
+import org.litesoft.commonfoundation.base.*;
+import org.litesoft.commonfoundation.exceptions.*;
+import org.litesoft.server.util.*;
+
+import com.amazonaws.*;
+import com.amazonaws.services.s3.model.*;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Maintained index objects ("manifests") for rarely changing, but constantly listed, prefixes: each indexed prefix has
+ * a compact binary manifest of all the keys under it (stored under the IndexRoot, so not under the prefix itself), and
+ * the listings of a S3Persister w/ this index (getDirectories, getFiles, getAllFilesUnder, and iterateAllFilesUnder)
+ * within an indexed prefix are answered from its manifest, i.e. one (conditional, so usually a 304) GET, rather than
+ * paging thru listObjects.
+ * <p/>
+ * The persister's putFile (putTextFile), copyFile, deleteFile, and deleteDirectory update the manifest (a GET and a
+ * PUT); the PUT is conditional on the manifest's ETag (If-Match), so concurrent updates are not lost: a conflicting
+ * update is re-applied to the new manifest.  Bulk writers (S3PrefixCopier, S3DirectorySync) mark the manifest dirty
+ * instead.
+ * <p/>
+ * A missing, dirty (Verified 0), or unreadable manifest, or one not verified against a real listing for MaxAgeMillis, is
+ * rebuilt from a real listing (self repair), which also catches writes by others that don't use this index.  As the
+ * rebuild's store is conditional (on the version it replaces, or on there being none), a manifest is never dropped (or
+ * left missing by an update), but replaced w/ a dirty one: so a rebuild that was already listing (and may have missed
+ * the change) fails to store its manifest, and the next listing rebuilds again.
+ * <p/>
+ * The IndexRoot is reserved: a S3Persister w/ this index leaves it out of all its listings (indexed or not), so the
+ * manifests are neither listed as files (or the IndexRoot as a directory), nor deleted w/ a parent directory.
+ */
+public class S3PrefixIndex {
+    public static final String DEFAULT_INDEX_ROOT = "_s3index/";
+    public static final String MANIFEST_SUFFIX = ".s3index";
+    public static final long DEFAULT_MAX_AGE_MILLIS = 60L * 60 * 1000;
+    public static final int DEFAULT_MAX_UPDATE_ATTEMPTS = 5;
+
+    private static final int MAGIC = 0x53335049; // "S3PI"
+    private static final int VERSION = 2;
+    private static final long DIRTY = 0; // Verified, for a manifest to be rebuilt by the next listing
+    private static final String UNCONDITIONALLY = new String( "" ); // Identity sentinel (for store's ExpectedETag)
+
+    private final String mIndexRoot;
+    private final long mMaxAgeMillis;
+    private final int mMaxUpdateAttempts;
+    private final List<String> mPrefixes = new ArrayList<String>(); // Longest first
+    private final ConcurrentMap<String, Manifest> mManifests = new ConcurrentHashMap<String, Manifest>(); // by Manifest key
+
+    /**
+     * @param pPrefixes each a "directory" (ending w/ "/", which is added if missing), or "" for the whole bucket
+     */
+    public S3PrefixIndex( String pIndexRoot, long pMaxAgeMillis, int pMaxUpdateAttempts, String... pPrefixes ) {
+        mIndexRoot = directory( Confirm.significant( "IndexRoot", pIndexRoot ) );
+        mMaxAgeMillis = Math.max( 0, pMaxAgeMillis );
+        mMaxUpdateAttempts = Math.max( 1, pMaxUpdateAttempts );
+        for ( String zPrefix : pPrefixes ) {
+            mPrefixes.add( directory( zPrefix ) );
+        }
+        Collections.sort( mPrefixes, new Comparator<String>() {
+            @Override
+            public int compare( String pPrefix1, String pPrefix2 ) {
+                return pPrefix2.length() - pPrefix1.length();
+            }
+        } );
+    }
+
+    public S3PrefixIndex( String... pPrefixes ) {
+        this( DEFAULT_INDEX_ROOT, DEFAULT_MAX_AGE_MILLIS, DEFAULT_MAX_UPDATE_ATTEMPTS, pPrefixes );
+    }
+
+    public String getIndexRoot() {
+        return mIndexRoot;
+    }
+
+    public List<String> getPrefixes() {
+        return Collections.unmodifiableList( mPrefixes );
+    }
+
+    /**
+     * @return the (innermost) indexed prefix that pKeyPrefix is within, or null if none.
+     */
+    public String coveringPrefix( String pKeyPrefix ) {
+        if ( !pKeyPrefix.startsWith( mIndexRoot ) ) {
+            for ( String zPrefix : mPrefixes ) {
+                if ( pKeyPrefix.startsWith( zPrefix ) ) {
+                    return zPrefix;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the keys (in order) starting w/ pKeyPrefix, or null if pKeyPrefix is not within an indexed prefix.
+     */
+    public SortedSet<String> keys( S3Persister pPersister, String pKeyPrefix )
+            throws FileSystemException {
+        String zPrefix = coveringPrefix( pKeyPrefix );
+        if ( zPrefix == null ) {
+            return null;
+        }
+        String zManifestKey = manifestKey( zPrefix );
+        Manifest zManifest = load( pPersister, zManifestKey );
+        if ( (zManifest == null) || zManifest.isDirty() || ((System.currentTimeMillis() - zManifest.mVerified) > mMaxAgeMillis) ) {
+            zManifest = rebuild( pPersister, zPrefix, zManifestKey, zManifest );
+        }
+        return Collections.unmodifiableSortedSet( zManifest.mKeys.subSet( pKeyPrefix, pKeyPrefix + Character.MAX_VALUE ) );
+    }
+
+    /**
+     * Record that pPath now exists.
+     */
+    public void added( S3Persister pPersister, String pPath ) {
+        update( pPersister, pPath, true );
+    }
+
+    /**
+     * Record that pPath no longer exists.
+     */
+    public void removed( S3Persister pPersister, String pPath ) {
+        update( pPersister, pPath, false );
+    }
+
+    /**
+     * Record that nothing under pKeyPrefix exists.
+     */
+    public void removedUnder( S3Persister pPersister, String pKeyPrefix ) {
+        update( pPersister, pKeyPrefix, null );
+    }
+
+    /**
+     * Mark the manifests that cover any of the keys under pKeyPrefix dirty (so they are rebuilt by their next listing).
+     */
+    public void invalidateUnder( S3Persister pPersister, String pKeyPrefix ) {
+        for ( String zPrefix : mPrefixes ) {
+            if ( zPrefix.startsWith( pKeyPrefix ) || pKeyPrefix.startsWith( zPrefix ) ) {
+                try {
+                    markDirty( pPersister, manifestKey( zPrefix ) );
+                }
+                catch ( RuntimeException e ) {
+                    e.printStackTrace(); // Fall thru... (repaired once MaxAgeMillis old)
+                }
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "S3PrefixIndex(" + mIndexRoot + ": " + mPrefixes + ")";
+    }
+
+    protected String manifestKey( String pPrefix ) {
+        return mIndexRoot + pPrefix + MANIFEST_SUFFIX;
+    }
+
+    /**
+     * @param pExists true for added, false for removed, and null for everything under pPath removed
+     */
+    private void update( S3Persister pPersister, String pPath, Boolean pExists ) {
+        for ( String zPrefix : mPrefixes ) {
+            boolean zAffected = pPath.startsWith( zPrefix ) || ((pExists == null) && zPrefix.startsWith( pPath ));
+            if ( zAffected && !pPath.startsWith( mIndexRoot ) ) {
+                String zManifestKey = manifestKey( zPrefix );
+                try {
+                    update( pPersister, zManifestKey, pPath, pExists );
+                }
+                catch ( RuntimeException e ) {
+                    forget( pPersister, zManifestKey, e );
+                }
+            }
+        }
+    }
+
+    private void update( S3Persister pPersister, String pManifestKey, String pPath, Boolean pExists ) {
+        for ( int zAttempt = 1; zAttempt <= mMaxUpdateAttempts; zAttempt++ ) {
+            Manifest zManifest = load( pPersister, pManifestKey );
+            if ( zManifest == null ) {
+                // The next listing builds it, but a rebuild already listing may have missed this change; so create a dirty
+                // one, which fails that rebuild's create (so its listing isn't stored), and forces the next listing to rebuild
+                if ( store( pPersister, pManifestKey, new Manifest( new TreeSet<String>(), DIRTY, null ), null ) ) {
+                    return;
+                }
+                continue; // Lost the race to a create (e.g. that rebuild's) - so apply to theirs
+            }
+            TreeSet<String> zKeys = new TreeSet<String>( zManifest.mKeys );
+            if ( pExists == null ) {
+                zKeys.subSet( pPath, pPath + Character.MAX_VALUE ).clear();
+            } else if ( pExists ) {
+                zKeys.add( pPath );
+            } else {
+                zKeys.remove( pPath );
+            }
+            if ( zKeys.equals( zManifest.mKeys ) && !zManifest.isDirty() ) {
+                return; // A dirty one is still re-stored (changing its ETag), as a rebuild listing now may have seen pPath
+            }
+            if ( store( pPersister, pManifestKey, new Manifest( zKeys, zManifest.mVerified, null ), zManifest.mETag ) ) {
+                return;
+            }
+            // Lost the race to another update - so re-apply to theirs
+        }
+        markDirty( pPersister, pManifestKey ); // Too much contention: let the next listing rebuild it
+    }
+
+    private Manifest rebuild( S3Persister pPersister, String pPrefix, String pManifestKey, Manifest pStale ) {
+        long zVerified = System.currentTimeMillis();
+        TreeSet<String> zKeys = new TreeSet<String>();
+        for ( Iterator<String> zIt = pPersister.keyIterator( pPrefix ); zIt.hasNext(); ) {
+            String zKey = zIt.next();
+            if ( !zKey.startsWith( mIndexRoot ) ) {
+                zKeys.add( zKey );
+            }
+        }
+        Manifest zManifest = new Manifest( zKeys, zVerified, null );
+        try {
+            store( pPersister, pManifestKey, zManifest, (pStale != null) ? pStale.mETag : null ); // If it lost a race, theirs is as good
+        }
+        catch ( RuntimeException e ) {
+            e.printStackTrace(); // Fall thru... (the listing is still good)
+        }
+        return zManifest;
+    }
+
+    /**
+     * @return the current manifest (revalidated w/ a conditional GET if cached), or null if there is none (an unreadable
+     * one is replaced w/ a dirty one).
+     */
+    private Manifest load( final S3Persister pPersister, final String pManifestKey ) {
+        Manifest zCached = mManifests.get( pManifestKey );
+        final GetObjectRequest zRequest = new GetObjectRequest( pPersister.getBucketName(), pManifestKey );
+        if ( zCached != null ) {
+            zRequest.withNonmatchingETagConstraint( zCached.mETag );
+        }
+        final boolean[] zMissing = {false};
+        S3Object zObject = pPersister.execute( "getObject", pManifestKey, new S3Operation<S3Object>() {
+            @Override
+            public S3Object execute() {
+                try {
+                    return pPersister.mClient.getObject( zRequest );
+                }
+                catch ( AmazonServiceException e ) {
+                    if ( e.getStatusCode() == 404 ) {
+                        zMissing[0] = true;
+                        return null;
+                    }
+                    throw e;
+                }
+            }
+        } );
+        if ( zObject == null ) {
+            if ( zMissing[0] ) {
+                mManifests.remove( pManifestKey );
+                return null;
+            }
+            return zCached; // 304 - Not Modified
+        }
+        InputStream zContent = zObject.getObjectContent();
+        try {
+            Manifest zManifest = Manifest.read( zContent, zObject.getObjectMetadata().getETag() );
+            pPersister.countBytesIn( "getObject", zObject.getObjectMetadata().getContentLength() );
+            mManifests.put( pManifestKey, zManifest );
+            return zManifest;
+        }
+        catch ( IOException e ) {
+            markDirty( pPersister, pManifestKey ); // So it can be rebuilt (a conditional create would never replace it)
+            return mManifests.get( pManifestKey );
+        }
+        finally {
+            Closeables.dispose( zContent );
+        }
+    }
+
+    /**
+     * @param pExpectedETag null to only create the manifest (If-None-Match: *), UNCONDITIONALLY, otherwise to only
+     *                      replace that version (If-Match)
+     *
+     * @return false if the condition failed (412), i.e. another update got there first.
+     */
+    private boolean store( final S3Persister pPersister, final String pManifestKey, Manifest pManifest, String pExpectedETag ) {
+        final byte[] zBytes = pManifest.toBytes();
+        final ObjectMetadata zMetadata = new ObjectMetadata();
+        zMetadata.setContentType( "application/octet-stream" );
+        zMetadata.setContentLength( zBytes.length );
+        pPersister.noCache( zMetadata );
+        if ( pExpectedETag == null ) {
+            zMetadata.setHeader( "If-None-Match", "*" );
+        } else if ( pExpectedETag != UNCONDITIONALLY ) {
+            zMetadata.setHeader( "If-Match", "\"" + pExpectedETag + "\"" );
+        }
+        PutObjectResult zResult = pPersister.execute( "putObject", pManifestKey, new S3Operation<PutObjectResult>() {
+            @Override
+            public PutObjectResult execute() {
+                try {
+                    return pPersister.mClient.putObject( new PutObjectRequest( pPersister.getBucketName(), pManifestKey, //
+                                                                               new ByteArrayInputStream( zBytes ), zMetadata ) );
+                }
+                catch ( AmazonServiceException e ) {
+                    if ( (e.getStatusCode() == 412) || (e.getStatusCode() == 409) ) { // 409: a concurrent conditional write
+                        return null;
+                    }
+                    throw e;
+                }
+            }
+        } );
+        if ( zResult == null ) {
+            return false;
+        }
+        pPersister.countBytesOut( "putObject", zBytes.length );
+        mManifests.put( pManifestKey, new Manifest( pManifest.mKeys, pManifest.mVerified, zResult.getETag() ) );
+        return true;
+    }
+
+    /**
+     * Replace the manifest w/ a dirty one, which (unlike deleting it) also fails the store of a rebuild in progress.
+     */
+    private void markDirty( S3Persister pPersister, String pManifestKey ) {
+        mManifests.remove( pManifestKey );
+        store( pPersister, pManifestKey, new Manifest( new TreeSet<String>(), DIRTY, null ), UNCONDITIONALLY );
+    }
+
+    /**
+     * The write itself succeeded, so a failure to maintain the manifest is not the caller's: the manifest is marked dirty, or
+     * if that fails too, repaired (at the latest) once it is MaxAgeMillis old.
+     */
+    private void forget( S3Persister pPersister, String pManifestKey, RuntimeException pFailure ) {
+        try {
+            markDirty( pPersister, pManifestKey );
+        }
+        catch ( RuntimeException e ) {
+            pFailure.printStackTrace(); // Fall thru... (see above)
+        }
+    }
+
+    private static String directory( String pPrefix ) {
+        String zPrefix = (pPrefix == null) ? "" : pPrefix;
+        return ((zPrefix.length() == 0) || zPrefix.endsWith( "/" )) ? zPrefix : zPrefix + "/";
+    }
+
+    /**
+     * Binary form: MAGIC, VERSION, Verified (millis), Revision (random, so every store changes the ETag, even back to the
+     * same keys), Count, then each key (in order) front coded: the number of leading chars shared w/ the previous key, and
+     * the rest (as modified UTF-8).
+     */
+    private static class Manifest {
+        private static final Random REVISIONS = new Random();
+
+        private final TreeSet<String> mKeys;
+        private final long mVerified;
+        private final String mETag;
+
+        private Manifest( TreeSet<String> pKeys, long pVerified, String pETag ) {
+            mKeys = pKeys;
+            mVerified = pVerified;
+            mETag = pETag;
+        }
+
+        private boolean isDirty() {
+            return mVerified == DIRTY;
+        }
+
+        private byte[] toBytes() {
+            ByteArrayOutputStream zBytes = new ByteArrayOutputStream();
+            DataOutputStream zOut = new DataOutputStream( zBytes );
+            try {
+                zOut.writeInt( MAGIC );
+                zOut.writeByte( VERSION );
+                zOut.writeLong( mVerified );
+                zOut.writeLong( REVISIONS.nextLong() );
+                zOut.writeInt( mKeys.size() );
+                String zPrevious = "";
+                for ( String zKey : mKeys ) {
+                    int zShared = 0;
+                    for ( int zMax = Math.min( zPrevious.length(), zKey.length() ); (zShared < zMax) && //
+                                                                                   (zPrevious.charAt( zShared ) == zKey.charAt( zShared )); ) {
+                        zShared++;
+                    }
+                    zOut.writeShort( zShared ); // Keys are at most 1024 bytes
+                    zOut.writeUTF( zKey.substring( zShared ) );
+                    zPrevious = zKey;
+                }
+                zOut.flush();
+            }
+            catch ( IOException e ) {
+                throw new IllegalStateException( e ); // Not from a ByteArrayOutputStream
+            }
+            return zBytes.toByteArray();
+        }
+
+        private static Manifest read( InputStream pIn, String pETag )
+                throws IOException {
+            DataInputStream zIn = new DataInputStream( new BufferedInputStream( pIn ) );
+            if ( (zIn.readInt() != MAGIC) || (zIn.readByte() != VERSION) ) {
+                throw new IOException( "Not a (version " + VERSION + ") S3PrefixIndex Manifest" );
+            }
+            long zVerified = zIn.readLong();
+            zIn.readLong(); // Revision
+            TreeSet<String> zKeys = new TreeSet<String>();
+            String zPrevious = "";
+            for ( int zCount = zIn.readInt(); zCount > 0; zCount-- ) {
+                int zShared = zIn.readUnsignedShort();
+                if ( zShared > zPrevious.length() ) {
+                    throw new IOException( "Corrupt S3PrefixIndex Manifest" );
+                }
+                zKeys.add( zPrevious = zPrevious.substring( 0, zShared ) + zIn.readUTF() );
+            }
+            return new Manifest( zKeys, zVerified, pETag );
+        }
+    }
+}
@@ -0,0 +1,387 @@
+package org.litesoft.aws.s3;
+
+import org.litesoft.commonfoundation.exceptions.*;
+
+import com.amazonaws.*;
+import com.amazonaws.services.s3.model.*;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Downloads an S3 object as byte ranges fetched in parallel, either reassembled (in order) behind an InputStream or
+ * written directly (positionally) to a FileChannel.
+ * <p/>
+ * Read-ahead is limited to MaxBufferedRanges, so memory stays at (MaxBufferedRanges * RangeSize) per download.
+ * All ranges are constrained to the ETag seen when the download started, so a concurrent overwrite fails the download
+ * rather than mixing object versions.
+ */
+public class S3RangedDownloader {
+    public static final int DEFAULT_RANGE_SIZE = 8 * 1024 * 1024;
+    public static final int DEFAULT_MAX_BUFFERED_RANGES = 4;
+    public static final int DEFAULT_MAX_RANGE_ATTEMPTS = 3;
+    private static final String CONTENT_RANGE = "Content-Range";
+
+    private final int mRangeSize;
+    private final int mMaxBufferedRanges;
+    private final int mMaxRangeAttempts;
+    private final ExecutorService mExecutor;
+
+    public S3RangedDownloader( int pRangeSize, int pMaxBufferedRanges, int pMaxRangeAttempts, ExecutorService pExecutor ) {
+        mRangeSize = Math.max( 64 * 1024, pRangeSize );
+        mMaxBufferedRanges = Math.max( 1, pMaxBufferedRanges );
+        mMaxRangeAttempts = Math.max( 1, pMaxRangeAttempts );
+        mExecutor = (pExecutor != null) ? pExecutor : S3Executors.newFixedDaemonPool( "S3RangedDownloader", mMaxBufferedRanges );
+    }
+
+    public S3RangedDownloader( int pRangeSize, int pMaxBufferedRanges ) {
+        this( pRangeSize, pMaxBufferedRanges, DEFAULT_MAX_RANGE_ATTEMPTS, null );
+    }
+
+    public S3RangedDownloader() {
+        this( DEFAULT_RANGE_SIZE, DEFAULT_MAX_BUFFERED_RANGES );
+    }
+
+    /**
+     * @return a stream of pPath's content (objects that fit in the first range are simply streamed from its GET).
+     */
+    public InputStream open( S3Persister pPersister, String pPath ) {
+        S3Object zFirst = getFirstRange( pPersister, pPath );
+        ObjectMetadata zMetadata = zFirst.getObjectMetadata();
+        long zLength = getInstanceLength( zMetadata );
+        InputStream zContent = (zLength <= mRangeSize) ? //
+                               zFirst.getObjectContent() : //
+                               new RangedInputStream( pPersister, pPath, zFirst, zLength );
+        return pPersister.decode( pPath, zContent, zMetadata.getContentEncoding() );
+    }
+
+    /**
+     * Download pPath to pChannel (starting at position 0) with positional writes, so ranges are written as they arrive;
+     * pChannel is then truncated to the object's length.
+     *
+     * @return the number of bytes written.
+     */
+    public long download( S3Persister pPersister, String pPath, FileChannel pChannel )
+            throws IOException {
+        S3Object zFirst = getFirstRange( pPersister, pPath );
+        String zETag = zFirst.getObjectMetadata().getETag();
+        long zLength = getInstanceLength( zFirst.getObjectMetadata() );
+        Semaphore zInFlight = new Semaphore( mMaxBufferedRanges );
+        List<Future<?>> zRanges = new ArrayList<Future<?>>();
+        try {
+            for ( long zStart = 0; zStart < zLength; zStart += mRangeSize ) {
+                zInFlight.acquire();
+                zRanges.add( mExecutor.submit( new RangeToChannel( pPersister, pPath, zETag, (zStart == 0) ? zFirst : null, zStart, //
+                                                                   Math.min( zLength, zStart + mRangeSize ), pChannel, zInFlight ) ) );
+                checkForFailedRanges( zRanges );
+            }
+            for ( Future<?> zRange : zRanges ) {
+                zRange.get();
+            }
+        }
+        catch ( Exception e ) {
+            for ( Future<?> zRange : zRanges ) {
+                zRange.cancel( true );
+            }
+            throw unwrap( e );
+        }
+        finally {
+            if ( zRanges.isEmpty() ) {
+                zFirst.getObjectContent().close(); // Never handed to a RangeToChannel
+            }
+        }
+        pChannel.truncate( zLength );
+        return zLength;
+    }
+
+    private void checkForFailedRanges( List<Future<?>> pRanges )
+            throws ExecutionException, InterruptedException {
+        for ( Future<?> zRange : pRanges ) {
+            if ( zRange.isDone() ) {
+                zRange.get(); // Throws if the Range failed
+            }
+        }
+    }
+
+    /**
+     * GET the first range, as its Content-Range (or, if the Range was ignored, its Content-Length) gives the object's
+     * length w/o a separate HEAD.  An empty object has no first range (416), so is simply fetched.
+     */
+    private S3Object getFirstRange( final S3Persister pPersister, final String pPath ) {
+        S3Object zFirst = pPersister.execute( "getObjectRange", pPath, new S3Operation<S3Object>() {
+            @Override
+            public S3Object execute() {
+                GetObjectRequest zRequest = new GetObjectRequest( pPersister.getBucketName(), pPath );
+                zRequest.setRange( 0, mRangeSize - 1 ); // Inclusive
+                try {
+                    return pPersister.mClient.getObject( zRequest );
+                }
+                catch ( AmazonServiceException e ) {
+                    if ( e.getStatusCode() == 416 ) { // Range Not Satisfiable
+                        return pPersister.mClient.getObject( pPersister.getBucketName(), pPath );
+                    }
+                    throw e;
+                }
+            }
+        } );
+        pPersister.countBytesIn( "getObjectRange", zFirst.getObjectMetadata().getContentLength() );
+        return zFirst;
+    }
+
+    /**
+     * @return the total length from pMetadata's Content-Range ("bytes 0-999/12345"), or its Content-Length if it has none.
+     */
+    private static long getInstanceLength( ObjectMetadata pMetadata ) {
+        Object zContentRange = pMetadata.getRawMetadata().get( CONTENT_RANGE );
+        if ( zContentRange != null ) {
+            String zRange = zContentRange.toString();
+            int zAt = zRange.lastIndexOf( '/' );
+            if ( (zAt != -1) && !zRange.endsWith( "*" ) ) {
+                return Long.parseLong( zRange.substring( zAt + 1 ).trim() );
+            }
+        }
+        return pMetadata.getContentLength();
+    }
+
+    private static RuntimeException unwrap( Exception e ) {
+        Throwable zCause = (e instanceof ExecutionException) ? e.getCause() : e;
+        if ( zCause instanceof RuntimeException ) {
+            return (RuntimeException) zCause;
+        }
+        if ( zCause instanceof InterruptedException ) {
+            Thread.currentThread().interrupt();
+        }
+        return new FileSystemException( zCause );
+    }
+
+    /**
+     * @param pEnd exclusive
+     */
+    private byte[] fetchRange( final S3Persister pPersister, final String pPath, final String pETag, final long pStart, final long pEnd )
+            throws IOException {
+        try {
+            return pPersister.executeRaw( "getObjectRange", mMaxRangeAttempts, new S3Operation<byte[]>() {
+                @Override
+                public byte[] execute()
+                        throws IOException {
+                    return fetchRangeOnce( pPersister, pPath, pETag, pStart, pEnd );
+                }
+            } );
+        }
+        catch ( IOException e ) {
+            throw e;
+        }
+        catch ( Exception e ) {
+            throw unwrap( e );
+        }
+    }
+
+    private byte[] fetchRangeOnce( S3Persister pPersister, String pPath, String pETag, long pStart, long pEnd )
+            throws IOException {
+        GetObjectRequest zRequest = new GetObjectRequest( pPersister.getBucketName(), pPath ).withMatchingETagConstraint( pETag );
+        zRequest.setRange( pStart, pEnd - 1 ); // Inclusive
+        S3Object zObject = pPersister.mClient.getObject( zRequest );
+        if ( zObject == null ) {
+            throw new FileSystemException( pPersister.getBucketName() + ":" + pPath + " changed during download" );
+        }
+        byte[] zBytes = readRange( pPersister, pPath, zObject, pStart, pEnd );
+        pPersister.countBytesIn( "getObjectRange", zBytes.length );
+        return zBytes;
+    }
+
+    /**
+     * @return the bytes of the first range (already GOT, and counted), or if reading it fails, of a (re)fetch of it.
+     */
+    private byte[] readFirstRange( S3Persister pPersister, String pPath, String pETag, S3Object pFirst, long pEnd )
+            throws IOException {
+        try {
+            return readRange( pPersister, pPath, pFirst, 0, pEnd );
+        }
+        catch ( IOException e ) {
+            return fetchRange( pPersister, pPath, pETag, 0, pEnd );
+        }
+    }
+
+    private static byte[] readRange( S3Persister pPersister, String pPath, S3Object pObject, long pStart, long pEnd )
+            throws IOException {
+        byte[] zBytes = new byte[(int) (pEnd - pStart)];
+        InputStream zIn = pObject.getObjectContent();
+        try {
+            if ( zBytes.length != S3MultipartUploader.readPart( zIn, zBytes ) ) {
+                throw new EOFException( pPersister.getBucketName() + ":" + pPath + " range " + pStart + "-" + pEnd + " was short" );
+            }
+        }
+        finally {
+            zIn.close();
+        }
+        return zBytes;
+    }
+
+    private class RangeToChannel implements Callable<Void> {
+        private final S3Persister mPersister;
+        private final String mPath, mETag;
+        private final S3Object mFirst;
+        private final long mStart, mEnd;
+        private final FileChannel mChannel;
+        private final Semaphore mInFlight;
+
+        /**
+         * @param pFirst if not null, the (already GOT) first range
+         */
+        private RangeToChannel( S3Persister pPersister, String pPath, String pETag, S3Object pFirst, long pStart, long pEnd, //
+                                FileChannel pChannel, Semaphore pInFlight ) {
+            mPersister = pPersister;
+            mPath = pPath;
+            mETag = pETag;
+            mFirst = pFirst;
+            mStart = pStart;
+            mEnd = pEnd;
+            mChannel = pChannel;
+            mInFlight = pInFlight;
+        }
+
+        @Override
+        public Void call()
+                throws Exception {
+            try {
+                ByteBuffer zBuffer = ByteBuffer.wrap( (mFirst != null) ? //
+                                                      readFirstRange( mPersister, mPath, mETag, mFirst, mEnd ) : //
+                                                      fetchRange( mPersister, mPath, mETag, mStart, mEnd ) );
+                for ( long zPosition = mStart; zBuffer.hasRemaining(); ) {
+                    zPosition += mChannel.write( zBuffer, zPosition );
+                }
+                return null;
+            }
+            finally {
+                mInFlight.release();
+            }
+        }
+    }
+
+    private class RangedInputStream extends InputStream {
+        private final S3Persister mPersister;
+        private final String mPath, mETag;
+        private final long mLength;
+        private final LinkedList<Future<byte[]>> mAhead = new LinkedList<Future<byte[]>>();
+        private S3Object mFirst; // Until its range is taken
+        private long mNextStart;
+        private byte[] mCurrent = new byte[0];
+        private int mOffset;
+        private boolean mClosed;
+
+        private RangedInputStream( S3Persister pPersister, String pPath, final S3Object pFirst, long pLength ) {
+            mPersister = pPersister;
+            mPath = pPath;
+            mETag = pFirst.getObjectMetadata().getETag();
+            mLength = pLength;
+            mFirst = pFirst;
+            final long zEnd = mNextStart = Math.min( mLength, mRangeSize );
+            mAhead.add( mExecutor.submit( new Callable<byte[]>() {
+                @Override
+                public byte[] call()
+                        throws Exception {
+                    return readFirstRange( mPersister, mPath, mETag, pFirst, zEnd );
+                }
+            } ) );
+            while ( (mAhead.size() < mMaxBufferedRanges) && submitNext() ) {
+                // Prime the read-ahead
+            }
+        }
+
+        private boolean submitNext() {
+            if ( mNextStart >= mLength ) {
+                return false;
+            }
+            final long zStart = mNextStart;
+            final long zEnd = Math.min( mLength, zStart + mRangeSize );
+            mNextStart = zEnd;
+            mAhead.add( mExecutor.submit( new Callable<byte[]>() {
+                @Override
+                public byte[] call()
+                        throws Exception {
+                    return fetchRange( mPersister, mPath, mETag, zStart, zEnd );
+                }
+            } ) );
+            return true;
+        }
+
+        /**
+         * @return false at end of stream
+         */
+        private boolean ensureAvailable()
+                throws IOException {
+            if ( mClosed ) {
+                throw new IOException( "Closed" );
+            }
+            while ( mOffset >= mCurrent.length ) {
+                if ( mAhead.isEmpty() ) {
+                    return false;
+                }
+                try {
+                    mCurrent = mAhead.removeFirst().get();
+                    mFirst = null;
+                }
+                catch ( InterruptedException e ) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException( mPath );
+                }
+                catch ( ExecutionException e ) {
+                    throw (e.getCause() instanceof IOException) ? (IOException) e.getCause() : new IOException( mPath, e.getCause() );
+                }
+                mOffset = 0;
+                submitNext();
+            }
+            return true;
+        }
+
+        @Override
+        public int read()
+                throws IOException {
+            return ensureAvailable() ? (mCurrent[mOffset++] & 0xFF) : -1;
+        }
+
+        @Override
+        public int read( byte[] pBuffer, int pOffset, int pLength )
+                throws IOException {
+            if ( pLength == 0 ) {
+                return 0;
+            }
+            if ( !ensureAvailable() ) {
+                return -1;
+            }
+            int zLength = Math.min( pLength, mCurrent.length - mOffset );
+            System.arraycopy( mCurrent, mOffset, pBuffer, pOffset, zLength );
+            mOffset += zLength;
+            return zLength;
+        }
+
+        @Override
+        public int available() {
+            return mCurrent.length - mOffset;
+        }
+
+        @Override
+        public void close() {
+            if ( !mClosed ) {
+                mClosed = true;
+                mCurrent = new byte[0];
+                for ( Future<byte[]> zRange : mAhead ) {
+                    zRange.cancel( true );
+                }
+                mAhead.clear();
+                if ( mFirst != null ) { // Its read may never have started, so don't leave its connection open
+                    try {
+                        mFirst.getObjectContent().abort();
+                    }
+                    catch ( IOException e ) {
+                        // Whatever
+                    }
+                    mFirst = null;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package org.litesoft.aws.s3;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Token bucket request rate limiter (opt in, and optionally shared per bucket, see forBucket) that adapts to S3's back
+ * pressure: each SlowDown (503 / throttling) response halves the rate, and each success adds back a little (AIMD), up
+ * to the MaxRate.
+ * <p/>
+ * A request that finds no token reserves a future one and sleeps until it is due (no spinning, no lock held).
+ */
+public class S3RateLimiter {
+    public static final double DEFAULT_MAX_RATE = 3500; // S3's documented per prefix PUT/COPY/POST/DELETE rate
+    public static final double MIN_RATE = 1;
+
+    private static final Map<String, S3RateLimiter> BY_BUCKET = new HashMap<String, S3RateLimiter>();
+
+    private final double mMaxRate;
+    private final double mAdditiveIncrease;
+    private double mRate; // Requests per Second
+    private double mTokens;
+    private long mLastRefill = System.nanoTime();
+    private long mSlowDowns;
+
+    public S3RateLimiter( double pMaxRate ) {
+        mRate = mMaxRate = Math.max( MIN_RATE, pMaxRate );
+        mAdditiveIncrease = Math.max( 0.01, mMaxRate / 10000 );
+        mTokens = mRate;
+    }
+
+    /**
+     * @return the (shared by all users of pBucketName) limiter for the bucket.
+     */
+    public static S3RateLimiter forBucket( String pBucketName ) {
+        synchronized ( BY_BUCKET ) {
+            S3RateLimiter zLimiter = BY_BUCKET.get( pBucketName );
+            if ( zLimiter == null ) {
+                BY_BUCKET.put( pBucketName, zLimiter = new S3RateLimiter( DEFAULT_MAX_RATE ) );
+            }
+            return zLimiter;
+        }
+    }
+
+    public synchronized double getRate() {
+        return mRate;
+    }
+
+    public synchronized long getSlowDowns() {
+        return mSlowDowns;
+    }
+
+    public void acquire()
+            throws InterruptedException {
+        long zWaitNanos;
+        synchronized ( this ) {
+            refill();
+            zWaitNanos = (--mTokens >= 0) ? 0 : (long) (-mTokens / mRate * 1e9);
+        }
+        if ( zWaitNanos > 0 ) {
+            TimeUnit.NANOSECONDS.sleep( zWaitNanos );
+        }
+    }
+
+    public synchronized void onSuccess() {
+        if ( mRate < mMaxRate ) {
+            refill();
+            mRate = Math.min( mMaxRate, mRate + mAdditiveIncrease );
+        }
+    }
+
+    public synchronized void onSlowDown() {
+        refill();
+        mSlowDowns++;
+        mRate = Math.max( MIN_RATE, mRate / 2 );
+        mTokens = Math.min( mTokens, 0 ); // Drop the burst
+    }
+
+    private void refill() {
+        long zNow = System.nanoTime();
+        mTokens = Math.min( mRate, mTokens + ((zNow - mLastRefill) / 1e9) * mRate ); // Bucket holds (at most) a second's worth
+        mLastRefill = zNow;
+    }
+}
@@ -0,0 +1,151 @@
+package org.litesoft.aws.s3;
+
+import org.litesoft.commonfoundation.exceptions.*;
+import org.litesoft.server.file.*;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * The region table (see Regions.txt): fixed width columns of Code, AZs, Official Name, and (comma separated) Alt
+ * References, w/ the header line giving the column positions.
+ * <p/>
+ * A region is found by its Code, Official Name, or any Alt Reference (ignoring case).
+ */
+public class S3Regions {
+    public static final String FILE_NAME = "Regions.txt";
+
+    private final List<Region> mRegions;
+    private final Map<String, Region> mByReference = new HashMap<String, Region>();
+
+    public S3Regions( List<Region> pRegions ) {
+        mRegions = Collections.unmodifiableList( new ArrayList<Region>( pRegions ) );
+        for ( Region zRegion : mRegions ) {
+            mByReference.put( zRegion.getCode().toLowerCase(), zRegion );
+            mByReference.put( zRegion.getOfficialName().toLowerCase(), zRegion );
+            for ( String zAltReference : zRegion.getAltReferences() ) {
+                mByReference.put( zAltReference.toLowerCase(), zRegion );
+            }
+        }
+    }
+
+    /**
+     * @return the Regions.txt found in the current working directory or its ancestors.
+     */
+    public static S3Regions findAncestral( String... pFilePrefixes )
+            throws FileSystemException {
+        File zFile = DirectoryUtils.findAncestralFile( new File( FileUtils.currentWorkingDirectory() ), FILE_NAME, pFilePrefixes );
+        if ( zFile == null ) {
+            throw new FileSystemException( "Unable to find: " + FILE_NAME );
+        }
+        return load( zFile );
+    }
+
+    public static S3Regions load( File pFile )
+            throws FileSystemException {
+        try {
+            Reader zReader = new InputStreamReader( new FileInputStream( pFile ), "UTF-8" );
+            try {
+                return parse( zReader );
+            }
+            finally {
+                zReader.close();
+            }
+        }
+        catch ( IOException e ) {
+            throw new FileSystemException( pFile.getPath(), e );
+        }
+    }
+
+    public static S3Regions parse( Reader pReader )
+            throws IOException {
+        BufferedReader zReader = new BufferedReader( pReader );
+        String zHeader = zReader.readLine();
+        int zAZsAt, zNameAt, zAltAt;
+        if ( (zHeader == null) || ((zAZsAt = zHeader.indexOf( "AZs" )) == -1) || //
+             ((zNameAt = zHeader.indexOf( "Official Name" )) == -1) || ((zAltAt = zHeader.indexOf( "Alt References" )) == -1) ) {
+            throw new IOException( "Not a Region Table, header: " + zHeader );
+        }
+        List<Region> zRegions = new ArrayList<Region>();
+        for ( String zLine; null != (zLine = zReader.readLine()); ) {
+            if ( zLine.trim().length() != 0 ) {
+                zRegions.add( new Region( column( zLine, 0, zAZsAt ), //
+                                          Integer.parseInt( column( zLine, zAZsAt, zNameAt ) ), //
+                                          column( zLine, zNameAt, zAltAt ), //
+                                          column( zLine, zAltAt, zLine.length() ).split( "\\s*,\\s*" ) ) );
+            }
+        }
+        return new S3Regions( zRegions );
+    }
+
+    public List<Region> getRegions() {
+        return mRegions;
+    }
+
+    /**
+     * @return null if not found
+     */
+    public Region find( String pReference ) {
+        return (pReference == null) ? null : mByReference.get( pReference.trim().toLowerCase() );
+    }
+
+    public Region get( String pReference )
+            throws FileSystemException {
+        Region zRegion = find( pReference );
+        if ( zRegion == null ) {
+            throw new FileSystemException( "Unknown Region: " + pReference );
+        }
+        return zRegion;
+    }
+
+    private static String column( String pLine, int pFrom, int pTo ) {
+        return (pFrom >= pLine.length()) ? "" : pLine.substring( pFrom, Math.min( pTo, pLine.length() ) ).trim();
+    }
+
+    public static class Region {
+        private final String mCode, mOfficialName;
+        private final int mAZs;
+        private final List<String> mAltReferences;
+
+        public Region( String pCode, int pAZs, String pOfficialName, String... pAltReferences ) {
+            mCode = pCode;
+            mAZs = pAZs;
+            mOfficialName = pOfficialName;
+            List<String> zAltReferences = new ArrayList<String>();
+            for ( String zAltReference : pAltReferences ) {
+                if ( zAltReference.trim().length() != 0 ) {
+                    zAltReferences.add( zAltReference.trim() );
+                }
+            }
+            mAltReferences = Collections.unmodifiableList( zAltReferences );
+        }
+
+        public String getCode() {
+            return mCode;
+        }
+
+        public int getAZs() {
+            return mAZs;
+        }
+
+        public String getOfficialName() {
+            return mOfficialName;
+        }
+
+        public List<String> getAltReferences() {
+            return mAltReferences;
+        }
+
+        /**
+         * See: http://docs.aws.amazon.com/general/latest/gr/rande.html#s3_region
+         */
+        public String getS3Endpoint() {
+            return "us-east-1".equals( mCode ) ? "s3.amazonaws.com" : "s3." + mCode + ".amazonaws.com";
+        }
+
+        @Override
+        public String toString() {
+            return mCode + " (" + mOfficialName + ")";
+        }
+    }
+}
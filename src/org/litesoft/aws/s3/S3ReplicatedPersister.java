@@ -0,0 +1,789 @@
+package org.litesoft.aws.s3;
+
+import org.litesoft.aws.credentials.*;
+import org.litesoft.commonfoundation.base.*;
+import org.litesoft.commonfoundation.exceptions.*;
+import org.litesoft.server.util.*;
+
+import com.amazonaws.services.s3.model.*;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * A Persister over replicas (S3Persisters) of the same content, normally buckets in different regions (see forRegions).
+ * <p/>
+ * Writes go to every replica in parallel, and return once WriteQuorum of them have succeeded; the rest complete in the
+ * background (their failures are counted as LateWriteFailures).  A write fails once the quorum can no longer be met.
+ * <p/>
+ * A replica that misses a write (whether before or after the quorum) keeps a hint of the path, and is repaired in the
+ * background (retried w/ a backoff while it stays down): the path is copied from a replica that did not miss a write to
+ * it (or deleted, if that replica does not have it), and for a missed deleteDirectory, the files under it that the
+ * other replica does not have are deleted.  A newer write to a hinted path (that succeeds) replaces the hint, and
+ * writes to a path wait while it is being repaired (so a repair never overwrites a newer write).
+ * <p/>
+ * Reads go to the replica w/ the lowest (smoothed) measured latency.  If it fails, or has not answered within the hedge
+ * delay (a multiple of its latency, but at least the MinHedgeMillis), the next replica is also asked, and the first
+ * answer wins.  A missing file (a failed getFile, or a false fileExists or isReadable) is therefore only reported once
+ * every replica has said so (or failed), which also covers replication lag.  Every so often the runner up is asked
+ * first, to keep its latency current; replicas w/ missed writes (until repaired), and then those whose last request
+ * failed (until a read or write to them succeeds), are asked last.
+ */
+public class S3ReplicatedPersister extends Persister {
+    public static final String REGION_PLACEHOLDER = "{region}";
+    public static final long DEFAULT_MIN_HEDGE_MILLIS = 100;
+    public static final int HEDGE_LATENCY_MULTIPLE = 3;
+    public static final int EXPLORE_EVERY = 32;
+    public static final long MIN_REPAIR_DELAY_MILLIS = 1000;
+    public static final long MAX_REPAIR_DELAY_MILLIS = 5 * 60 * 1000;
+
+    private static Timer sRepairScheduler;
+
+    private final List<Replica> mReplicas = new ArrayList<Replica>();
+    private final int mWriteQuorum;
+    private final long mMinHedgeNanos;
+    private final ExecutorService mExecutor;
+    private final AtomicLong mReads = new AtomicLong();
+    private final AtomicLong mLateWriteFailures = new AtomicLong();
+    private final AtomicLong mRepairs = new AtomicLong();
+    private final AtomicLong mWriteSequence = new AtomicLong();
+
+    /**
+     * @param pWriteQuorum clamped to 1 thru the number of replicas
+     * @param pExecutor    null for a daemon pool w/ 4 threads per replica
+     */
+    public S3ReplicatedPersister( List<S3Persister> pReplicas, int pWriteQuorum, long pMinHedgeMillis, ExecutorService pExecutor ) {
+        for ( S3Persister zPersister : Confirm.isNotNull( "Replicas", pReplicas ) ) {
+            mReplicas.add( new Replica( Confirm.isNotNull( "Replica", zPersister ) ) );
+        }
+        if ( mReplicas.isEmpty() ) {
+            throw new IllegalArgumentException( "No Replicas" );
+        }
+        mWriteQuorum = Math.max( 1, Math.min( mReplicas.size(), pWriteQuorum ) );
+        mMinHedgeNanos = TimeUnit.MILLISECONDS.toNanos( Math.max( 0, pMinHedgeMillis ) );
+        mExecutor = (pExecutor != null) ? pExecutor : S3Executors.newFixedDaemonPool( "S3ReplicatedPersister", 4 * mReplicas.size() );
+    }
+
+    public S3ReplicatedPersister( List<S3Persister> pReplicas, int pWriteQuorum ) {
+        this( pReplicas, pWriteQuorum, DEFAULT_MIN_HEDGE_MILLIS, null );
+    }
+
+    /**
+     * W/ a (simple) majority WriteQuorum.
+     */
+    public S3ReplicatedPersister( List<S3Persister> pReplicas ) {
+        this( pReplicas, (pReplicas.size() / 2) + 1 );
+    }
+
+    /**
+     * @param pBucketNameTemplate w/ REGION_PLACEHOLDER replaced by each region's Code (as bucket names are global)
+     * @param pRegionReferences   each a Code, Official Name, or Alt Reference in pRegions
+     */
+    public static S3ReplicatedPersister forRegions( CachedAWSCredentials pCredentials, S3Regions pRegions, String pBucketNameTemplate,
+                                                    int pWriteQuorum, String... pRegionReferences )
+            throws IOException {
+        List<S3Persister> zReplicas = new ArrayList<S3Persister>();
+        for ( String zReference : pRegionReferences ) {
+            S3Regions.Region zRegion = pRegions.get( zReference );
+            String zBucketName = pBucketNameTemplate.replace( REGION_PLACEHOLDER, zRegion.getCode() );
+            zReplicas.add( new S3Persister( pCredentials, new Bucket( zRegion.getS3Endpoint(), zBucketName ) ) );
+        }
+        return new S3ReplicatedPersister( zReplicas, pWriteQuorum );
+    }
+
+    public List<S3Persister> getReplicas() {
+        List<S3Persister> zPersisters = new ArrayList<S3Persister>( mReplicas.size() );
+        for ( Replica zReplica : mReplicas ) {
+            zPersisters.add( zReplica.mPersister );
+        }
+        return zPersisters;
+    }
+
+    /**
+     * @return the replicas in the order reads would (currently) be tried.
+     */
+    public List<S3Persister> getReplicasByLatency() {
+        List<S3Persister> zPersisters = new ArrayList<S3Persister>( mReplicas.size() );
+        for ( Replica zReplica : byLatency() ) {
+            zPersisters.add( zReplica.mPersister );
+        }
+        return zPersisters;
+    }
+
+    public int getWriteQuorum() {
+        return mWriteQuorum;
+    }
+
+    /**
+     * @return the number of replica writes that failed after their write had already met its quorum.
+     */
+    public long getLateWriteFailures() {
+        return mLateWriteFailures.get();
+    }
+
+    /**
+     * @return the paths (w/ a trailing "/" for directories) across all the replicas that missed writes and are not yet
+     * repaired.
+     */
+    public int getPendingRepairs() {
+        int zPending = 0;
+        for ( Replica zReplica : mReplicas ) {
+            zPending += zReplica.getMissedWrites();
+        }
+        return zPending;
+    }
+
+    /**
+     * @return the number of (hinted) paths repaired.
+     */
+    public long getRepairs() {
+        return mRepairs.get();
+    }
+
+    public void dispose() {
+        for ( Replica zReplica : mReplicas ) {
+            zReplica.mPersister.dispose();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "Replicated" + getReplicas();
+    }
+
+    @Override
+    public boolean fileExists( final String pPath )
+            throws FileSystemException {
+        return read( new ReadOperation<Boolean>() {
+            @Override
+            public Boolean read( S3Persister pReplica ) {
+                return pReplica.fileExists( pPath );
+            }
+
+            @Override
+            protected boolean isMissing( Boolean pResult ) {
+                return !pResult;
+            }
+        } );
+    }
+
+    @Override
+    public String[] getTextFile( final String pPath )
+            throws FileSystemException {
+        return read( new ReadOperation<String[]>() {
+            @Override
+            public String[] read( S3Persister pReplica ) {
+                return pReplica.getTextFile( pPath );
+            }
+        } );
+    }
+
+    @Override
+    public InputStream getFile( final String pPath )
+            throws FileSystemException {
+        return read( new ReadOperation<InputStream>() {
+            @Override
+            public InputStream read( S3Persister pReplica ) {
+                return pReplica.getFile( pPath );
+            }
+        } );
+    }
+
+    @Override
+    public String[] getDirectories( final String pDirectoryNamePrefix )
+            throws FileSystemException {
+        return read( new ReadOperation<String[]>() {
+            @Override
+            public String[] read( S3Persister pReplica ) {
+                return pReplica.getDirectories( pDirectoryNamePrefix );
+            }
+        } );
+    }
+
+    @Override
+    public String[] getFiles( final String pFilesSubDirectory, final String pFileNamePrefix, final String pFileExtension )
+            throws FileSystemException {
+        return read( new ReadOperation<String[]>() {
+            @Override
+            public String[] read( S3Persister pReplica ) {
+                return pReplica.getFiles( pFilesSubDirectory, pFileNamePrefix, pFileExtension );
+            }
+        } );
+    }
+
+    @Override
+    public String[] getAllFilesUnder( final String pFilesSubDirectory )
+            throws FileSystemException {
+        return read( new ReadOperation<String[]>() {
+            @Override
+            public String[] read( S3Persister pReplica ) {
+                return pReplica.getAllFilesUnder( pFilesSubDirectory );
+            }
+        } );
+    }
+
+    @Override
+    public boolean isReadable( final String pPath )
+            throws FileSystemException {
+        return read( new ReadOperation<Boolean>() {
+            @Override
+            public Boolean read( S3Persister pReplica ) {
+                return pReplica.isReadable( pPath );
+            }
+
+            @Override
+            protected boolean isMissing( Boolean pResult ) {
+                return !pResult;
+            }
+        } );
+    }
+
+    @Override
+    public void putTextFile( final String pPath, final String[] pLines )
+            throws FileSystemException {
+        write( pPath, new WriteOperation() {
+            @Override
+            public void write( S3Persister pReplica ) {
+                pReplica.putTextFile( pPath, pLines );
+            }
+        }, null );
+    }
+
+    /**
+     * pFileContents is spooled to a temporary file (rather than memory), from which each replica is uploaded.
+     */
+    @Override
+    public void putFile( final String pPath, InputStream pFileContents )
+            throws FileSystemException {
+        final File zFile;
+        try {
+            zFile = S3Spooler.spool( "S3ReplicatedPersister", pFileContents );
+        }
+        catch ( IOException e ) {
+            throw new FileSystemException( pPath, e );
+        }
+        finally {
+            Closeables.dispose( pFileContents );
+        }
+        write( pPath, new WriteOperation() {
+            @Override
+            public void write( S3Persister pReplica ) {
+                try {
+                    pReplica.putFile( pPath, new FileInputStream( zFile ), zFile.length() );
+                }
+                catch ( FileNotFoundException e ) {
+                    throw new FileSystemException( pPath, e );
+                }
+            }
+        }, new Runnable() {
+            @Override
+            public void run() {
+                zFile.delete();
+            }
+        } );
+    }
+
+    @Override
+    public void copyFile( final String pSourcePath, final String pDestinationPath )
+            throws FileSystemException {
+        write( pDestinationPath, new WriteOperation() {
+            @Override
+            public void write( S3Persister pReplica ) {
+                pReplica.copyFile( pSourcePath, pDestinationPath );
+            }
+        }, null );
+    }
+
+    /**
+     * When pSourcePersister is also replicated, each replica copies from the source replica in its region (if any), so
+     * the copies stay server side.
+     */
+    @Override
+    public void copyFile( final Persister pSourcePersister, final String pSourcePath, final String pDestinationPath )
+            throws FileSystemException {
+        write( pDestinationPath, new WriteOperation() {
+            @Override
+            public void write( S3Persister pReplica ) {
+                pReplica.copyFile( sourceFor( pSourcePersister, pReplica ), pSourcePath, pDestinationPath );
+            }
+        }, null );
+    }
+
+    @Override
+    public void deleteDirectory( final String pPath )
+            throws FileSystemException {
+        write( directoryKey( pPath ), new WriteOperation() {
+            @Override
+            public void write( S3Persister pReplica ) {
+                pReplica.deleteDirectory( pPath );
+            }
+        }, null );
+    }
+
+    @Override
+    public void deleteFile( final String pPath )
+            throws FileSystemException {
+        write( pPath, new WriteOperation() {
+            @Override
+            public void write( S3Persister pReplica ) {
+                pReplica.deleteFile( pPath );
+            }
+        }, null );
+    }
+
+    private abstract static class ReadOperation<T> {
+        public abstract T read( S3Persister pReplica );
+
+        /**
+         * @return true if pResult is a "not found" answer (which another replica, e.g. lagging less, might not give).
+         */
+        protected boolean isMissing( T pResult ) {
+            return false;
+        }
+    }
+
+    private interface WriteOperation {
+        void write( S3Persister pReplica );
+    }
+
+    private <T> T read( ReadOperation<T> pOperation )
+            throws FileSystemException {
+        List<Replica> zOrder = byLatency();
+        if ( ((mReads.incrementAndGet() % EXPLORE_EVERY) == 0) && (zOrder.size() > 1) ) {
+            Collections.swap( zOrder, 0, 1 );
+        }
+        AtomicBoolean zAnswered = new AtomicBoolean();
+        BlockingQueue<Outcome<T>> zOutcomes = new LinkedBlockingQueue<Outcome<T>>();
+        RuntimeException zFirstFailure = null;
+        Outcome<T> zMissing = null;
+        int zStarted = 0, zInFlight = 0;
+        try {
+            start( zOrder.get( zStarted++ ), pOperation, zAnswered, zOutcomes );
+            zInFlight++;
+            while ( true ) {
+                Outcome<T> zOutcome;
+                if ( zStarted < zOrder.size() ) {
+                    if ( null == (zOutcome = zOutcomes.poll( hedgeNanos( zOrder.get( zStarted - 1 ) ), TimeUnit.NANOSECONDS )) ) {
+                        start( zOrder.get( zStarted++ ), pOperation, zAnswered, zOutcomes ); // Slow, so hedge
+                        zInFlight++;
+                        continue;
+                    }
+                } else {
+                    zOutcome = zOutcomes.take();
+                }
+                if ( (zOutcome.mFailure == null) && !zOutcome.mMissing ) {
+                    return zOutcome.mResult;
+                }
+                zInFlight--;
+                if ( zOutcome.mMissing ) {
+                    zMissing = zOutcome;
+                } else {
+                    zFirstFailure = (zFirstFailure != null) ? zFirstFailure : zOutcome.mFailure;
+                }
+                if ( zStarted < zOrder.size() ) {
+                    start( zOrder.get( zStarted++ ), pOperation, zAnswered, zOutcomes ); // Fail over
+                    zInFlight++;
+                } else if ( zInFlight == 0 ) {
+                    if ( zMissing != null ) {
+                        return zMissing.mResult; // Every replica that answered said so
+                    }
+                    throw zFirstFailure;
+                }
+            }
+        }
+        catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new FileSystemException( e );
+        }
+    }
+
+    private <T> void start( final Replica pReplica, final ReadOperation<T> pOperation, final AtomicBoolean pAnswered,
+                            final BlockingQueue<Outcome<T>> pOutcomes ) {
+        mExecutor.execute( new Runnable() {
+            @Override
+            public void run() {
+                long zStarted = System.nanoTime();
+                try {
+                    T zResult = pOperation.read( pReplica.mPersister );
+                    pReplica.recordSuccess( System.nanoTime() - zStarted );
+                    if ( pOperation.isMissing( zResult ) ) {
+                        pOutcomes.add( new Outcome<T>( zResult, null, true ) );
+                    } else if ( pAnswered.compareAndSet( false, true ) ) {
+                        pOutcomes.add( new Outcome<T>( zResult, null ) );
+                    } else if ( zResult instanceof Closeable ) { // Lost the race
+                        Closeables.dispose( (Closeable) zResult );
+                    }
+                }
+                catch ( RuntimeException e ) {
+                    pReplica.recordFailure();
+                    pOutcomes.add( new Outcome<T>( null, e ) );
+                }
+            }
+        } );
+    }
+
+    /**
+     * @param pKey         the path written, or (see directoryKey) the directory
+     * @param pWhenAllDone nullable - run once every replica has finished (after the quorum, the caller has returned)
+     */
+    private void write( final String pKey, final WriteOperation pOperation, final Runnable pWhenAllDone )
+            throws FileSystemException {
+        final long zSequence = mWriteSequence.incrementAndGet();
+        final AtomicBoolean zReturned = new AtomicBoolean();
+        final AtomicInteger zPending = new AtomicInteger( mReplicas.size() );
+        final BlockingQueue<Outcome<Void>> zOutcomes = new LinkedBlockingQueue<Outcome<Void>>();
+        for ( final Replica zReplica : mReplicas ) {
+            mExecutor.execute( new Runnable() {
+                @Override
+                public void run() {
+                    boolean zBegun = false, zWrote = false;
+                    try {
+                        zReplica.beginWrite( pKey );
+                        zBegun = true;
+                        pOperation.write( zReplica.mPersister );
+                        zWrote = true;
+                        zReplica.mConsecutiveFailures.set( 0 ); // e.g. back up
+                        zOutcomes.add( new Outcome<Void>( null, null ) );
+                    }
+                    catch ( RuntimeException e ) {
+                        zReplica.recordFailure();
+                        if ( zReturned.get() ) {
+                            mLateWriteFailures.incrementAndGet();
+                        }
+                        zOutcomes.add( new Outcome<Void>( null, e ) );
+                    }
+                    finally {
+                        if ( zReplica.endWrite( pKey, zSequence, zBegun, zWrote ) ) {
+                            scheduleRepair( zReplica, MIN_REPAIR_DELAY_MILLIS );
+                        }
+                        if ( (zPending.decrementAndGet() == 0) && (pWhenAllDone != null) ) {
+                            pWhenAllDone.run();
+                        }
+                    }
+                }
+            } );
+        }
+        int zSucceeded = 0, zFailed = 0;
+        RuntimeException zFirstFailure = null;
+        try {
+            while ( zSucceeded < mWriteQuorum ) {
+                Outcome<Void> zOutcome = zOutcomes.take();
+                if ( zOutcome.mFailure == null ) {
+                    zSucceeded++;
+                } else {
+                    zFirstFailure = (zFirstFailure != null) ? zFirstFailure : zOutcome.mFailure;
+                    if ( (mReplicas.size() - ++zFailed) < mWriteQuorum ) {
+                        throw new FileSystemException( "Write Quorum (" + mWriteQuorum + " of " + mReplicas.size() + ") not met for: " + pKey,
+                                                       zFirstFailure );
+                    }
+                }
+            }
+        }
+        catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new FileSystemException( e );
+        }
+        finally {
+            zReturned.set( true );
+        }
+    }
+
+    /**
+     * Schedule a repair pass of pReplica (unless one is already scheduled or running).
+     */
+    private void scheduleRepair( final Replica pReplica, long pDelayMillis ) {
+        if ( pReplica.mRepairScheduled.compareAndSet( false, true ) ) {
+            repairScheduler().schedule( new TimerTask() {
+                @Override
+                public void run() {
+                    try {
+                        mExecutor.execute( new Runnable() {
+                            @Override
+                            public void run() {
+                                repair( pReplica );
+                            }
+                        } );
+                    }
+                    catch ( RuntimeException e ) { // e.g. the executor was shut down
+                        pReplica.mRepairScheduled.set( false );
+                    }
+                }
+            }, pDelayMillis );
+        }
+    }
+
+    /**
+     * Repair each of pReplica's missed writes (skipping those being written again, as the write resolves them); on a
+     * failure, the pass is retried after (an increasing) delay.
+     */
+    private void repair( Replica pReplica ) {
+        long zRetryDelay = 0;
+        try {
+            for ( String zKey : pReplica.getMissedKeys() ) {
+                if ( pReplica.beginRepair( zKey ) ) {
+                    boolean zRepaired = false;
+                    try {
+                        zRepaired = repair( pReplica, zKey );
+                    }
+                    finally {
+                        pReplica.endRepair( zKey, zRepaired );
+                    }
+                    if ( !zRepaired ) {
+                        zRetryDelay = pReplica.nextRepairDelay(); // No replica to repair from (yet)
+                        break;
+                    }
+                    mRepairs.incrementAndGet();
+                }
+            }
+        }
+        catch ( RuntimeException e ) {
+            pReplica.recordFailure();
+            zRetryDelay = pReplica.nextRepairDelay(); // Probably still down
+        }
+        pReplica.mRepairScheduled.set( false );
+        if ( zRetryDelay != 0 ) {
+            scheduleRepair( pReplica, zRetryDelay );
+        } else {
+            pReplica.mRepairDelayMillis.set( 0 );
+            if ( pReplica.getMissedWrites() != 0 ) { // e.g. skipped as being written, or newly missed
+                scheduleRepair( pReplica, MIN_REPAIR_DELAY_MILLIS );
+            }
+        }
+    }
+
+    /**
+     * @return false if no other replica is known to be current for pKey.
+     */
+    private boolean repair( Replica pReplica, String pKey ) {
+        for ( Replica zSource : byLatency() ) {
+            if ( (zSource != pReplica) && !zSource.isMissing( pKey ) ) {
+                S3Persister zTarget = pReplica.mPersister, zCurrent = zSource.mPersister;
+                if ( pKey.endsWith( "/" ) ) {
+                    Set<String> zExtra = new HashSet<String>( Arrays.asList( zTarget.getAllFilesUnder( pKey ) ) );
+                    zExtra.removeAll( Arrays.asList( zCurrent.getAllFilesUnder( pKey ) ) );
+                    for ( String zPath : zExtra ) {
+                        zTarget.deleteFile( zPath );
+                    }
+                } else if ( zCurrent.fileExists( pKey ) ) {
+                    copyStored( zCurrent, zTarget, pKey );
+                } else {
+                    zTarget.deleteFile( pKey );
+                }
+                pReplica.mConsecutiveFailures.set( 0 );
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Copy pPath's stored bytes (not decoded, so w/ its stored length) and user metadata (e.g. the RAW_MD5_METADATA); not
+     * an S3 object copy, as the replicas may well be on different endpoints.
+     */
+    private static void copyStored( S3Persister pSource, S3Persister pTarget, String pPath ) {
+        S3Object zObject = pSource.getObject( pPath );
+        pTarget.putStoredFile( pPath, zObject.getObjectContent(), zObject.getObjectMetadata() );
+    }
+
+    private static synchronized Timer repairScheduler() {
+        if ( sRepairScheduler == null ) {
+            sRepairScheduler = new Timer( S3ReplicatedPersister.class.getSimpleName() + "-Repairer", true );
+        }
+        return sRepairScheduler;
+    }
+
+    /**
+     * @return the key of a directory (w/ a trailing "/"), which covers every path under it.
+     */
+    private static String directoryKey( String pPath ) {
+        return pPath.endsWith( "/" ) ? pPath : pPath + "/";
+    }
+
+    private long hedgeNanos( Replica pReplica ) {
+        return Math.max( mMinHedgeNanos, HEDGE_LATENCY_MULTIPLE * pReplica.mLatencyNanos.get() );
+    }
+
+    /**
+     * Replicas w/ missed writes (so possibly stale), and then failing replicas, sort last (so a down replica doesn't cost
+     * every read a round trip); otherwise by latency, w/ the unmeasured (latency 0) first, so each is measured.
+     */
+    private List<Replica> byLatency() {
+        List<Replica> zReplicas = new ArrayList<Replica>( mReplicas );
+        Collections.sort( zReplicas, new Comparator<Replica>() {
+            @Override
+            public int compare( Replica pReplica1, Replica pReplica2 ) {
+                boolean zMissed1 = (pReplica1.getMissedWrites() != 0), zMissed2 = (pReplica2.getMissedWrites() != 0);
+                if ( zMissed1 != zMissed2 ) {
+                    return zMissed1 ? 1 : -1;
+                }
+                int zFailures1 = pReplica1.mConsecutiveFailures.get(), zFailures2 = pReplica2.mConsecutiveFailures.get();
+                if ( zFailures1 != zFailures2 ) {
+                    return (zFailures1 < zFailures2) ? -1 : 1;
+                }
+                long zLatency1 = pReplica1.mLatencyNanos.get(), zLatency2 = pReplica2.mLatencyNanos.get();
+                return (zLatency1 < zLatency2) ? -1 : (zLatency1 == zLatency2) ? 0 : 1;
+            }
+        } );
+        return zReplicas;
+    }
+
+    private static Persister sourceFor( Persister pSource, S3Persister pReplica ) {
+        if ( pSource instanceof S3ReplicatedPersister ) {
+            String zEndpoint = pReplica.getBucket().getS3Endpoint();
+            for ( Replica zSourceReplica : ((S3ReplicatedPersister) pSource).mReplicas ) {
+                if ( zEndpoint.equals( zSourceReplica.mPersister.getBucket().getS3Endpoint() ) ) {
+                    return zSourceReplica.mPersister;
+                }
+            }
+        }
+        return pSource;
+    }
+
+    private static class Outcome<T> {
+        private final T mResult;
+        private final RuntimeException mFailure;
+        private final boolean mMissing;
+
+        private Outcome( T pResult, RuntimeException pFailure, boolean pMissing ) {
+            mResult = pResult;
+            mFailure = pFailure;
+            mMissing = pMissing;
+        }
+
+        private Outcome( T pResult, RuntimeException pFailure ) {
+            this( pResult, pFailure, false );
+        }
+    }
+
+    private static class Replica {
+        private final S3Persister mPersister;
+        private final AtomicLong mLatencyNanos = new AtomicLong(); // Exponentially smoothed (1/4 per sample)
+        private final AtomicInteger mConsecutiveFailures = new AtomicInteger();
+        private final AtomicBoolean mRepairScheduled = new AtomicBoolean();
+        private final AtomicLong mRepairDelayMillis = new AtomicLong();
+        // Keys are paths, or directories (see directoryKey); all guarded by "this"
+        private final Map<String, Long> mMissed = new LinkedHashMap<String, Long>(); // -> Sequence of the last missed write
+        private final Map<String, Integer> mWriting = new HashMap<String, Integer>();
+        private final Set<String> mRepairing = new HashSet<String>();
+
+        private Replica( S3Persister pPersister ) {
+            mPersister = pPersister;
+        }
+
+        private synchronized int getMissedWrites() {
+            return mMissed.size();
+        }
+
+        private synchronized List<String> getMissedKeys() {
+            return new ArrayList<String>( mMissed.keySet() );
+        }
+
+        /**
+         * @return true if a missed write to pKey (or what covers it, or is covered by it) is not yet repaired.
+         */
+        private synchronized boolean isMissing( String pKey ) {
+            return overlaps( mMissed.keySet(), pKey );
+        }
+
+        /**
+         * Wait while pKey is being repaired.
+         */
+        private synchronized void beginWrite( String pKey ) {
+            try {
+                while ( overlaps( mRepairing, pKey ) ) {
+                    wait();
+                }
+            }
+            catch ( InterruptedException e ) {
+                Thread.currentThread().interrupt();
+                throw new FileSystemException( e );
+            }
+            Integer zWriting = mWriting.get( pKey );
+            mWriting.put( pKey, (zWriting == null) ? 1 : zWriting + 1 );
+        }
+
+        /**
+         * A successful write resolves only the missed writes it follows (a slow, older, write's success must not hide a
+         * newer write's miss).
+         *
+         * @return true if the write was missed (so a repair is needed).
+         */
+        private synchronized boolean endWrite( String pKey, long pSequence, boolean pBegun, boolean pWrote ) {
+            if ( pBegun ) {
+                Integer zWriting = mWriting.remove( pKey );
+                if ( zWriting > 1 ) {
+                    mWriting.put( pKey, zWriting - 1 );
+                }
+            }
+            if ( !pWrote ) {
+                Long zMissed = mMissed.get( pKey );
+                mMissed.put( pKey, (zMissed == null) ? pSequence : Math.max( zMissed, pSequence ) );
+                return true;
+            }
+            for ( Iterator<Map.Entry<String, Long>> zIt = mMissed.entrySet().iterator(); zIt.hasNext(); ) {
+                Map.Entry<String, Long> zEntry = zIt.next();
+                if ( (zEntry.getValue() < pSequence) && covers( pKey, zEntry.getKey() ) ) { // pKey, or (a directory's) everything under it
+                    zIt.remove();
+                }
+            }
+            return false;
+        }
+
+        /**
+         * @return false if pKey is being written (which resolves it), or is no longer missed.
+         */
+        private synchronized boolean beginRepair( String pKey ) {
+            if ( !mMissed.containsKey( pKey ) || overlaps( mWriting.keySet(), pKey ) ) {
+                return false;
+            }
+            mRepairing.add( pKey );
+            return true;
+        }
+
+        private synchronized void endRepair( String pKey, boolean pRepaired ) {
+            mRepairing.remove( pKey );
+            if ( pRepaired ) {
+                mMissed.remove( pKey );
+            }
+            notifyAll();
+        }
+
+        private long nextRepairDelay() {
+            long zDelay = mRepairDelayMillis.get();
+            zDelay = (zDelay == 0) ? MIN_REPAIR_DELAY_MILLIS : Math.min( MAX_REPAIR_DELAY_MILLIS, 2 * zDelay );
+            mRepairDelayMillis.set( zDelay );
+            return zDelay;
+        }
+
+        private static boolean overlaps( Collection<String> pKeys, String pKey ) {
+            for ( String zKey : pKeys ) {
+                if ( covers( zKey, pKey ) || covers( pKey, zKey ) ) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * @return true if pKey1 is pKey2, or a directory w/ pKey2 under it.
+         */
+        private static boolean covers( String pKey1, String pKey2 ) {
+            return pKey1.equals( pKey2 ) || (pKey1.endsWith( "/" ) && pKey2.startsWith( pKey1 ));
+        }
+
+        private void recordFailure() {
+            mConsecutiveFailures.incrementAndGet();
+        }
+
+        private void recordSuccess( long pNanos ) {
+            mConsecutiveFailures.set( 0 );
+            pNanos = Math.max( 1, pNanos );
+            for ( long zLatency; !mLatencyNanos.compareAndSet( zLatency = mLatencyNanos.get(), //
+                                                               (zLatency == 0) ? pNanos : zLatency + ((pNanos - zLatency) / 4) ); ) {
+                // Lost a race - try again
+            }
+        }
+    }
+}
@@ -0,0 +1,153 @@
+package org.litesoft.aws.s3;
+
+import com.amazonaws.*;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Runs S3Operations thru a S3RateLimiter, retrying the retryable failures (5xx, SlowDown/throttling, request timeouts,
+ * and client side I/O problems) w/ "full jitter" exponential backoff, and counting the retries per operation.
+ * <p/>
+ * Note: the SDK client can also retry (ClientSettings' MaxErrorRetry), which would multiply the attempts; so
+ * S3ClientSupport turns the SDK's default (3) retries off, leaving explicitly configured ones alone.
+ */
+public class S3Retrier {
+    public static final int DEFAULT_MAX_ATTEMPTS = 4;
+    public static final long DEFAULT_BASE_DELAY_MILLIS = 50;
+    public static final long DEFAULT_MAX_DELAY_MILLIS = 10 * 1000;
+
+    public static final S3Retrier INSTANCE = new S3Retrier();
+
+    private static final Set<String> RETRYABLE_ERROR_CODES = new HashSet<String>( Arrays.asList( //
+            "SlowDown", "Throttling", "ThrottlingException", "RequestTimeout", "InternalError", "ServiceUnavailable" ) );
+
+    private final int mMaxAttempts;
+    private final long mBaseDelayMillis, mMaxDelayMillis;
+    private final ConcurrentMap<String, AtomicLong> mRetriesByOperation = new ConcurrentHashMap<String, AtomicLong>();
+    private final Random mRandom = new Random();
+
+    public S3Retrier( int pMaxAttempts, long pBaseDelayMillis, long pMaxDelayMillis ) {
+        mMaxAttempts = Math.max( 1, pMaxAttempts );
+        mBaseDelayMillis = Math.max( 1, pBaseDelayMillis );
+        mMaxDelayMillis = Math.max( mBaseDelayMillis, pMaxDelayMillis );
+    }
+
+    public S3Retrier() {
+        this( DEFAULT_MAX_ATTEMPTS, DEFAULT_BASE_DELAY_MILLIS, DEFAULT_MAX_DELAY_MILLIS );
+    }
+
+    public int getMaxAttempts() {
+        return mMaxAttempts;
+    }
+
+    public long getRetries( String pOperationName ) {
+        AtomicLong zCount = mRetriesByOperation.get( pOperationName );
+        return (zCount == null) ? 0 : zCount.get();
+    }
+
+    /**
+     * @return a snapshot of the retry counts by operation name.
+     */
+    public Map<String, Long> getRetries() {
+        Map<String, Long> zRetries = new TreeMap<String, Long>();
+        for ( Map.Entry<String, AtomicLong> zEntry : mRetriesByOperation.entrySet() ) {
+            zRetries.put( zEntry.getKey(), zEntry.getValue().get() );
+        }
+        return zRetries;
+    }
+
+    /**
+     * @param pLimiter     nullable
+     * @param pMaxAttempts 1 for no retries (e.g. the operation consumes a stream that can't be replayed)
+     */
+    public <T> T execute( S3RateLimiter pLimiter, String pOperationName, int pMaxAttempts, S3Operation<T> pOperation )
+            throws Exception {
+        for ( int zAttempt = 1; true; zAttempt++ ) {
+            if ( pLimiter != null ) {
+                pLimiter.acquire();
+            }
+            try {
+                T zResult = pOperation.execute();
+                if ( pLimiter != null ) {
+                    pLimiter.onSuccess();
+                }
+                return zResult;
+            }
+            catch ( Exception e ) {
+                if ( (pLimiter != null) && isSlowDown( e ) ) {
+                    pLimiter.onSlowDown();
+                }
+                if ( (zAttempt >= pMaxAttempts) || !isRetryable( e ) ) {
+                    throw e;
+                }
+                backoff( pOperationName, zAttempt );
+            }
+        }
+    }
+
+    public <T> T execute( S3RateLimiter pLimiter, String pOperationName, S3Operation<T> pOperation )
+            throws Exception {
+        return execute( pLimiter, pOperationName, mMaxAttempts, pOperation );
+    }
+
+    /**
+     * Count a retry of pOperationName, and sleep the backoff for pAttempt (the attempt that failed), for callers that
+     * retry (part of) an operation themselves.
+     */
+    public void backoff( String pOperationName, int pAttempt )
+            throws InterruptedException {
+        countRetry( pOperationName );
+        Thread.sleep( backoffMillis( pAttempt ) );
+    }
+
+    private void countRetry( String pOperationName ) {
+        AtomicLong zCount = mRetriesByOperation.get( pOperationName );
+        if ( zCount == null ) {
+            AtomicLong zExisting = mRetriesByOperation.putIfAbsent( pOperationName, zCount = new AtomicLong() );
+            if ( zExisting != null ) {
+                zCount = zExisting;
+            }
+        }
+        zCount.incrementAndGet();
+    }
+
+    private long backoffMillis( int pAttempt ) {
+        long zCeiling = Math.min( mMaxDelayMillis, mBaseDelayMillis << Math.min( 20, pAttempt ) );
+        synchronized ( mRandom ) {
+            return 1 + (long) (mRandom.nextDouble() * zCeiling);
+        }
+    }
+
+    public static boolean isSlowDown( Exception e ) {
+        if ( e instanceof AmazonServiceException ) {
+            AmazonServiceException ase = (AmazonServiceException) e;
+            return (ase.getStatusCode() == 503) || isSlowDown( ase.getErrorCode() );
+        }
+        return false;
+    }
+
+    public static boolean isSlowDown( String pErrorCode ) {
+        return "SlowDown".equals( pErrorCode ) || "Throttling".equals( pErrorCode );
+    }
+
+    public static boolean isRetryable( Exception e ) {
+        if ( e instanceof AmazonServiceException ) {
+            AmazonServiceException ase = (AmazonServiceException) e;
+            return (ase.getStatusCode() >= 500) || isRetryable( ase.getErrorCode() );
+        }
+        if ( e instanceof AmazonClientException ) {
+            return (e.getCause() instanceof IOException);
+        }
+        return (e instanceof IOException);
+    }
+
+    /**
+     * For the per key errors of a DeleteObjects (which have no status code).
+     */
+    public static boolean isRetryable( String pErrorCode ) {
+        return RETRYABLE_ERROR_CODES.contains( pErrorCode );
+    }
+}
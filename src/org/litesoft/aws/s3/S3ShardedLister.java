@@ -0,0 +1,275 @@
+package org.litesoft.aws.s3;
+
+import org.litesoft.commonfoundation.exceptions.*;
+
+import com.amazonaws.services.s3.model.*;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Lists a (huge) prefix as disjoint key ranges, each paged thru on its own worker, merged into a single Iterator.
+ * <p/>
+ * The range boundaries come either from the Common Prefixes directly under the prefix (delimiter discovery), or from a
+ * configured set of FanOutCharacters (boundaries of prefix + each character).  Range i lists the keys after boundary i
+ * (the "marker") thru boundary i + 1 (inclusive), so together the ranges cover every key exactly once.
+ * <p/>
+ * As the ranges are in key order, Sorted output is simply each range's keys in turn (a range's keys are buffered, up to
+ * MaxBufferedKeysPerShard, while the ranges before it are consumed).  Note: boundaries are compared w/ String ordering,
+ * which matches S3's (UTF-8 binary) ordering for all but supplementary (surrogate pair) characters.
+ * <p/>
+ * An Iterator abandoned before its end should be close()d, which cancels its shards; if it isn't, its shards (blocked
+ * on full buffers) give up once nothing has been taken from it for AbandonedAfterMillis, so they can't hold the
+ * executor's threads forever.
+ */
+public class S3ShardedLister {
+    public static final int DEFAULT_CONCURRENCY = 8;
+    public static final int DEFAULT_MAX_BUFFERED_KEYS_PER_SHARD = 10000;
+    public static final int MAX_DISCOVERY_DEPTH = 3;
+    public static final long DEFAULT_ABANDONED_AFTER_MILLIS = 60 * 1000;
+
+    private static final long OFFER_WAIT_MILLIS = 1000;
+
+    private static final String END_OF_SHARD = new String( "" ); // Identity sentinel
+
+    private final int mConcurrency;
+    private final ExecutorService mExecutor;
+    private final String mFanOutCharacters;
+    private final boolean mSorted;
+    private final int mMaxBufferedKeysPerShard;
+    private volatile long mAbandonedAfterMillis = DEFAULT_ABANDONED_AFTER_MILLIS;
+
+    /**
+     * @param pFanOutCharacters null for delimiter discovery.
+     * @param pExecutor         should be dedicated (FIFO) to this lister when Sorted, as earlier ranges must make progress.
+     */
+    public S3ShardedLister( int pConcurrency, ExecutorService pExecutor, String pFanOutCharacters, boolean pSorted, int pMaxBufferedKeysPerShard ) {
+        mConcurrency = Math.max( 1, pConcurrency );
+        mExecutor = (pExecutor != null) ? pExecutor : S3Executors.newFixedDaemonPool( "S3ShardedLister", mConcurrency );
+        mFanOutCharacters = (pFanOutCharacters == null) ? null : sortedDistinct( pFanOutCharacters );
+        mSorted = pSorted;
+        mMaxBufferedKeysPerShard = Math.max( 1000, pMaxBufferedKeysPerShard );
+    }
+
+    public S3ShardedLister( int pConcurrency, String pFanOutCharacters, boolean pSorted ) {
+        this( pConcurrency, null, pFanOutCharacters, pSorted, DEFAULT_MAX_BUFFERED_KEYS_PER_SHARD );
+    }
+
+    public S3ShardedLister( int pConcurrency ) {
+        this( pConcurrency, null, false );
+    }
+
+    public S3ShardedLister() {
+        this( DEFAULT_CONCURRENCY );
+    }
+
+    /**
+     * How long a listing's shards wait, w/ nothing taken from its Iterator, before treating it as abandoned.
+     */
+    public S3ShardedLister withAbandonedAfterMillis( long pAbandonedAfterMillis ) {
+        mAbandonedAfterMillis = Math.max( OFFER_WAIT_MILLIS, pAbandonedAfterMillis );
+        return this;
+    }
+
+    public long getAbandonedAfterMillis() {
+        return mAbandonedAfterMillis;
+    }
+
+    /**
+     * @return an Iterator over all the keys under pKeyPrefix; close() it if it is abandoned before its end.
+     */
+    public ShardedKeyIterator list( S3ClientSupport pClientSupport, String pKeyPrefix ) {
+        String zKeyPrefix = (pKeyPrefix == null) ? "" : pKeyPrefix;
+        return new ShardedKeyIterator( pClientSupport, zKeyPrefix, boundaries( pClientSupport, zKeyPrefix ) );
+    }
+
+    private List<String> boundaries( S3ClientSupport pClientSupport, String pKeyPrefix ) {
+        List<String> zBoundaries = new ArrayList<String>();
+        if ( mFanOutCharacters == null ) {
+            TreeSet<String> zPrefixes = new TreeSet<String>();
+            List<String> zFrontier = new ArrayList<String>( pClientSupport.getCommonPrefixes( pKeyPrefix ) );
+            zPrefixes.addAll( zFrontier );
+            for ( int zDepth = 1; (zDepth < MAX_DISCOVERY_DEPTH) && !zFrontier.isEmpty() && (zPrefixes.size() < mConcurrency); zDepth++ ) {
+                List<String> zNextFrontier = new ArrayList<String>(); // Too few to keep the workers busy, so go a level deeper
+                for ( String zPrefix : zFrontier ) {
+                    zNextFrontier.addAll( pClientSupport.getCommonPrefixes( zPrefix ) );
+                }
+                zPrefixes.addAll( zFrontier = zNextFrontier );
+            }
+            zBoundaries.addAll( zPrefixes );
+        } else {
+            for ( char c : mFanOutCharacters.toCharArray() ) {
+                zBoundaries.add( pKeyPrefix + c );
+            }
+        }
+        return zBoundaries;
+    }
+
+    private static String sortedDistinct( String pCharacters ) {
+        StringBuilder sb = new StringBuilder();
+        for ( Character c : new TreeSet<Character>( asList( pCharacters ) ) ) {
+            sb.append( c.charValue() );
+        }
+        return sb.toString();
+    }
+
+    private static List<Character> asList( String pCharacters ) {
+        List<Character> zCharacters = new ArrayList<Character>( pCharacters.length() );
+        for ( char c : pCharacters.toCharArray() ) {
+            zCharacters.add( c );
+        }
+        return zCharacters;
+    }
+
+    public class ShardedKeyIterator implements Iterator<String>,
+                                               Closeable {
+        private final List<BlockingQueue<String>> mQueues = new ArrayList<BlockingQueue<String>>();
+        private final List<Future<?>> mShards = new ArrayList<Future<?>>();
+        private volatile boolean mClosed, mAbandoned;
+        private volatile long mLastTakenMillis = System.currentTimeMillis();
+        private volatile Exception mError;
+        private int mShardsRemaining, mCurrentQueue;
+        private String mNext;
+
+        private ShardedKeyIterator( S3ClientSupport pClientSupport, String pKeyPrefix, List<String> pBoundaries ) {
+            mShardsRemaining = pBoundaries.size() + 1;
+            BlockingQueue<String> zShared = mSorted ? null : new LinkedBlockingQueue<String>( mMaxBufferedKeysPerShard * mConcurrency );
+            String zMarker = null;
+            for ( int i = 0; i <= pBoundaries.size(); i++ ) {
+                String zUpperInclusive = (i < pBoundaries.size()) ? pBoundaries.get( i ) : null;
+                BlockingQueue<String> zQueue = (zShared != null) ? zShared : new LinkedBlockingQueue<String>( mMaxBufferedKeysPerShard );
+                if ( (i == 0) || mSorted ) {
+                    mQueues.add( zQueue );
+                }
+                ListObjectsRequest zRequest = pClientSupport.createListRequest( pKeyPrefix, false ).withMarker( zMarker );
+                mShards.add( mExecutor.submit( new Shard( pClientSupport, zRequest, zUpperInclusive, zQueue ) ) );
+                zMarker = zUpperInclusive;
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            while ( mNext == null ) {
+                if ( mShardsRemaining == 0 ) {
+                    return false;
+                }
+                String zKey = take( mQueues.get( mCurrentQueue ) );
+                if ( zKey == END_OF_SHARD ) {
+                    if ( mError != null ) {
+                        close();
+                        throw (mError instanceof RuntimeException) ? (RuntimeException) mError : new FileSystemException( mError );
+                    }
+                    mShardsRemaining--;
+                    if ( mSorted ) {
+                        mCurrentQueue++;
+                    }
+                } else {
+                    mNext = zKey;
+                }
+            }
+            return true;
+        }
+
+        private String take( BlockingQueue<String> pQueue ) {
+            try {
+                String zKey;
+                while ( null == (zKey = pQueue.poll( OFFER_WAIT_MILLIS, TimeUnit.MILLISECONDS )) ) {
+                    if ( mAbandoned ) { // Came back after the shards gave up
+                        close();
+                        throw new FileSystemException( "Listing abandoned (nothing taken for " + mAbandonedAfterMillis + "ms)" );
+                    }
+                }
+                mLastTakenMillis = System.currentTimeMillis();
+                return zKey;
+            }
+            catch ( InterruptedException e ) {
+                close();
+                Thread.currentThread().interrupt();
+                throw new FileSystemException( e );
+            }
+        }
+
+        @Override
+        public String next() {
+            if ( hasNext() ) {
+                String zKey = mNext;
+                mNext = null;
+                return zKey;
+            }
+            throw new NoSuchElementException();
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void close() {
+            mClosed = true;
+            mShardsRemaining = 0;
+            for ( Future<?> zShard : mShards ) {
+                zShard.cancel( true );
+            }
+        }
+
+        private class Shard implements Runnable {
+            private final S3ClientSupport mClientSupport;
+            private final ListObjectsRequest mRequest;
+            private final String mUpperInclusive;
+            private final BlockingQueue<String> mQueue;
+
+            private Shard( S3ClientSupport pClientSupport, ListObjectsRequest pRequest, String pUpperInclusive, BlockingQueue<String> pQueue ) {
+                mClientSupport = pClientSupport;
+                mRequest = pRequest;
+                mUpperInclusive = pUpperInclusive;
+                mQueue = pQueue;
+            }
+
+            @Override
+            public void run() {
+                try {
+                    for ( Iterator<S3ObjectSummary> zIt = mClientSupport.summaryIterator( mRequest, null ); !mClosed && zIt.hasNext(); ) {
+                        String zKey = zIt.next().getKey();
+                        if ( (mUpperInclusive != null) && (zKey.compareTo( mUpperInclusive ) > 0) ) {
+                            break;
+                        }
+                        if ( !offer( zKey ) ) {
+                            return; // Closed or Abandoned
+                        }
+                    }
+                }
+                catch ( InterruptedException e ) {
+                    return; // Closed
+                }
+                catch ( Exception e ) {
+                    mError = mClientSupport.convert( e, mRequest.getPrefix() );
+                }
+                try {
+                    offer( END_OF_SHARD );
+                }
+                catch ( InterruptedException e ) {
+                    // Closed
+                }
+            }
+
+            /**
+             * @return false if the Iterator was closed, or is (now) treated as abandoned.
+             */
+            private boolean offer( String pKey )
+                    throws InterruptedException {
+                while ( !mQueue.offer( pKey, OFFER_WAIT_MILLIS, TimeUnit.MILLISECONDS ) ) {
+                    if ( mClosed || mAbandoned ) {
+                        return false;
+                    }
+                    if ( (System.currentTimeMillis() - mLastTakenMillis) >= mAbandonedAfterMillis ) {
+                        mAbandoned = true; // Other shards see it and give up too
+                        return false;
+                    }
+                }
+                return true;
+            }
+        }
+    }
+}
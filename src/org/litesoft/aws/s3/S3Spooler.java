@@ -0,0 +1,40 @@
+package org.litesoft.aws.s3;
+
+import java.io.*;
+
+/**
+ * Spools content of unknown length to a temporary file, so it can be uploaded w/ a known length (and re-read on a retry).
+ */
+class S3Spooler {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private S3Spooler() {
+    }
+
+    /**
+     * @param pPrefix of the temporary file's name, e.g. the spooling class's simple name
+     *
+     * @return the temporary file (which the caller must delete); pContents is read to its end, but not closed.
+     */
+    static File spool( String pPrefix, InputStream pContents )
+            throws IOException {
+        File zFile = File.createTempFile( pPrefix, ".spool" );
+        try {
+            OutputStream zOut = new FileOutputStream( zFile );
+            try {
+                byte[] zBuffer = new byte[BUFFER_SIZE];
+                for ( int zRead; -1 != (zRead = pContents.read( zBuffer )); ) {
+                    zOut.write( zBuffer, 0, zRead );
+                }
+            }
+            finally {
+                zOut.close();
+            }
+            return zFile;
+        }
+        catch ( IOException e ) {
+            zFile.delete();
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package org.litesoft.aws.s3;
+
+import org.litesoft.commonfoundation.exceptions.*;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.charset.*;
+import java.util.*;
+
+/**
+ * Streaming (UTF-8) text support for S3Persister, so neither reading nor writing a text file holds all of it in memory.
+ */
+public class S3TextLines {
+    public static final Charset UTF_8 = Charset.forName( "UTF-8" );
+    public static final int BUFFER_SIZE = 8 * 1024;
+
+    /**
+     * @return the number of bytes pLines would be as a LinesInputStream (encoded a buffer at a time, not kept).
+     */
+    public static long encodedLength( Iterable<String> pLines ) {
+        LinesInputStream zIn = new LinesInputStream( pLines.iterator() );
+        long zLength = 0;
+        while ( zIn.fill() ) {
+            zLength += zIn.mBytes.remaining();
+        }
+        return zLength;
+    }
+
+    /**
+     * Lazily decodes (a buffer at a time) the lines of a text stream, closing the stream at its end (or on close).
+     */
+    public static class LineIterator implements Iterator<String>,
+                                                Closeable {
+        private final String mSource;
+        private final BufferedReader mReader;
+        private String mNext;
+        private boolean mClosed;
+
+        /**
+         * @param pSource for error messages
+         */
+        public LineIterator( String pSource, InputStream pInputStream ) {
+            mSource = pSource;
+            mReader = new BufferedReader( new InputStreamReader( pInputStream, UTF_8 ), BUFFER_SIZE );
+        }
+
+        @Override
+        public boolean hasNext() {
+            if ( (mNext == null) && !mClosed ) {
+                try {
+                    if ( null == (mNext = mReader.readLine()) ) {
+                        close();
+                    }
+                }
+                catch ( IOException e ) {
+                    close();
+                    throw new FileSystemException( mSource, e );
+                }
+            }
+            return (mNext != null);
+        }
+
+        @Override
+        public String next() {
+            if ( !hasNext() ) {
+                throw new NoSuchElementException();
+            }
+            String zLine = mNext;
+            mNext = null;
+            return zLine;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void close() {
+            if ( !mClosed ) {
+                mClosed = true;
+                try {
+                    mReader.close();
+                }
+                catch ( IOException e ) {
+                    // Ignore - nothing more to read
+                }
+            }
+        }
+    }
+
+    /**
+     * Encodes (a buffer at a time) lines as UTF-8, each followed by a "\n"; unpaired surrogates become '?'.
+     */
+    public static class LinesInputStream extends InputStream {
+        private final Iterator<String> mLines;
+        private final CharsetEncoder mEncoder = UTF_8.newEncoder().onMalformedInput( CodingErrorAction.REPLACE ) //
+                .onUnmappableCharacter( CodingErrorAction.REPLACE );
+        private final ByteBuffer mBytes = (ByteBuffer) ByteBuffer.allocate( BUFFER_SIZE ).flip();
+        private CharBuffer mChars;
+        private boolean mNewLinePending;
+
+        public LinesInputStream( Iterator<String> pLines ) {
+            mLines = pLines;
+        }
+
+        @Override
+        public int read() {
+            while ( !mBytes.hasRemaining() ) {
+                if ( !fill() ) {
+                    return -1;
+                }
+            }
+            return mBytes.get() & 0xFF;
+        }
+
+        @Override
+        public int read( byte[] pBuffer, int pOffset, int pLength ) {
+            if ( pLength == 0 ) {
+                return 0;
+            }
+            while ( !mBytes.hasRemaining() ) {
+                if ( !fill() ) {
+                    return -1;
+                }
+            }
+            int zLength = Math.min( pLength, mBytes.remaining() );
+            mBytes.get( pBuffer, pOffset, zLength );
+            return zLength;
+        }
+
+        @Override
+        public int available() {
+            return mBytes.remaining();
+        }
+
+        /**
+         * @return false at the end of the lines.
+         */
+        private boolean fill() {
+            mBytes.clear();
+            while ( mBytes.hasRemaining() ) {
+                if ( mNewLinePending ) {
+                    mBytes.put( (byte) '\n' );
+                    mNewLinePending = false;
+                    continue;
+                }
+                if ( mChars == null ) {
+                    if ( !mLines.hasNext() ) {
+                        break;
+                    }
+                    mChars = CharBuffer.wrap( mLines.next() );
+                }
+                if ( mEncoder.encode( mChars, mBytes, true ).isOverflow() ) {
+                    break;
+                }
+                mEncoder.flush( mBytes ); // UTF-8 has nothing left to flush once the input is consumed
+                mEncoder.reset();
+                mChars = null;
+                mNewLinePending = true;
+            }
+            mBytes.flip();
+            return mBytes.hasRemaining();
+        }
+    }
+}
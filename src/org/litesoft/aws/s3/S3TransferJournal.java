@@ -0,0 +1,511 @@
+package org.litesoft.aws.s3;
+
+import org.litesoft.commonfoundation.exceptions.*;
+import org.litesoft.server.util.*;
+
+import com.amazonaws.*;
+import com.amazonaws.services.s3.model.*;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.zip.*;
+
+/**
+ * Crash safe, resumable bulk transfers (local file uploads & bucket copies) thru a S3Persister, driven by a local
+ * append-only journal.
+ * <p/>
+ * Each queued transfer, each Multipart Upload started (its Upload Id), each part uploaded (its ETag), and each
+ * completed transfer is appended to the journal (a FileChannel, forced to disk per record), so a process that dies
+ * part way can be restarted w/ the same journal and queue: what was completed is skipped (w/o asking S3), and a
+ * Multipart Upload is resumed from the parts it had, so nothing is uploaded twice and the bucket is not listed.
+ * <p/>
+ * Records are length & CRC framed, so a record torn by a crash is dropped when the journal is opened (which also
+ * compacts it to the current state).  Uploads are resumed only if the local file's length & last modified are
+ * unchanged (otherwise they start over).
+ * <p/>
+ * Files of at least the PartSize are sent as (parallel part) Multipart Uploads of the file as is; smaller ones (and
+ * copies) go thru the persister's putFile (& copyFile), so they are compressed if the persister compresses.  Failed
+ * Multipart Uploads are NOT aborted, as they are resumed by the next run; S3 keeps (and charges for) their parts until
+ * then (or until a bucket lifecycle rule aborts them).
+ */
+public class S3TransferJournal implements Closeable {
+    public static final int DEFAULT_CONCURRENCY = 8;
+    public static final int DEFAULT_PARTS_IN_FLIGHT = 4;
+    public static final int DEFAULT_MAX_PART_ATTEMPTS = 3;
+
+    private static final String QUEUED_UPLOAD = "QU", QUEUED_COPY = "QC", MULTIPART_STARTED = "MS", PART_UPLOADED = "MP", DONE = "D";
+    private static final char SEPARATOR = '\0';
+    private static final int HEADER_BYTES = 8; // Length & CRC
+
+    private final File mFile;
+    private final int mPartSize;
+    private final ExecutorService mTransferExecutor, mPartExecutor;
+    private final LinkedHashMap<String, Transfer> mTransfers = new LinkedHashMap<String, Transfer>(); // by destination path
+    private final AtomicLong mPartsUploaded = new AtomicLong();
+    private final AtomicLong mPartsResumed = new AtomicLong();
+    private FileChannel mChannel;
+
+    /**
+     * @param pPartSize         at least S3MultipartUploader.MIN_PART_SIZE (must not change between runs for a resume)
+     * @param pConcurrency      transfers at once
+     * @param pPartsInFlight    parts (of each Multipart Upload) at once
+     */
+    public S3TransferJournal( File pFile, int pPartSize, int pConcurrency, int pPartsInFlight )
+            throws FileSystemException {
+        mFile = pFile;
+        mPartSize = Math.max( S3MultipartUploader.MIN_PART_SIZE, pPartSize );
+        int zConcurrency = Math.max( 1, pConcurrency );
+        mTransferExecutor = S3Executors.newFixedDaemonPool( "S3TransferJournal", zConcurrency );
+        mPartExecutor = S3Executors.newFixedDaemonPool( "S3TransferJournal-Parts", zConcurrency * Math.max( 1, pPartsInFlight ) );
+        try {
+            if ( mFile.isFile() ) {
+                replay();
+            }
+            compact();
+        }
+        catch ( IOException e ) {
+            throw new FileSystemException( mFile.getPath(), e );
+        }
+    }
+
+    public S3TransferJournal( File pFile )
+            throws FileSystemException {
+        this( pFile, S3MultipartUploader.DEFAULT_PART_SIZE, DEFAULT_CONCURRENCY, DEFAULT_PARTS_IN_FLIGHT );
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    public int getPartSize() {
+        return mPartSize;
+    }
+
+    /**
+     * @return the destination paths of the queued transfers not yet done.
+     */
+    public synchronized List<String> getPending() {
+        List<String> zPending = new ArrayList<String>();
+        for ( Transfer zTransfer : mTransfers.values() ) {
+            if ( !zTransfer.mDone ) {
+                zPending.add( zTransfer.mPath );
+            }
+        }
+        return zPending;
+    }
+
+    public long getPartsUploaded() {
+        return mPartsUploaded.get();
+    }
+
+    /**
+     * @return the parts not uploaded (again) as the journal showed them already uploaded.
+     */
+    public long getPartsResumed() {
+        return mPartsResumed.get();
+    }
+
+    /**
+     * Queue the upload of pSource to pPath, unless the same upload (of the unchanged file) is already queued or done.
+     */
+    public synchronized void queueUpload( String pPath, File pSource )
+            throws FileSystemException {
+        Transfer zTransfer = mTransfers.get( pPath );
+        String zSource = pSource.getAbsolutePath();
+        if ( (zTransfer == null) || !zTransfer.isUploadOf( zSource, pSource.length(), pSource.lastModified() ) ) {
+            apply( append( false, QUEUED_UPLOAD, pPath, zSource, String.valueOf( pSource.length() ), String.valueOf( pSource.lastModified() ) ) );
+        }
+    }
+
+    /**
+     * Queue the (bucket) copy of pSourcePath to pPath, unless the same copy is already queued or done.
+     */
+    public synchronized void queueCopy( String pSourcePath, String pPath )
+            throws FileSystemException {
+        Transfer zTransfer = mTransfers.get( pPath );
+        if ( (zTransfer == null) || !zTransfer.isCopyOf( pSourcePath ) ) {
+            apply( append( false, QUEUED_COPY, pPath, pSourcePath ) );
+        }
+    }
+
+    /**
+     * Perform the pending transfers (in parallel), recording their progress.
+     *
+     * @return the number of transfers completed.
+     *
+     * @throws FileSystemException if any failed (after the others have been performed); running again resumes them.
+     */
+    public int run( final S3Persister pPersister )
+            throws FileSystemException {
+        force();
+        List<Future<Void>> zRunning = new ArrayList<Future<Void>>();
+        for ( final String zPath : getPending() ) {
+            zRunning.add( mTransferExecutor.submit( new Callable<Void>() {
+                @Override
+                public Void call()
+                        throws Exception {
+                    perform( pPersister, zPath );
+                    return null;
+                }
+            } ) );
+        }
+        int zCompleted = 0, zFailed = 0;
+        Throwable zFirstFailure = null;
+        for ( Future<Void> zTransfer : zRunning ) {
+            try {
+                zTransfer.get();
+                zCompleted++;
+            }
+            catch ( InterruptedException e ) {
+                Thread.currentThread().interrupt();
+                throw new FileSystemException( e );
+            }
+            catch ( ExecutionException e ) {
+                zFailed++;
+                zFirstFailure = (zFirstFailure != null) ? zFirstFailure : e.getCause();
+            }
+        }
+        if ( zFirstFailure != null ) {
+            throw new FileSystemException( zFailed + " of " + zRunning.size() + " transfers failed (journal: " + mFile + ")", zFirstFailure );
+        }
+        return zCompleted;
+    }
+
+    @Override
+    public synchronized void close() {
+        mTransferExecutor.shutdown();
+        mPartExecutor.shutdown();
+        Closeables.dispose( mChannel );
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "S3TransferJournal(" + mFile + ": transfers=" + mTransfers.size() + ", pending=" + getPending().size() + //
+               ", partsUploaded=" + getPartsUploaded() + ", partsResumed=" + getPartsResumed() + ")";
+    }
+
+    private void perform( S3Persister pPersister, String pPath )
+            throws Exception {
+        Transfer zTransfer;
+        synchronized ( this ) {
+            zTransfer = mTransfers.get( pPath );
+        }
+        if ( zTransfer.mSource == null ) {
+            pPersister.copyFile( zTransfer.mCopySource, pPath );
+        } else {
+            File zSource = new File( zTransfer.mSource );
+            if ( (zSource.length() != zTransfer.mLength) || (zSource.lastModified() != zTransfer.mLastModified) ) {
+                synchronized ( this ) { // Changed since queued - so start over
+                    apply( append( false, QUEUED_UPLOAD, pPath, zTransfer.mSource, String.valueOf( zSource.length() ), String.valueOf( zSource.lastModified() ) ) );
+                    zTransfer = mTransfers.get( pPath );
+                }
+            }
+            if ( zTransfer.mLength < mPartSize ) {
+                pPersister.putFile( pPath, new FileInputStream( zSource ), zTransfer.mLength );
+            } else {
+                try {
+                    uploadMultipart( pPersister, zTransfer, zSource );
+                }
+                catch ( AmazonServiceException e ) {
+                    if ( !"NoSuchUpload".equals( e.getErrorCode() ) ) {
+                        throw e;
+                    }
+                    zTransfer.mUploadId = null; // Aborted (or expired) - so start over
+                    uploadMultipart( pPersister, zTransfer, zSource );
+                }
+            }
+        }
+        synchronized ( this ) {
+            apply( append( true, DONE, pPath ) );
+        }
+    }
+
+    private void uploadMultipart( final S3Persister pPersister, final Transfer pTransfer, final File pSource )
+            throws Exception {
+        final String zPath = pTransfer.mPath;
+        if ( (pTransfer.mUploadId == null) || (pTransfer.mPartSize != mPartSize) ) {
+            String zUploadId = pPersister.executeRaw( "initiateMultipartUpload", new S3Operation<String>() {
+                @Override
+                public String execute() {
+                    return pPersister.mClient.initiateMultipartUpload( pPersister.addACL( new InitiateMultipartUploadRequest( //
+                            pPersister.getBucketName(), zPath, pPersister.createMetadata( zPath ) ) ) ).getUploadId();
+                }
+            } );
+            synchronized ( this ) {
+                apply( append( true, MULTIPART_STARTED, zPath, zUploadId, String.valueOf( mPartSize ) ) );
+            }
+        }
+        final String zUploadId = pTransfer.mUploadId;
+        int zParts = (int) ((pTransfer.mLength + mPartSize - 1) / mPartSize);
+        List<Future<PartETag>> zUploading = new ArrayList<Future<PartETag>>();
+        final List<PartETag> zETags = new ArrayList<PartETag>( zParts );
+        for ( int zPartNumber = 1; zPartNumber <= zParts; zPartNumber++ ) {
+            String zETag;
+            synchronized ( this ) {
+                zETag = pTransfer.mPartETags.get( zPartNumber );
+            }
+            if ( zETag != null ) {
+                mPartsResumed.incrementAndGet();
+                zETags.add( new PartETag( zPartNumber, zETag ) );
+            } else {
+                zUploading.add( mPartExecutor.submit( new PartUploader( pPersister, zPath, zUploadId, pSource, zPartNumber, //
+                                                                        (zPartNumber - 1L) * mPartSize, pTransfer.mLength ) ) );
+            }
+        }
+        Exception zFailure = null;
+        for ( Future<PartETag> zPart : zUploading ) { // Let every part finish (or fail), so as many as possible are journaled
+            try {
+                zETags.add( zPart.get() );
+            }
+            catch ( ExecutionException e ) {
+                zFailure = (zFailure != null) ? zFailure : (e.getCause() instanceof Exception) ? (Exception) e.getCause() : e;
+            }
+        }
+        if ( zFailure != null ) {
+            throw zFailure;
+        }
+        Collections.sort( zETags, new Comparator<PartETag>() {
+            @Override
+            public int compare( PartETag pETag1, PartETag pETag2 ) {
+                return pETag1.getPartNumber() - pETag2.getPartNumber();
+            }
+        } );
+        try {
+            pPersister.executeRaw( "completeMultipartUpload", new S3Operation<CompleteMultipartUploadResult>() {
+                @Override
+                public CompleteMultipartUploadResult execute() {
+                    return pPersister.mClient.completeMultipartUpload( new CompleteMultipartUploadRequest( pPersister.getBucketName(), zPath, //
+                                                                                                           zUploadId, zETags ) );
+                }
+            } );
+            pPersister.indexAdded( zPath );
+        }
+        finally {
+            pPersister.invalidate( zPath );
+        }
+    }
+
+    /**
+     * Apply a record (from the journal, or just appended to it) to the in memory state.
+     */
+    private void apply( String[] pRecord ) {
+        String zType = pRecord[0], zPath = pRecord[1];
+        Transfer zTransfer = mTransfers.get( zPath );
+        if ( QUEUED_UPLOAD.equals( zType ) ) {
+            mTransfers.remove( zPath ); // Re-queued go to the end
+            mTransfers.put( zPath, new Transfer( zPath, pRecord[2], Long.parseLong( pRecord[3] ), Long.parseLong( pRecord[4] ), null ) );
+        } else if ( QUEUED_COPY.equals( zType ) ) {
+            mTransfers.remove( zPath );
+            mTransfers.put( zPath, new Transfer( zPath, null, 0, 0, pRecord[2] ) );
+        } else if ( zTransfer == null ) {
+            return; // Not expected, but harmless
+        } else if ( MULTIPART_STARTED.equals( zType ) ) {
+            zTransfer.mUploadId = pRecord[2];
+            zTransfer.mPartSize = Integer.parseInt( pRecord[3] );
+            zTransfer.mPartETags.clear();
+        } else if ( PART_UPLOADED.equals( zType ) ) {
+            if ( pRecord[2].equals( zTransfer.mUploadId ) ) {
+                zTransfer.mPartETags.put( Integer.parseInt( pRecord[3] ), pRecord[4] );
+            }
+        } else if ( DONE.equals( zType ) ) {
+            zTransfer.mDone = true;
+            zTransfer.mUploadId = null;
+            zTransfer.mPartETags.clear();
+        }
+    }
+
+    /**
+     * @param pForce true to force the record to disk (before returning); queued records are forced by run.
+     *
+     * @return pRecord
+     */
+    private String[] append( boolean pForce, String... pRecord )
+            throws FileSystemException {
+        try {
+            write( mChannel, pRecord );
+            if ( pForce ) {
+                mChannel.force( false );
+            }
+            return pRecord;
+        }
+        catch ( IOException e ) {
+            throw new FileSystemException( mFile.getPath(), e );
+        }
+    }
+
+    private synchronized void force()
+            throws FileSystemException {
+        try {
+            mChannel.force( false );
+        }
+        catch ( IOException e ) {
+            throw new FileSystemException( mFile.getPath(), e );
+        }
+    }
+
+    private void replay()
+            throws IOException {
+        FileChannel zChannel = new FileInputStream( mFile ).getChannel();
+        try {
+            ByteBuffer zHeader = ByteBuffer.allocate( HEADER_BYTES );
+            while ( readFully( zChannel, zHeader ) ) {
+                int zLength = zHeader.getInt( 0 );
+                if ( (zLength < 0) || (zLength > (zChannel.size() - zChannel.position())) ) {
+                    return; // Torn
+                }
+                ByteBuffer zPayload = ByteBuffer.allocate( zLength );
+                readFully( zChannel, zPayload );
+                CRC32 zCRC = new CRC32();
+                zCRC.update( zPayload.array() );
+                if ( ((int) zCRC.getValue()) != zHeader.getInt( 4 ) ) {
+                    return; // Torn
+                }
+                apply( split( new String( zPayload.array(), "UTF-8" ) ) );
+            }
+        }
+        finally {
+            zChannel.close();
+        }
+    }
+
+    /**
+     * Rewrite the journal as just the records needed for the current state, replacing it atomically (by rename).
+     */
+    private void compact()
+            throws IOException {
+        File zTemp = new File( mFile.getPath() + ".tmp" );
+        FileChannel zChannel = new FileOutputStream( zTemp ).getChannel();
+        try {
+            for ( Transfer zTransfer : mTransfers.values() ) {
+                if ( zTransfer.mSource != null ) {
+                    write( zChannel, QUEUED_UPLOAD, zTransfer.mPath, zTransfer.mSource, String.valueOf( zTransfer.mLength ), //
+                           String.valueOf( zTransfer.mLastModified ) );
+                } else {
+                    write( zChannel, QUEUED_COPY, zTransfer.mPath, zTransfer.mCopySource );
+                }
+                if ( zTransfer.mDone ) {
+                    write( zChannel, DONE, zTransfer.mPath );
+                } else if ( zTransfer.mUploadId != null ) {
+                    write( zChannel, MULTIPART_STARTED, zTransfer.mPath, zTransfer.mUploadId, String.valueOf( zTransfer.mPartSize ) );
+                    for ( Map.Entry<Integer, String> zPart : zTransfer.mPartETags.entrySet() ) {
+                        write( zChannel, PART_UPLOADED, zTransfer.mPath, zTransfer.mUploadId, String.valueOf( zPart.getKey() ), zPart.getValue() );
+                    }
+                }
+            }
+            zChannel.force( true );
+        }
+        finally {
+            zChannel.close();
+        }
+        if ( !zTemp.renameTo( mFile ) && (!mFile.delete() || !zTemp.renameTo( mFile )) ) { // Windows won't rename over
+            throw new IOException( "Unable to replace: " + mFile );
+        }
+        mChannel = new FileOutputStream( mFile, true ).getChannel();
+    }
+
+    private static void write( FileChannel pChannel, String... pRecord )
+            throws IOException {
+        StringBuilder sb = new StringBuilder( pRecord[0] );
+        for ( int i = 1; i < pRecord.length; i++ ) {
+            sb.append( SEPARATOR ).append( pRecord[i] );
+        }
+        byte[] zPayload = sb.toString().getBytes( "UTF-8" );
+        CRC32 zCRC = new CRC32();
+        zCRC.update( zPayload );
+        ByteBuffer zBuffer = ByteBuffer.allocate( HEADER_BYTES + zPayload.length );
+        zBuffer.putInt( zPayload.length ).putInt( (int) zCRC.getValue() ).put( zPayload ).flip();
+        while ( zBuffer.hasRemaining() ) {
+            pChannel.write( zBuffer );
+        }
+    }
+
+    private static String[] split( String pRecord ) {
+        List<String> zFields = new ArrayList<String>();
+        int zFrom = 0;
+        for ( int zAt; -1 != (zAt = pRecord.indexOf( SEPARATOR, zFrom )); zFrom = zAt + 1 ) {
+            zFields.add( pRecord.substring( zFrom, zAt ) );
+        }
+        zFields.add( pRecord.substring( zFrom ) );
+        return zFields.toArray( new String[zFields.size()] );
+    }
+
+    /**
+     * @return false if the channel had no more bytes (or not enough to fill pBuffer).
+     */
+    private static boolean readFully( FileChannel pChannel, ByteBuffer pBuffer )
+            throws IOException {
+        pBuffer.clear();
+        while ( pBuffer.hasRemaining() ) {
+            if ( pChannel.read( pBuffer ) == -1 ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private class PartUploader implements Callable<PartETag> {
+        private final S3Persister mPersister;
+        private final String mPath, mUploadId;
+        private final File mSource;
+        private final int mPartNumber;
+        private final long mOffset, mSize;
+
+        private PartUploader( S3Persister pPersister, String pPath, String pUploadId, File pSource, int pPartNumber, long pOffset, long pLength ) {
+            mPersister = pPersister;
+            mPath = pPath;
+            mUploadId = pUploadId;
+            mSource = pSource;
+            mPartNumber = pPartNumber;
+            mOffset = pOffset;
+            mSize = Math.min( mPartSize, pLength - pOffset );
+        }
+
+        @Override
+        public PartETag call()
+                throws Exception {
+            PartETag zETag = mPersister.executeRaw( "uploadPart", DEFAULT_MAX_PART_ATTEMPTS, new S3Operation<PartETag>() {
+                @Override
+                public PartETag execute() {
+                    return mPersister.mClient.uploadPart( new UploadPartRequest().withBucketName( mPersister.getBucketName() ).withKey( mPath ) //
+                                                                  .withUploadId( mUploadId ).withPartNumber( mPartNumber ) //
+                                                                  .withFile( mSource ).withFileOffset( mOffset ).withPartSize( mSize ) ).getPartETag();
+                }
+            } );
+            mPersister.countBytesOut( "uploadPart", mSize );
+            mPartsUploaded.incrementAndGet();
+            synchronized ( S3TransferJournal.this ) {
+                apply( append( true, PART_UPLOADED, mPath, mUploadId, String.valueOf( mPartNumber ), zETag.getETag() ) );
+            }
+            return zETag;
+        }
+    }
+
+    private static class Transfer {
+        private final String mPath, mSource, mCopySource; // Either mSource (a local file) or mCopySource (a path) is null
+        private final long mLength, mLastModified;
+        private final Map<Integer, String> mPartETags = new TreeMap<Integer, String>();
+        private String mUploadId;
+        private int mPartSize;
+        private boolean mDone;
+
+        private Transfer( String pPath, String pSource, long pLength, long pLastModified, String pCopySource ) {
+            mPath = pPath;
+            mSource = pSource;
+            mLength = pLength;
+            mLastModified = pLastModified;
+            mCopySource = pCopySource;
+        }
+
+        private boolean isUploadOf( String pSource, long pLength, long pLastModified ) {
+            return pSource.equals( mSource ) && (pLength == mLength) && (pLastModified == mLastModified);
+        }
+
+        private boolean isCopyOf( String pSourcePath ) {
+            return pSourcePath.equals( mCopySource );
+        }
+    }
+}
@@ -0,0 +1,405 @@
+package org.litesoft.aws.s3;
+
+import org.litesoft.commonfoundation.base.*;
+import org.litesoft.commonfoundation.exceptions.*;
+import org.litesoft.server.util.*;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Write-behind for bulk publishing of many small files thru a S3Persister: putFile, putTextFile, and deleteFile return
+ * once queued, and the queued writes are sent by up to Concurrency parallel uploaders (over the persister's keep-alive
+ * connections), so the PUTs' round trips overlap rather than add up.
+ * <p/>
+ * A write to a path that is still queued replaces (supersedes) the queued one, which is then never sent; and a path is
+ * only ever sent by one uploader at a time, so the last write to a path always wins.  Files larger than the
+ * MaxObjectBytes are spooled to a temporary file (so they are uploaded w/ a known length, rather than buffered by the
+ * SDK), and sent by the calling thread (after any earlier write to the same path).
+ * <p/>
+ * Memory is bounded: callers block (back pressure) while the queued & sending content would exceed the MaxBufferedBytes.
+ * A failed write is reported (once, as a FileSystemException) by the next put, delete, flush, or close.
+ * <p/>
+ * Note: reads thru the persister do not see queued writes; flush first.
+ */
+public class S3WriteBehindQueue implements Closeable {
+    public static final long DEFAULT_MAX_BUFFERED_BYTES = 64L * 1024 * 1024;
+    public static final int DEFAULT_MAX_OBJECT_BYTES = 256 * 1024;
+    public static final int DEFAULT_CONCURRENCY = 32;
+
+    private final S3Persister mPersister;
+    private final long mMaxBufferedBytes;
+    private final int mMaxObjectBytes;
+    private final int mConcurrency;
+    private final ExecutorService mExecutor;
+    private final LinkedHashMap<String, Write> mQueued = new LinkedHashMap<String, Write>();
+    private final Set<String> mSending = new HashSet<String>();
+    private long mBufferedBytes, mSent, mSuperseded, mFailed;
+    private int mUploaders;
+    private FileSystemException mFailure;
+    private boolean mClosed;
+
+    /**
+     * @param pMaxObjectBytes clamped to the pMaxBufferedBytes
+     * @param pExecutor       null for a daemon pool of pConcurrency threads
+     */
+    public S3WriteBehindQueue( S3Persister pPersister, long pMaxBufferedBytes, int pMaxObjectBytes, int pConcurrency,
+                               ExecutorService pExecutor ) {
+        mPersister = Confirm.isNotNull( "Persister", pPersister );
+        mMaxBufferedBytes = Math.max( 1, pMaxBufferedBytes );
+        mMaxObjectBytes = (int) Math.max( 0, Math.min( mMaxBufferedBytes, pMaxObjectBytes ) );
+        mConcurrency = Math.max( 1, pConcurrency );
+        mExecutor = (pExecutor != null) ? pExecutor : S3Executors.newFixedDaemonPool( "S3WriteBehindQueue", mConcurrency );
+    }
+
+    public S3WriteBehindQueue( S3Persister pPersister, int pConcurrency ) {
+        this( pPersister, DEFAULT_MAX_BUFFERED_BYTES, DEFAULT_MAX_OBJECT_BYTES, pConcurrency, null );
+    }
+
+    public S3WriteBehindQueue( S3Persister pPersister ) {
+        this( pPersister, DEFAULT_CONCURRENCY );
+    }
+
+    public S3Persister getPersister() {
+        return mPersister;
+    }
+
+    /**
+     * @return the number of writes queued (not yet being sent).
+     */
+    public synchronized int getQueued() {
+        return mQueued.size();
+    }
+
+    /**
+     * @return the (approximate) bytes of the writes queued or being sent.
+     */
+    public synchronized long getBufferedBytes() {
+        return mBufferedBytes;
+    }
+
+    public synchronized long getSent() {
+        return mSent;
+    }
+
+    /**
+     * @return the number of queued writes that were replaced (before being sent) by a later write to the same path.
+     */
+    public synchronized long getSuperseded() {
+        return mSuperseded;
+    }
+
+    public synchronized long getFailed() {
+        return mFailed;
+    }
+
+    public void putFile( String pPath, InputStream pFileContents )
+            throws FileSystemException {
+        byte[] zContents;
+        try {
+            zContents = readUpTo( pFileContents, mMaxObjectBytes );
+        }
+        catch ( IOException e ) {
+            Closeables.dispose( pFileContents );
+            throw new FileSystemException( pPath, e );
+        }
+        if ( zContents.length <= mMaxObjectBytes ) {
+            Closeables.dispose( pFileContents );
+            queue( new PutFile( pPath, zContents ) );
+        } else {
+            sendLarge( pPath, new SequenceInputStream( new ByteArrayInputStream( zContents ), pFileContents ) );
+        }
+    }
+
+    public void putTextFile( String pPath, String[] pLines )
+            throws FileSystemException {
+        queue( new PutTextFile( pPath, pLines ) );
+    }
+
+    public void deleteFile( String pPath )
+            throws FileSystemException {
+        queue( new DeleteFile( pPath ) );
+    }
+
+    /**
+     * Wait for every queued write to be sent.
+     *
+     * @throws FileSystemException if a write has failed (since the last one was reported)
+     */
+    public synchronized void flush()
+            throws FileSystemException {
+        while ( !mQueued.isEmpty() || !mSending.isEmpty() ) {
+            waitForChange();
+        }
+        reportFailure();
+    }
+
+    /**
+     * Flush, after which the queue accepts no more writes (closing again is a no-op).
+     */
+    @Override
+    public synchronized void close()
+            throws FileSystemException {
+        if ( !mClosed ) {
+            flush();
+            mClosed = true;
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "S3WriteBehindQueue(" + mPersister + ": queued=" + mQueued.size() + ", sending=" + mSending.size() + //
+               ", buffered=" + mBufferedBytes + "b, sent=" + mSent + ", superseded=" + mSuperseded + ", failed=" + mFailed + ")";
+    }
+
+    private synchronized void queue( Write pWrite )
+            throws FileSystemException {
+        acceptable();
+        while ( true ) {
+            Write zQueued = mQueued.get( pWrite.mPath );
+            long zOthers = mBufferedBytes - ((zQueued == null) ? 0 : zQueued.mBytes); // As zQueued will be superseded
+            if ( (zOthers == 0) || ((zOthers + pWrite.mBytes) <= mMaxBufferedBytes) ) {
+                break;
+            }
+            waitForChange(); // Back pressure
+            acceptable();
+        }
+        Write zSuperseded = mQueued.remove( pWrite.mPath );
+        if ( zSuperseded != null ) {
+            mSuperseded++;
+            mBufferedBytes -= zSuperseded.mBytes;
+        }
+        mQueued.put( pWrite.mPath, pWrite );
+        mBufferedBytes += pWrite.mBytes;
+        startUploader();
+    }
+
+    private void startUploader() {
+        if ( !mQueued.isEmpty() && (mUploaders < mConcurrency) ) {
+            mUploaders++;
+            try {
+                mExecutor.execute( new Runnable() {
+                    @Override
+                    public void run() {
+                        upload();
+                    }
+                } );
+            }
+            catch ( RuntimeException e ) { // e.g. RejectedExecutionException (the queued writes stay queued)
+                mUploaders--;
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Spooled, and then sent by the calling thread, once any earlier write to pPath has been sent (and superseding any
+     * queued one).
+     */
+    private void sendLarge( String pPath, InputStream pFileContents )
+            throws FileSystemException {
+        File zFile;
+        try {
+            zFile = S3Spooler.spool( "S3WriteBehindQueue", pFileContents );
+        }
+        catch ( IOException e ) {
+            throw new FileSystemException( pPath, e );
+        }
+        finally {
+            Closeables.dispose( pFileContents );
+        }
+        try {
+            sendLarge( pPath, zFile );
+        }
+        finally {
+            zFile.delete();
+        }
+    }
+
+    private void sendLarge( String pPath, File pFile )
+            throws FileSystemException {
+        synchronized ( this ) {
+            acceptable();
+            while ( mSending.contains( pPath ) ) {
+                waitForChange();
+            }
+            Write zSuperseded = mQueued.remove( pPath );
+            if ( zSuperseded != null ) {
+                mSuperseded++;
+                mBufferedBytes -= zSuperseded.mBytes;
+            }
+            mSending.add( pPath ); // Later writes to pPath wait for this one
+        }
+        boolean zSent = false;
+        try {
+            mPersister.putFile( pPath, new FileInputStream( pFile ), pFile.length() );
+            zSent = true;
+        }
+        catch ( FileNotFoundException e ) {
+            throw new FileSystemException( pPath, e );
+        }
+        finally {
+            synchronized ( this ) {
+                mSending.remove( pPath );
+                if ( zSent ) {
+                    mSent++;
+                } else {
+                    mFailed++; // Reported by the throw
+                }
+                startUploader(); // The uploaders may have stopped w/ a (later) write to pPath queued
+                notifyAll();
+            }
+        }
+    }
+
+    private void upload() {
+        for ( Write zWrite; null != (zWrite = next()); ) {
+            FileSystemException zFailure = null;
+            try {
+                zWrite.send( mPersister );
+            }
+            catch ( FileSystemException e ) {
+                zFailure = e;
+            }
+            catch ( RuntimeException e ) {
+                zFailure = new FileSystemException( zWrite.mPath, e );
+            }
+            sent( zWrite, zFailure );
+        }
+    }
+
+    /**
+     * @return the oldest queued write whose path is not being sent, or null when there is none (& the uploader stops).
+     */
+    private synchronized Write next() {
+        for ( Iterator<Write> zIt = mQueued.values().iterator(); zIt.hasNext(); ) {
+            Write zWrite = zIt.next();
+            if ( mSending.add( zWrite.mPath ) ) {
+                zIt.remove();
+                return zWrite;
+            }
+        }
+        mUploaders--;
+        return null;
+    }
+
+    private synchronized void sent( Write pWrite, FileSystemException pFailure ) {
+        mSending.remove( pWrite.mPath );
+        mBufferedBytes -= pWrite.mBytes;
+        if ( pFailure == null ) {
+            mSent++;
+        } else {
+            mFailed++;
+            if ( mFailure == null ) {
+                mFailure = pFailure;
+            }
+        }
+        notifyAll();
+    }
+
+    private void acceptable()
+            throws FileSystemException {
+        if ( mClosed ) {
+            throw new IllegalStateException( "Closed: " + this );
+        }
+        reportFailure();
+    }
+
+    private void reportFailure()
+            throws FileSystemException {
+        FileSystemException zFailure = mFailure;
+        if ( zFailure != null ) {
+            mFailure = null;
+            throw new FileSystemException( "Write Behind failed (" + mFailed + " so far)", zFailure );
+        }
+    }
+
+    private void waitForChange()
+            throws FileSystemException {
+        try {
+            wait();
+        }
+        catch ( InterruptedException e ) {
+            Thread.currentThread().interrupt();
+            throw new FileSystemException( e );
+        }
+    }
+
+    /**
+     * @return pIn's bytes, all of them if no more than pMaxBytes, otherwise (just) the first pMaxBytes + 1 (w/ pIn
+     * left at the rest).
+     */
+    private static byte[] readUpTo( InputStream pIn, int pMaxBytes )
+            throws IOException {
+        ByteArrayOutputStream zBytes = new ByteArrayOutputStream( Math.min( pMaxBytes + 1, 8192 ) );
+        byte[] zBuffer = new byte[8192];
+        for ( int zWanted; (zWanted = Math.min( zBuffer.length, pMaxBytes + 1 - zBytes.size() )) > 0; ) {
+            int zRead = pIn.read( zBuffer, 0, zWanted );
+            if ( zRead == -1 ) {
+                break;
+            }
+            zBytes.write( zBuffer, 0, zRead );
+        }
+        return zBytes.toByteArray();
+    }
+
+    private abstract static class Write {
+        protected final String mPath;
+        protected final long mBytes;
+
+        protected Write( String pPath, long pBytes ) {
+            mPath = Confirm.significant( "Path", pPath );
+            mBytes = pBytes;
+        }
+
+        protected abstract void send( S3Persister pPersister );
+    }
+
+    private static class PutFile extends Write {
+        private final byte[] mContents;
+
+        private PutFile( String pPath, byte[] pContents ) {
+            super( pPath, pContents.length );
+            mContents = pContents;
+        }
+
+        @Override
+        protected void send( S3Persister pPersister ) {
+            pPersister.putFile( mPath, new ByteArrayInputStream( mContents ), mContents.length );
+        }
+    }
+
+    private static class PutTextFile extends Write {
+        private final String[] mLines;
+
+        private PutTextFile( String pPath, String[] pLines ) {
+            super( pPath, approximateBytes( pLines ) );
+            mLines = pLines.clone(); // The caller may reuse the array
+        }
+
+        @Override
+        protected void send( S3Persister pPersister ) {
+            pPersister.putTextFile( mPath, mLines );
+        }
+
+        private static long approximateBytes( String[] pLines ) {
+            long zBytes = 0;
+            for ( String zLine : pLines ) {
+                zBytes += ((zLine == null) ? 0 : zLine.length()) + 1;
+            }
+            return zBytes;
+        }
+    }
+
+    private static class DeleteFile extends Write {
+        private DeleteFile( String pPath ) {
+            super( pPath, 0 );
+        }
+
+        @Override
+        protected void send( S3Persister pPersister ) {
+            pPersister.deleteFile( mPath );
+        }
+    }
+}